@@ -0,0 +1,65 @@
+package com.recomtree.benchmarks;
+
+import com.recomtree.service.CatalogService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// CatalogService operations on a generated catalog (4 levels of 8 genres).
+// The service has no cache and no mutation log, so this is the in-memory
+// cost only; with --wal the disk wait comes on top of rateMovie and addMovie.
+//
+//   rateMovie       one rating, cycling over all movies
+//   addMovie        10 000 new movies per measurement (time is per batch),
+//                   because added movies are never freed
+//   listAll         the whole catalog as one response
+//   listAllFirstPage the first 100 lines of LIST_ALL
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CatalogServiceBenchmark {
+    private static final int ADD_BATCH = 10000;
+
+    @Param({"1000", "100000", "1000000"})
+    public int movies;
+
+    private SyntheticCatalog catalog;
+    private CatalogService service;
+    private int nextRating;
+    private int nextAdd;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        catalog = SyntheticCatalog.indexed(movies, 4, 8);
+        service = new CatalogService(catalog.getRoot());
+    }
+
+    @Benchmark
+    public String rateMovie() {
+        int i = nextRating++;
+        return service.rateMovie(catalog.getTitle(i), 1 + (i % 10));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = ADD_BATCH)
+    @Measurement(iterations = 10, batchSize = ADD_BATCH)
+    public String addMovie() {
+        int i = nextAdd++;
+        return service.addMovie(catalog.getLeafPath(i), "Added_" + i);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String listAll() {
+        return service.listAll();
+    }
+
+    @Benchmark
+    public String listAllFirstPage() {
+        return service.listAllPage(100, 0);
+    }
+}
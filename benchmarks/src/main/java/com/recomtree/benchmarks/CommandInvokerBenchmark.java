@@ -0,0 +1,54 @@
+package com.recomtree.benchmarks;
+
+import com.recomtree.command.CommandInvoker;
+import com.recomtree.service.CatalogService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// CommandInvoker.invoke on a catalog of 10 000 movies.
+//
+//   asGuest  split and look up the command, then stop at the login check
+//            (the parsing cost alone)
+//   asUser   the same line executed by a logged in user
+//   asAdmin  the same line executed by an admin
+// Commands a role may not run end with their "ERROR: ..." answer.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandInvokerBenchmark {
+    @Param({
+        "HELP",
+        "RATE_MOVIE Movie_42 8",
+        "RECOMMEND TOP_RATED 10",
+        "LIST_SUBTREE Genre_0_0_0 100",
+        "RATE_MOVIE_BATCH Movie_1 7 Movie_2 8 Movie_3 9",
+        "NOT_A_COMMAND with some arguments"
+    })
+    public String command;
+
+    private CommandInvoker invoker;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticCatalog catalog = SyntheticCatalog.indexed(10000, 4, 8);
+        invoker = new CommandInvoker(new CatalogService(catalog.getRoot()));
+    }
+
+    @Benchmark
+    public String asGuest() {
+        return invoker.invoke(command, "GUEST");
+    }
+
+    @Benchmark
+    public String asUser() {
+        return invoker.invoke(command, "USER");
+    }
+
+    @Benchmark
+    public String asAdmin() {
+        return invoker.invoke(command, "ADMIN");
+    }
+}
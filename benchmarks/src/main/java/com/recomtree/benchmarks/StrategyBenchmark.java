@@ -0,0 +1,66 @@
+package com.recomtree.benchmarks;
+
+import com.recomtree.composite.Movie;
+import com.recomtree.strategy.GenreSimilarStrategy;
+import com.recomtree.strategy.RecommendationStrategy;
+import com.recomtree.strategy.TopRatedStrategy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Recommendation strategies on generated catalogs of several sizes and shapes.
+// shape is "depth:fanOut": 2:32 is flat and wide, 8:3 is deep and narrow.
+//
+//   topRatedIndexed  TOP_RATED on an indexed catalog (reads the ranking)
+//   topRatedScan     TOP_RATED on a detached tree (collects and sorts everything)
+//   genreSimilarTop  GENRE_SIMILAR of a top-level genre (1 / fanOut of the catalog)
+//   genreSimilarLeaf GENRE_SIMILAR of one deepest genre
+//
+// Large catalogs need a bigger heap, for example:
+//   java -jar benchmarks.jar StrategyBenchmark -p movies=10000000 -jvmArgs -Xmx12g
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class StrategyBenchmark {
+    private static final RecommendationStrategy TOP_RATED = new TopRatedStrategy();
+    private static final RecommendationStrategy GENRE_SIMILAR = new GenreSimilarStrategy();
+
+    @Param({"1000", "100000", "1000000"})
+    public int movies;
+
+    @Param({"2:32", "4:8", "8:3"})
+    public String shape;
+
+    private SyntheticCatalog indexed;
+    private SyntheticCatalog detached;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] depthAndFanOut = SyntheticCatalog.parseShape(shape);
+        indexed = SyntheticCatalog.indexed(movies, depthAndFanOut[0], depthAndFanOut[1]);
+        detached = SyntheticCatalog.detached(movies, depthAndFanOut[0], depthAndFanOut[1]);
+    }
+
+    @Benchmark
+    public List<Movie> topRatedIndexed() {
+        return TOP_RATED.recommend(indexed.getRoot(), "10");
+    }
+
+    @Benchmark
+    public List<Movie> topRatedScan() {
+        return TOP_RATED.recommend(detached.getRoot(), "10");
+    }
+
+    @Benchmark
+    public List<Movie> genreSimilarTop() {
+        return GENRE_SIMILAR.recommend(indexed.getRoot(), indexed.getTopGenreName());
+    }
+
+    @Benchmark
+    public List<Movie> genreSimilarLeaf() {
+        return GENRE_SIMILAR.recommend(indexed.getRoot(), indexed.getLeafGenreName());
+    }
+}
@@ -0,0 +1,110 @@
+package com.recomtree.benchmarks;
+
+import com.recomtree.composite.CatalogIndex;
+import com.recomtree.composite.Genre;
+import com.recomtree.composite.Movie;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Builds a catalog of generated genres and movies for the benchmarks.
+// The tree is a full tree: "depth" levels of genres, each with "fanOut"
+// sub-genres, and the movies spread evenly over the deepest genres.
+// The same arguments always build the same catalog (fixed random seed).
+//
+// Names:
+//   genres  Genre_0, Genre_0_1, Genre_0_1_2, ... (the path is in the name)
+//   movies  Movie_0, Movie_1, ...                (all titles are unique)
+public class SyntheticCatalog {
+    private static final long SEED = 42;
+    private static final double RATED_SHARE = 0.8; // share of movies that have ratings
+
+    private final Genre root;
+    private final List<Genre> leaves = new ArrayList<>();
+    private final List<String> leafPaths = new ArrayList<>();
+    private final String[] titles;
+
+    private SyntheticCatalog(int movies, int depth, int fanOut) {
+        if (movies < 0 || depth < 1 || fanOut < 1) {
+            throw new IllegalArgumentException("movies >= 0, depth >= 1 and fanOut >= 1 are required");
+        }
+        root = new Genre("Movies Catalog");
+        addGenres(root, "Genre", "", depth, fanOut);
+
+        Random random = new Random(SEED);
+        titles = new String[movies];
+        for (int i = 0; i < movies; i++) {
+            titles[i] = "Movie_" + i;
+            Movie movie = new Movie(titles[i], root.getStore());
+
+            // Ratings are set before the movie is attached, like the loaders do
+            if (random.nextDouble() < RATED_SHARE) {
+                int count = 1 + random.nextInt(100);
+                double average = 1 + random.nextInt(90) / 10.0;
+                movie.setRatingCount(count);
+                movie.setTotalRatingSum(average * count);
+            }
+            leaves.get(i % leaves.size()).add(movie);
+        }
+    }
+
+    // Build an indexed catalog, the way the server sees it after loading
+    public static SyntheticCatalog indexed(int movies, int depth, int fanOut) {
+        SyntheticCatalog catalog = new SyntheticCatalog(movies, depth, fanOut);
+        CatalogIndex.build(catalog.root);
+        return catalog;
+    }
+
+    // Build a catalog without an index (a hand-built, detached tree)
+    public static SyntheticCatalog detached(int movies, int depth, int fanOut) {
+        return new SyntheticCatalog(movies, depth, fanOut);
+    }
+
+    // Parse a "depth:fanOut" shape, as used by the @Param values
+    public static int[] parseShape(String shape) {
+        String[] parts = shape.split(":");
+        return new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    private void addGenres(Genre parent, String prefix, String path, int levelsLeft, int fanOut) {
+        if (levelsLeft == 0) {
+            leaves.add(parent);
+            leafPaths.add(path);
+            return;
+        }
+        for (int i = 0; i < fanOut; i++) {
+            String name = prefix + "_" + i;
+            Genre genre = new Genre(name, root.getStore());
+            parent.add(genre);
+            addGenres(genre, name, path.isEmpty() ? name : path + "/" + name, levelsLeft - 1, fanOut);
+        }
+    }
+
+    public Genre getRoot() {
+        return root;
+    }
+
+    // Name of the first top-level genre (holds 1 / fanOut of the movies)
+    public String getTopGenreName() {
+        return "Genre_0";
+    }
+
+    // Name of the first deepest genre (holds movies only)
+    public String getLeafGenreName() {
+        return leaves.get(0).getName();
+    }
+
+    // "a/b/c" path of a deepest genre, as ADD_MOVIE expects it
+    public String getLeafPath(int i) {
+        return leafPaths.get(i % leafPaths.size());
+    }
+
+    public int getMovieCount() {
+        return titles.length;
+    }
+
+    // Title of an existing movie (i is wrapped around the catalog size)
+    public String getTitle(int i) {
+        return titles[i % titles.length];
+    }
+}
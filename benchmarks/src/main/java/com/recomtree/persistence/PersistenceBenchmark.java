@@ -0,0 +1,85 @@
+package com.recomtree.persistence;
+
+import com.recomtree.benchmarks.SyntheticCatalog;
+import com.recomtree.composite.CatalogIndex;
+import com.recomtree.composite.Genre;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+// Saving and loading whole snapshots, in both formats. Lives in the
+// persistence package to reach the writers and readers TreePersistence uses;
+// the files go to a temporary directory, never to the server's catalog_data.*
+//
+//   save  write the snapshot atomically (same steps as TreePersistence.save)
+//   load  read it back and index it (same steps as TreePersistence.load)
+//
+// Every load keeps its movies' store slots and genres for the life of the
+// process, so each measurement is a single shot and the iterations are few.
+// For very large catalogs use more forks instead of more iterations:
+//   java -jar benchmarks.jar PersistenceBenchmark -p movies=10000000 -wi 0 -i 1 -f 3 -jvmArgs -Xmx16g
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class PersistenceBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int movies;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    private Path directory;
+    private Path savePath;
+    private Path loadPath;
+    private Genre root;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = SyntheticCatalog.indexed(movies, 4, 8).getRoot();
+        directory = Files.createTempDirectory("recomtree-bench");
+        savePath = directory.resolve("save." + format);
+        loadPath = directory.resolve("load." + format);
+        write(loadPath.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(savePath);
+        Files.deleteIfExists(loadPath);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public long save() throws IOException {
+        write(savePath.toString());
+        return Files.size(savePath);
+    }
+
+    @Benchmark
+    public Genre load() throws IOException {
+        Genre loaded;
+        if ("binary".equals(format)) {
+            loaded = BinarySnapshot.read(loadPath).getRoot();
+        } else {
+            loaded = JsonCatalogReader.open(loadPath).readCatalog();
+        }
+        CatalogIndex.build(loaded);
+        return loaded;
+    }
+
+    private void write(String path) throws IOException {
+        if ("binary".equals(format)) {
+            TreePersistence.writeAtomically(path, out -> BinarySnapshot.write(root, 0, out));
+        } else {
+            JSONObject json = TreePersistence.genreToJson(root, 0);
+            TreePersistence.writeAtomically(path, out -> out.write(json.toString(2).getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.recomtree.client;
+
+import com.recomtree.metrics.LatencyHistogram;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Headless load test against a running server:
+//   java ... RecomClient --load [--users=10] [--rate=500] [--duration=30]
+//            [--mix=RECOMMEND:60,RATE_MOVIE:30,LIST_SUBTREE:9,ADD_MOVIE:1]
+//            [--max-pending=100000]
+//
+// Every simulated user is one connection logged in with LOGIN (ADD_MOVIE
+// needs an admin, so those commands go over one extra admin connection).
+// Commands are sent open-loop: the i-th command is due at start + i / rate,
+// whether or not earlier answers have arrived, and its latency is measured
+// from that due time. A slow server therefore shows up as higher latency
+// instead of as a lower sending rate.
+//
+// Titles and genres come from the first page of LIST_ALL, so the mix only
+// touches things that exist. Movies added by the test are named Load_...
+public class LoadGenerator {
+    private static final String[] COMMANDS = {"RECOMMEND", "RATE_MOVIE", "LIST_SUBTREE", "ADD_MOVIE"};
+    private static final String DEFAULT_MIX = "RECOMMEND:60,RATE_MOVIE:30,LIST_SUBTREE:9,ADD_MOVIE:1";
+    private static final int DISCOVERY_LINES = 10000;
+    private static final long PROGRESS_NANOS = 5_000_000_000L;
+    private static final long DRAIN_NANOS = 10_000_000_000L;
+
+    // "   - Title 7.5/10 (3)" or "   - Title Not rated"; any other "- Name" line is a genre
+    private static final Pattern MOVIE_LINE = Pattern.compile("^( *)- (.+) (\\d+[.,]\\d/10 \\(\\d+\\)|Not rated)$");
+    private static final Pattern GENRE_LINE = Pattern.compile("^( *)- (.+)$");
+
+    private final int users;
+    private final double rate;
+    private final int durationSeconds;
+    private final int maxPending;
+    private final int[] mixWeights = new int[COMMANDS.length];
+    private int totalWeight;
+
+    private final List<String> titles = new ArrayList<>(); // with '_' for spaces
+    private final List<String> genres = new ArrayList<>(); // one-word names only
+    private final String runId = Long.toString(System.currentTimeMillis() % 100000);
+
+    // Commands sent but not answered yet, by request id
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    private final CommandStats[] stats = new CommandStats[COMMANDS.length];
+    private final LongAdder dropped = new LongAdder(); // not sent because too many were pending
+
+    private static class Pending {
+        final int command;
+        final long dueNanos;
+
+        Pending(int command, long dueNanos) {
+            this.command = command;
+            this.dueNanos = dueNanos;
+        }
+    }
+
+    private static class CommandStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    LoadGenerator(String[] args) {
+        users = Integer.parseInt(RecomClient.option(args, "users", "10"));
+        rate = Double.parseDouble(RecomClient.option(args, "rate", "500"));
+        durationSeconds = Integer.parseInt(RecomClient.option(args, "duration", "30"));
+        maxPending = Integer.parseInt(RecomClient.option(args, "max-pending", "100000"));
+        if (users < 1 || rate <= 0 || durationSeconds < 1 || maxPending < 1) {
+            throw new IllegalArgumentException("users, rate, duration and max-pending must be positive");
+        }
+        parseMix(RecomClient.option(args, "mix", DEFAULT_MIX));
+
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new CommandStats();
+        }
+    }
+
+    // "NAME:weight,NAME:weight" -> mixWeights
+    private void parseMix(String mix) {
+        String[] entries = mix.split(",");
+        for (int i = 0; i < entries.length; i++) {
+            String[] parts = entries[i].trim().split(":");
+            int command = commandIndex(parts[0].trim().toUpperCase());
+            if (command < 0 || parts.length != 2) {
+                throw new IllegalArgumentException("Bad mix entry '" + entries[i] + "', expected NAME:weight with NAME one of "
+                        + String.join(", ", COMMANDS));
+            }
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Mix weights must not be negative");
+            }
+            mixWeights[command] = weight;
+            totalWeight += weight;
+        }
+        if (totalWeight == 0) {
+            throw new IllegalArgumentException("The mix needs at least one command with a positive weight");
+        }
+    }
+
+    private static int commandIndex(String name) {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static void run(String[] args) throws IOException {
+        LoadGenerator generator;
+        try {
+            generator = new LoadGenerator(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            return;
+        }
+        generator.runLoad();
+    }
+
+    private void runLoad() throws IOException {
+        discoverCatalog();
+        if (titles.isEmpty() || genres.isEmpty()) {
+            System.err.println("ERROR: The catalog needs at least one movie and one one-word genre to generate load.");
+            return;
+        }
+
+        // Connect and log in every simulated user first, so setup is not measured
+        List<Connection> connections = new ArrayList<>();
+        Connection admin = null;
+        try {
+            for (int i = 0; i < users; i++) {
+                // One rating profile per simulated user (SIMILAR_USERS)
+                connections.add(new Connection("LOGIN user user123 load-" + i));
+            }
+            if (mixWeights[commandIndex("ADD_MOVIE")] > 0) {
+                admin = new Connection("LOGIN admin admin123");
+            }
+
+            System.out.println(String.format("Load: %d users, %.0f commands/s for %d s, mix %s",
+                    users, rate, durationSeconds, describeMix()));
+            System.out.println(String.format("Catalog sample: %d titles, %d genres", titles.size(), genres.size()));
+
+            long sent = sendLoad(connections, admin);
+            drain();
+            report(sent);
+        } finally {
+            for (int i = 0; i < connections.size(); i++) {
+                connections.get(i).close();
+            }
+            if (admin != null) {
+                admin.close();
+            }
+        }
+    }
+
+    // Send commands at the fixed rate until the duration is over
+    private long sendLoad(List<Connection> connections, Connection admin) throws IOException {
+        long periodNanos = (long) (1_000_000_000L / rate);
+        long start = System.nanoTime();
+        long end = start + durationSeconds * 1_000_000_000L;
+        long nextProgress = start + PROGRESS_NANOS;
+        long id = 0;
+
+        while (true) {
+            long due = start + id * periodNanos;
+            if (due >= end) {
+                break;
+            }
+            long now = System.nanoTime();
+            if (due > now) {
+                LockSupport.parkNanos(due - now);
+                continue;
+            }
+
+            int command = pickCommand();
+            if (pending.size() >= maxPending) {
+                dropped.increment();
+            } else {
+                Connection target = COMMANDS[command].equals("ADD_MOVIE")
+                        ? admin : connections.get((int) (id % connections.size()));
+                pending.put(id, new Pending(command, due));
+                target.send(id, buildCommand(command, id));
+            }
+            id++;
+
+            if (now >= nextProgress) {
+                long answered = id - dropped.sum() - pending.size();
+                System.out.println(String.format("  %3d s: %d sent, %d answered, %d pending, %d dropped",
+                        (now - start) / 1_000_000_000L, id - dropped.sum(), answered, pending.size(), dropped.sum()));
+                nextProgress += PROGRESS_NANOS;
+            }
+        }
+        return id - dropped.sum();
+    }
+
+    // Wait for the last answers (at most DRAIN_NANOS)
+    private void drain() {
+        long deadline = System.nanoTime() + DRAIN_NANOS;
+        while (!pending.isEmpty() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(10_000_000L);
+        }
+    }
+
+    private int pickCommand() {
+        int roll = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (int i = 0; i < mixWeights.length; i++) {
+            roll -= mixWeights[i];
+            if (roll < 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    // A concrete command line, with a random title or genre from the catalog
+    private String buildCommand(int command, long id) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String genre = genres.get(random.nextInt(genres.size()));
+        switch (COMMANDS[command]) {
+            case "RECOMMEND":
+                return random.nextBoolean() ? "RECOMMEND TOP_RATED 10" : "RECOMMEND GENRE_TOP_RATED " + genre;
+            case "RATE_MOVIE":
+                return "RATE_MOVIE " + titles.get(random.nextInt(titles.size())) + " " + (1 + random.nextInt(10));
+            case "LIST_SUBTREE":
+                return "LIST_SUBTREE " + genre + " 100";
+            default:
+                return "ADD_MOVIE " + genre + " Load_" + runId + "_" + id;
+        }
+    }
+
+    // Read the first page of LIST_ALL and keep the titles and genre names
+    private void discoverCatalog() throws IOException {
+        try (Socket socket = new Socket(RecomClient.HOST, RecomClient.PORT)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            RecomClient.skipResponse(in); // welcome message
+
+            out.println("LOGIN user user123");
+            RecomClient.skipResponse(in);
+
+            out.println("LIST_ALL " + DISCOVERY_LINES);
+            String line;
+            while ((line = in.readLine()) != null && !line.startsWith(RecomClient.END_OF_RESPONSE)) {
+                Matcher movie = MOVIE_LINE.matcher(line);
+                if (movie.matches()) {
+                    String title = movie.group(2);
+                    if (!title.contains("_")) {
+                        titles.add(title.replace(' ', '_'));
+                    }
+                    continue;
+                }
+                Matcher genre = GENRE_LINE.matcher(line);
+                if (genre.matches() && !genre.group(2).contains(" ")) {
+                    genres.add(genre.group(2));
+                }
+            }
+        }
+    }
+
+    private String describeMix() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (mixWeights[i] > 0) {
+                if (sb.length() > 0) {
+                    sb.append(",");
+                }
+                sb.append(COMMANDS[i]).append(":").append(mixWeights[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void report(long sent) {
+        LatencyHistogram all = new LatencyHistogram();
+        long errors = 0;
+
+        System.out.println();
+        System.out.println(String.format("%-13s %9s %7s %9s %9s %9s %9s %9s",
+                "COMMAND", "COUNT", "ERRORS", "PER_SEC", "P50_MS", "P99_MS", "P999_MS", "MAX_MS"));
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (mixWeights[i] == 0) {
+                continue;
+            }
+            printRow(COMMANDS[i], stats[i].latency, stats[i].errors.sum());
+            all.add(stats[i].latency);
+            errors += stats[i].errors.sum();
+        }
+        printRow("ALL", all, errors);
+
+        System.out.println();
+        System.out.println(String.format("Sent %d, answered %d, unanswered %d, dropped %d (max pending %d)",
+                sent, all.getCount(), pending.size(), dropped.sum(), maxPending));
+    }
+
+    private void printRow(String name, LatencyHistogram latency, long errors) {
+        System.out.println(String.format("%-13s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f",
+                name, latency.getCount(), errors, (double) latency.getCount() / durationSeconds,
+                latency.getPercentile(50) / 1000.0, latency.getPercentile(99) / 1000.0,
+                latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0));
+    }
+
+    // One simulated user: a logged in connection and a thread reading its answers
+    private class Connection {
+        private final Socket socket;
+        private final Writer out;
+        private final Thread reader;
+
+        Connection(String login) throws IOException {
+            socket = new Socket(RecomClient.HOST, RecomClient.PORT);
+            socket.setTcpNoDelay(true);
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            RecomClient.skipResponse(in); // welcome message
+
+            out.write(login + "\n");
+            out.flush();
+            String answer = in.readLine();
+            RecomClient.skipResponse(in);
+            if (answer == null || !answer.startsWith("CONNECTION SUCCESSFUL")) {
+                socket.close();
+                throw new IOException("Login failed: " + answer);
+            }
+
+            reader = new Thread(() -> readAnswers(in), "load-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        synchronized void send(long id, String command) throws IOException {
+            out.write("#" + id + " " + command + "\n");
+            out.flush();
+        }
+
+        // Match every "<END_OF_RESPONSE> #id" with its pending command
+        private void readAnswers(BufferedReader in) {
+            try {
+                String line;
+                boolean firstLine = true;
+                boolean error = false;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith(RecomClient.END_OF_RESPONSE)) {
+                        long now = System.nanoTime();
+                        int hash = line.indexOf('#');
+                        Pending request = hash < 0 ? null : pending.remove(Long.parseLong(line.substring(hash + 1).trim()));
+                        if (request != null) {
+                            stats[request.command].latency.record(now - request.dueNanos);
+                            if (error) {
+                                stats[request.command].errors.increment();
+                            }
+                        }
+                        firstLine = true;
+                        error = false;
+                        continue;
+                    }
+                    if (firstLine) {
+                        error = line.startsWith("ERROR") || line.startsWith("USAGE");
+                        firstLine = false;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Connection closed at the end of the test
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -3,13 +3,40 @@ package com.recomtree.client;
 import java.io.*;
 import java.net.Socket;
 import java.util.Scanner;
+import java.util.concurrent.Semaphore;
 
-// Client class for connecting to movie recommendation server
+// Client class for connecting to movie recommendation server.
+// With --pipe the commands are read from standard input and pipelined,
+// over the text protocol or, with --binary, length-prefixed frames:
+//   java ... RecomClient --pipe [--binary] [--window=256] < commands.txt
+// With --bench it measures the throughput of both protocols, and with
+// --load it runs a load test (see LoadGenerator).
 public class RecomClient {
-    private static final String HOST = "localhost";
-    private static final int PORT = 8888;
+    static final String HOST = "localhost";
+    static final int PORT = 8888;
+    static final String END_OF_RESPONSE = "<END_OF_RESPONSE>";
+
+    // Binary protocol (mirrors server.BinaryProtocol)
+    private static final int FRAME_HEADER_BYTES = 1 + 4 + 1; // opcode, request id, status
+    private static final byte OP_COMMAND = 1;
+    private static final byte OP_MOVIES = 2;
+    private static final byte STATUS_OK = 0;
+    private static final byte STATUS_MORE = 2; // part of a streamed listing
 
     public static void main(String[] args) throws IOException {
+        if (hasFlag(args, "--pipe")) {
+            runPipe(args);
+            return;
+        }
+        if (hasFlag(args, "--bench")) {
+            runBench(args);
+            return;
+        }
+        if (hasFlag(args, "--load")) {
+            LoadGenerator.run(args);
+            return;
+        }
+
         Socket socket = null;
         PrintWriter out = null;
         BufferedReader in = null;
@@ -71,6 +98,268 @@ public class RecomClient {
         }
     }
 
+    // Send every line of standard input without waiting for the answers.
+    // Each command is tagged with a request id; a reader thread prints the
+    // responses as they arrive. At most "window" commands are in flight, so
+    // neither side buffers without limit.
+    private static void runPipe(String[] args) throws IOException {
+        int window = Integer.parseInt(option(args, "window", "256"));
+        boolean binary = hasFlag(args, "--binary");
+
+        Socket socket = new Socket(HOST, PORT);
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+        Pipeline pipeline = new Pipeline(socket, binary, window, true);
+
+        long start = System.nanoTime();
+        try {
+            String command;
+            while ((command = commands.readLine()) != null) {
+                if (!command.trim().isEmpty()) {
+                    pipeline.send(command);
+                }
+            }
+            pipeline.finish();
+        } finally {
+            socket.close();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(String.format("%d commands, %d answered (%d errors) in %.2f s, %.0f commands/s",
+                pipeline.sent, pipeline.answered, pipeline.errors, seconds, pipeline.answered / seconds));
+    }
+
+    // Send the same command many times over each protocol and compare throughput:
+    //   java ... RecomClient --bench [--requests=20000] [--window=256] [--command="RECOMMEND TOP_RATED 10"]
+    private static void runBench(String[] args) throws IOException {
+        int requests = Integer.parseInt(option(args, "requests", "20000"));
+        int window = Integer.parseInt(option(args, "window", "256"));
+        String command = option(args, "command", "RECOMMEND TOP_RATED 10");
+        String login = option(args, "login", "LOGIN user user123");
+
+        System.out.println("Benchmark: " + requests + " x \"" + command + "\", window " + window);
+        boolean[] protocols = {false, true};
+        for (int p = 0; p < protocols.length; p++) {
+            try (Socket socket = new Socket(HOST, PORT)) {
+                Pipeline pipeline = new Pipeline(socket, protocols[p], window, false);
+                pipeline.send(login);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < requests; i++) {
+                    pipeline.send(command);
+                }
+                pipeline.finish();
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                System.out.println(String.format("  %-6s %8.0f requests/s, %6.1f MB received, %5d bytes/response, %d errors",
+                        protocols[p] ? "binary" : "text", (pipeline.answered - 1) / seconds,
+                        pipeline.bytesReceived / (1024.0 * 1024.0), pipeline.bytesReceived / Math.max(1, pipeline.answered),
+                        pipeline.errors));
+            }
+        }
+    }
+
+    // One pipelined connection, over the text protocol or binary frames.
+    // The calling thread sends; a reader thread consumes the responses.
+    private static class Pipeline {
+        private final boolean binary;
+        private final boolean print;
+        private final Semaphore inFlight;
+        private final PrintWriter textOut;
+        private final DataOutputStream frameOut;
+        private final Thread reader;
+        int sent;
+        int answered;      // read by the sender only after finish()
+        int errors;
+        long bytesReceived;
+
+        Pipeline(Socket socket, boolean binary, int window, boolean print) throws IOException {
+            this.binary = binary;
+            this.print = print;
+            this.inFlight = new Semaphore(window);
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            textOut = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+            skipResponse(in); // welcome message
+
+            if (binary) {
+                // Switch, and wait for the answer before sending any frame
+                textOut.println("PROTOCOL BINARY");
+                textOut.flush();
+                if (!"PROTOCOL BINARY OK".equals(in.readLine())) {
+                    throw new IOException("Server refused the binary protocol");
+                }
+                skipResponse(in);
+                frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                DataInputStream frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                reader = new Thread(() -> readFrames(frameIn), "pipe-reader");
+            } else {
+                frameOut = null;
+                reader = new Thread(() -> readLines(in), "pipe-reader");
+            }
+            reader.start();
+        }
+
+        void send(String command) throws IOException {
+            // Send what is buffered before blocking on a full window
+            if (!inFlight.tryAcquire()) {
+                flush();
+                inFlight.acquireUninterruptibly();
+            }
+            sent++;
+            if (binary) {
+                byte[] payload = command.getBytes("UTF-8");
+                frameOut.writeInt(FRAME_HEADER_BYTES + payload.length);
+                frameOut.writeByte(OP_COMMAND);
+                frameOut.writeInt(sent);
+                frameOut.writeByte(0);
+                frameOut.write(payload);
+            } else {
+                textOut.println("#" + sent + " " + command);
+            }
+        }
+
+        // Close the session and wait for every response
+        void finish() throws IOException {
+            if (binary) {
+                byte[] payload = "EXIT".getBytes("UTF-8");
+                frameOut.writeInt(FRAME_HEADER_BYTES + payload.length);
+                frameOut.writeByte(OP_COMMAND);
+                frameOut.writeInt(0);
+                frameOut.writeByte(0);
+                frameOut.write(payload);
+            } else {
+                textOut.println("EXIT");
+            }
+            flush();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (binary) {
+                frameOut.flush();
+            } else {
+                textOut.flush();
+            }
+        }
+
+        private void readLines(BufferedReader in) {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    bytesReceived += line.length() + 1;
+                    if (line.startsWith(END_OF_RESPONSE)) {
+                        answered++;
+                        inFlight.release();
+                        continue;
+                    }
+                    if (line.startsWith("ERROR")) {
+                        errors++;
+                    }
+                    if (print) {
+                        System.out.println(line);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Connection error: " + e.getMessage());
+            }
+        }
+
+        private void readFrames(DataInputStream in) {
+            try {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        return; // server closed after EXIT
+                    }
+                    byte opcode = in.readByte();
+                    in.readInt(); // request id: responses come back in order
+                    byte status = in.readByte();
+                    byte[] payload = new byte[length - FRAME_HEADER_BYTES];
+                    in.readFully(payload);
+                    bytesReceived += 4 + length;
+
+                    if (status != STATUS_MORE) {
+                        answered++;
+                        inFlight.release();
+                    }
+                    if (status != STATUS_OK && status != STATUS_MORE) {
+                        errors++;
+                    }
+                    if (print) {
+                        if (opcode == OP_MOVIES) {
+                            printMovies(payload);
+                        } else {
+                            System.out.print(new String(payload, "UTF-8"));
+                            if (status != STATUS_MORE) {
+                                System.out.println();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Connection error: " + e.getMessage());
+            }
+        }
+    }
+
+    // Decode a compact recommendation list (see CatalogService.recommendEncoded)
+    private static void printMovies(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int count = in.readInt();
+        if (count == 0) {
+            System.out.println("No recommendations found.");
+            return;
+        }
+        System.out.println("RECOMMENDATIONS:");
+        for (int i = 0; i < count; i++) {
+            in.readLong(); // movie id
+            float rating = in.readFloat();
+            int ratingCount = in.readInt();
+            byte[] title = new byte[in.readUnsignedShort()];
+            in.readFully(title);
+
+            String line = "- " + new String(title, "UTF-8");
+            if (ratingCount > 0) {
+                line += String.format(" (%.1f - %d rating%s)", rating, ratingCount, ratingCount > 1 ? "s" : "");
+            } else {
+                line += " (Not rated yet)";
+            }
+            System.out.println(line);
+        }
+    }
+
+    static void skipResponse(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null && !line.startsWith(END_OF_RESPONSE)) {
+        }
+    }
+
+    // Value of a --name=value argument, or the default
+    static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith(prefix)) {
+                return args[i].substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
+
+    private static boolean hasFlag(String[] args, String flag) {
+        for (int i = 0; i < args.length; i++) {
+            if (flag.equals(args[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // Method to print welcome banner with ASCII art
     private static void printWelcomeBanner() {
         System.out.println("\n==========================================");
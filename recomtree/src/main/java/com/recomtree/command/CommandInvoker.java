@@ -1,9 +1,11 @@
 package com.recomtree.command;
 
 import com.recomtree.command.commands.*;
+import com.recomtree.metrics.CommandEvent;
 import com.recomtree.service.CatalogService;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Consumer;
 
 // Class to manage and execute commands
 public class CommandInvoker {
@@ -21,11 +23,25 @@ public class CommandInvoker {
         registry.put("LIST_ALL", new ListAllCommand());
         registry.put("RECOMMEND", new RecommendCommand());
         registry.put("RATE_MOVIE", new RateMovieCommand());
+        registry.put("ADD_MOVIE_BATCH", new AddMovieBatchCommand());
+        registry.put("RATE_MOVIE_BATCH", new RateMovieBatchCommand());
         registry.put("HELP", new HelpCommand());
     }
 
+    // True if a command is registered under this (upper case) name
+    public boolean hasCommand(String key) {
+        return registry.containsKey(key);
+    }
+
     // Execute a command
     public String invoke(String input, String role) {
+        return invoke(input, role, null);
+    }
+
+    // Same, but a RECOMMEND that finds movies hands them to `movieList` as a
+    // compact list (binary protocol) and returns "". Other results, errors
+    // included, are returned as text like invoke() does.
+    public String invoke(String input, String role, Consumer<byte[]> movieList) {
         // Check if input is empty
         if (input == null || input.trim().isEmpty()){
             return "ERROR: Empty command";
@@ -46,11 +62,31 @@ public class CommandInvoker {
             return "ERROR: Please LOGIN first.";
         }
 
-        // Execute the command
+        // Execute the command (timed as a JFR event when a recording is on)
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        String result;
         try {
-            return cmd.execute(service, parts, role);
+            byte[] movies = null;
+            if (movieList != null && cmd instanceof RecommendCommand) {
+                movies = ((RecommendCommand) cmd).executeEncoded(service, parts);
+            }
+            if (movies != null) {
+                movieList.accept(movies);
+                result = "";
+            } else {
+                result = cmd.execute(service, parts, role);
+            }
         } catch (Exception e) {
-            return "ERROR: " + e.getMessage();
+            result = "ERROR: " + e.getMessage();
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.command = key;
+            event.role = role;
+            event.resultSize = result == null ? 0 : result.length();
+            event.commit();
         }
+        return result;
     }
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+package com.recomtree.command.commands;
+
+import com.recomtree.service.CatalogService;
+
+// Command to add many movies in one request - only accessible to admins
+public class AddMovieBatchCommand implements Command {
+
+    @Override
+    public String execute(CatalogService service, String[] args, String role) {
+        // Only admins can add movies
+        if (!"ADMIN".equals(role)) {
+            return "ERROR: Access Denied. Admins only.";
+        }
+
+        // Arguments come in <Genre_or_Path> <Title_Name> pairs
+        if (args.length < 3 || args.length % 2 == 0) {
+            return "USAGE: ADD_MOVIE_BATCH <Genre_or_Path> <Title_Name> [<Genre_or_Path> <Title_Name> ...]\n" +
+                   "Example:\n" +
+                   "  ADD_MOVIE_BATCH action Matrix_4 action/superhero Batman_Returns sci-fi/space Gravity\n" +
+                   "Note: Movies are added without rating. Users will rate them.";
+        }
+
+        int count = (args.length - 1) / 2;
+        String[] genrePaths = new String[count];
+        String[] titles = new String[count];
+        for (int i = 0; i < count; i++) {
+            genrePaths[i] = args[1 + 2 * i];
+            titles[i] = args[2 + 2 * i].replace("_", " ");
+        }
+
+        return service.addMovies(genrePaths, titles);
+    }
+}
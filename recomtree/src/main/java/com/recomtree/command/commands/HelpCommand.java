@@ -1,5 +1,6 @@
 package com.recomtree.command.commands;
 
+import com.recomtree.composite.Genre;
 import com.recomtree.service.CatalogService;
 
 // Command to display help information
@@ -16,13 +17,54 @@ public class HelpCommand implements Command {
         // General commands
         help.append("GENERAL COMMANDS:\n");
         help.append("  HELP                            - Display this help\n");
-        help.append("  LIST_ALL                        - List all movies in the catalog\n");
-        help.append("  LIST_SUBTREE <Genre/SubGenre>   - List movies from a genre or sub-genre\n");
+        help.append("  LIST_ALL [PageSize] [Cursor]    - List all movies in the catalog\n");
+        help.append("  LIST_SUBTREE <Genre/SubGenre> [PageSize] [Cursor]\n");
+        help.append("                                  - List movies from a genre or sub-genre\n");
         help.append("                                    Examples: LIST_SUBTREE action\n");
         help.append("                                              LIST_SUBTREE superhero\n");
-        help.append("  RECOMMEND TOP_RATED             - Recommend top rated movies\n");
+        help.append("                                    With a PageSize (1 to " + ListSubtreeCommand.MAX_PAGE_SIZE + "), one page is\n");
+        help.append("                                    listed; it ends with NEXT_CURSOR: <Cursor>,\n");
+        help.append("                                    to pass to the next request, or END_OF_LIST.\n");
+        help.append("                                    Cursors count lines, so movies added between\n");
+        help.append("                                    pages shift the pages after them.\n");
+        help.append("                                    Example: LIST_ALL 100, then LIST_ALL 100 100\n");
+        help.append("  LIST_ALL STREAM\n");
+        help.append("  LIST_SUBTREE <Genre/SubGenre> STREAM\n");
+        help.append("                                  - Send a large listing in chunks as it is read\n");
+        help.append("                                    (logged-in users). Movies added while it is\n");
+        help.append("                                    sent may or may not be listed.\n");
+        help.append("  RECOMMEND TOP_RATED [K] [Offset]\n");
+        help.append("                                  - Recommend top rated movies (default: top 5)\n");
+        help.append("                                    Examples: RECOMMEND TOP_RATED 10\n");
+        help.append("                                              RECOMMEND TOP_RATED 10 20\n");
         help.append("  RECOMMEND GENRE_SIMILAR <Genre> - Recommend movies from same genre\n");
-        help.append("                                    (includes all sub-genres)\n\n");
+        help.append("                                    (includes all sub-genres)\n");
+        help.append("  RECOMMEND GENRE_TOP_RATED <Genre>\n");
+        help.append("                                  - Recommend the " + Genre.TOP_SIZE + " best rated movies of a genre\n");
+        help.append("  RECOMMEND SIMILAR_USERS [K]     - Recommend movies liked by profiles that rated\n");
+        help.append("                                    like yours (default: 10). Needs a profile:\n");
+        help.append("                                    LOGIN user user123 <profile>\n");
+        help.append("  RECOMMEND BECAUSE_YOU_RATED <Movie_Title> [K]\n");
+        help.append("                                  - Recommend movies rated like this one (default: 10)\n");
+        help.append("                                    Example: RECOMMEND BECAUSE_YOU_RATED The_Matrix\n\n");
+
+        // Pipelining
+        help.append("PIPELINING:\n");
+        help.append("  Prefix a command with #<id> (e.g. #7 LIST_ALL) to send many commands\n");
+        help.append("  without waiting. Responses come back in order and end with\n");
+        help.append("  <END_OF_RESPONSE> #<id>. The id is any word without spaces and only\n");
+        help.append("  tags that one response; commands without an id end with the plain marker.\n\n");
+
+        // Binary protocol
+        help.append("BINARY PROTOCOL:\n");
+        help.append("  PROTOCOL BINARY                 - Switch this connection to length-prefixed\n");
+        help.append("                                    frames after the reply PROTOCOL BINARY OK.\n");
+        help.append("                                    Frame: int length, byte opcode, int id,\n");
+        help.append("                                    byte status, payload (big-endian). Requests\n");
+        help.append("                                    are opcode 1 with a command line in UTF-8;\n");
+        help.append("                                    replies are text (1) or, for RECOMMEND, a\n");
+        help.append("                                    movie list (2), with status OK (0), ERROR (1)\n");
+        help.append("                                    or MORE (2) for a streamed listing.\n\n");
 
         // Admin only commands
         if ("ADMIN".equals(role)) {
@@ -35,7 +77,14 @@ public class HelpCommand implements Command {
             help.append("                                    Examples:\n");
             help.append("                                      ADD_MOVIE action The_Raid\n");
             help.append("                                      ADD_MOVIE action/superhero Deadpool\n");
-            help.append("                                      ADD_MOVIE sci-fi/space Apollo_13\n\n");
+            help.append("                                      ADD_MOVIE sci-fi/space Apollo_13\n");
+            help.append("  ADD_MOVIE_BATCH <Genre/Path> <Title> [<Genre/Path> <Title> ...]\n");
+            help.append("                                  - Add many movies in one request\n");
+            help.append("  METRICS [RESET]                 - Latency per command (parse, execute, write)\n");
+            help.append("                                    and response sizes, since start and for the\n");
+            help.append("                                    last interval; RESET starts a new interval\n");
+            help.append("  METRICS COSTS                   - CPU time and allocations per command and role,\n");
+            help.append("                                    and the most expensive requests\n\n");
         }
 
         // User only commands
@@ -46,7 +95,9 @@ public class HelpCommand implements Command {
             help.append("                                    Use underscores for spaces in title\n");
             help.append("                                    Examples:\n");
             help.append("                                      RATE_MOVIE Matrix 8.5\n");
-            help.append("                                      RATE_MOVIE The_Dark_Knight 9.0\n\n");
+            help.append("                                      RATE_MOVIE The_Dark_Knight 9.0\n");
+            help.append("  RATE_MOVIE_BATCH <Movie_Title> <Rating> [<Movie_Title> <Rating> ...]\n");
+            help.append("                                  - Rate many movies in one request\n\n");
         }
 
         if (!"ADMIN".equals(role) && !"USER".equals(role)) {
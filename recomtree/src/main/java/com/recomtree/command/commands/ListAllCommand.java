@@ -2,12 +2,26 @@ package com.recomtree.command.commands;
 
 import com.recomtree.service.CatalogService;
 
-// Command to list all movies in the catalog
+// Command to list all movies in the catalog, whole or one page at a time
 public class ListAllCommand implements Command {
 
     @Override
     public String execute(CatalogService service, String[] args, String role) {
-        // Just call the service method to list all movies
-        return service.listAll();
+        // No page size: list everything in one response
+        if (args.length < 2) {
+            return service.listAll();
+        }
+
+        long[] page = ListSubtreeCommand.parsePage(args, 1);
+        if (page == null) {
+            return "USAGE: LIST_ALL [PageSize] [Cursor]\n" +
+                   "       LIST_ALL STREAM\n" +
+                   "Examples:\n" +
+                   "  LIST_ALL 100        (first 100 lines)\n" +
+                   "  LIST_ALL 100 100    (next 100 lines)\n" +
+                   "Note: PageSize is between 1 and " + ListSubtreeCommand.MAX_PAGE_SIZE +
+                   "; each page ends with NEXT_CURSOR: <Cursor> or END_OF_LIST";
+        }
+        return service.listAllPage((int) page[0], page[1]);
     }
-}
\ No newline at end of file
+}
@@ -2,21 +2,54 @@ package com.recomtree.command.commands;
 
 import com.recomtree.service.CatalogService;
 
-// Command to list movies in a specific genre or sub-genre
+// Command to list movies in a specific genre or sub-genre, whole or one page at a time
 public class ListSubtreeCommand implements Command {
+    static final int MAX_PAGE_SIZE = 10000;
 
     @Override
     public String execute(CatalogService service, String[] args, String role) {
         // Check if genre name is provided
         if (args.length < 2) {
-            return "USAGE: LIST_SUBTREE <Genre_or_SubGenre>\n" +
-                   "Examples:\n" +
-                   "  LIST_SUBTREE action\n" +
-                   "  LIST_SUBTREE superhero\n" +
-                   "  LIST_SUBTREE pixar";
+            return usage();
         }
 
-        // Call service to list the subtree
-        return service.listSubtree(args[1]);
+        // No page size: list the whole subtree in one response
+        if (args.length == 2) {
+            return service.listSubtree(args[1]);
+        }
+
+        long[] page = parsePage(args, 2);
+        if (page == null) {
+            return usage();
+        }
+        return service.listSubtreePage(args[1], (int) page[0], page[1]);
+    }
+
+    private String usage() {
+        return "USAGE: LIST_SUBTREE <Genre_or_SubGenre> [PageSize] [Cursor]\n" +
+               "       LIST_SUBTREE <Genre_or_SubGenre> STREAM\n" +
+               "Examples:\n" +
+               "  LIST_SUBTREE action\n" +
+               "  LIST_SUBTREE superhero\n" +
+               "  LIST_SUBTREE pixar 50 100\n" +
+               "Note: PageSize is between 1 and " + MAX_PAGE_SIZE +
+               "; each page ends with NEXT_CURSOR: <Cursor> or END_OF_LIST";
+    }
+
+    // Parse "<PageSize> [Cursor]" starting at args[from] into {PageSize, Cursor}, or null if invalid
+    static long[] parsePage(String[] args, int from) {
+        if (args.length > from + 2) {
+            return null;
+        }
+        try {
+            long pageSize = Integer.parseInt(args[from]);
+            long cursor = args.length > from + 1 ? Long.parseLong(args[from + 1]) : 0;
+            if (pageSize < 1 || pageSize > MAX_PAGE_SIZE || cursor < 0) {
+                return null;
+            }
+            return new long[] {pageSize, cursor};
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,45 @@
+package com.recomtree.command.commands;
+
+import com.recomtree.service.CatalogService;
+
+// Command to rate many movies in one request - only accessible to users
+public class RateMovieBatchCommand implements Command {
+
+    @Override
+    public String execute(CatalogService service, String[] args, String role) {
+        // Only users can rate movies
+        if (!"USER".equals(role)) {
+            return "ERROR: Access Denied. Only users can rate movies.";
+        }
+
+        // Arguments come in <Movie_Title> <Rating> pairs
+        if (args.length < 3 || args.length % 2 == 0) {
+            return "USAGE: RATE_MOVIE_BATCH <Movie_Title> <Rating> [<Movie_Title> <Rating> ...]\n" +
+                   "Example:\n" +
+                   "  RATE_MOVIE_BATCH Matrix 8.5 The_Shawshank_Redemption 9.3 Toy_Story 7\n" +
+                   "Note: Use underscores for spaces in movie titles\n" +
+                   "      Ratings must be between 0.0 and 10.0";
+        }
+
+        int count = (args.length - 1) / 2;
+        String[] titles = new String[count];
+        double[] ratings = new double[count];
+
+        // Check the whole batch before rating anything
+        for (int i = 0; i < count; i++) {
+            String title = args[1 + 2 * i];
+            String value = args[2 + 2 * i];
+            try {
+                ratings[i] = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return "ERROR: Invalid rating format '" + value + "' for " + title + ". Nothing was rated.";
+            }
+            if (ratings[i] < 0.0 || ratings[i] > 10.0) {
+                return "ERROR: Rating for " + title + " must be between 0.0 and 10.0. Nothing was rated.";
+            }
+            titles[i] = title.replace("_", " ");
+        }
+
+        return service.rateMovies(titles, ratings);
+    }
+}
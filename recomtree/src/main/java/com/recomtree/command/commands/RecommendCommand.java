@@ -2,6 +2,8 @@ package com.recomtree.command.commands;
 
 import com.recomtree.service.CatalogService;
 
+import java.util.Arrays;
+
 // Command to get movie recommendations
 public class RecommendCommand implements Command {
 
@@ -9,19 +11,36 @@ public class RecommendCommand implements Command {
     public String execute(CatalogService service, String[] args, String role) {
         // Check if strategy is provided
         if (args.length < 2) {
-            return "USAGE: RECOMMEND <TOP_RATED|GENRE_SIMILAR> [GenreName]";
+            return "USAGE: RECOMMEND TOP_RATED [K] [Offset]\n" +
+                   "       RECOMMEND GENRE_SIMILAR <GenreName>\n" +
+                   "       RECOMMEND GENRE_TOP_RATED <GenreName>\n" +
+                   "       RECOMMEND SIMILAR_USERS [K]\n" +
+                   "       RECOMMEND BECAUSE_YOU_RATED <Movie_Title> [K]";
         }
 
         // Get the strategy type
         String strategy = args[1].toUpperCase();
 
-        // Get optional parameter (genre name)
+        // Get optional parameter (genre name, movie title, or page size and offset)
         String param = "";
         if (args.length > 2) {
-            param = args[2];
+            param = String.join(" ", Arrays.copyOfRange(args, 2, args.length));
         }
 
         // Call service to get recommendations
         return service.recommend(strategy, param);
     }
+
+    // The same recommendations as a compact movie list (binary protocol),
+    // or null when the answer is a message (usage, unknown strategy, ...)
+    public byte[] executeEncoded(CatalogService service, String[] args) {
+        if (args.length < 2) {
+            return null;
+        }
+        String param = "";
+        if (args.length > 2) {
+            param = String.join(" ", Arrays.copyOfRange(args, 2, args.length));
+        }
+        return service.recommendEncoded(args[1].toUpperCase(), param);
+    }
 }
\ No newline at end of file
@@ -3,6 +3,8 @@ package com.recomtree.composite;
 // Abstract base class for catalog items (movies and genres)
 public abstract class CatalogComponent {
     protected String name;
+    protected CatalogIndex index; // Shared catalog index, null while the component is detached
+    private Genre parent; // Genre holding this component, null for the root
 
     // Default constructor
     public CatalogComponent() {}
@@ -17,6 +19,30 @@ public abstract class CatalogComponent {
         return name;
     }
 
+    // Get the genre holding this component (null for the root or a detached node)
+    public Genre getParent() {
+        return parent;
+    }
+
+    // Set by Genre when the component is attached or removed
+    void setParent(Genre parent) {
+        this.parent = parent;
+    }
+
+    // Get the catalog index this component belongs to (null if not indexed)
+    public CatalogIndex getIndex() {
+        return index;
+    }
+
+    // Set by CatalogIndex when the component is registered or removed
+    void setIndex(CatalogIndex index) {
+        this.index = index;
+    }
+
+    // Move this component (and anything below it) into the movie store of the
+    // catalog it is being attached to
+    abstract void moveTo(MovieStore store);
+
     // Abstract method to display the component
     public abstract void display(StringBuilder sb, int depth);
 
@@ -0,0 +1,243 @@
+package com.recomtree.composite;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// Catalog-wide lookup tables, shared by every genre of one catalog tree.
+// Genres keep it up to date themselves: anything attached with Genre.add()
+// or Genre.setChildren() is registered, so callers never walk the tree to
+// find a movie by title or a genre by name.
+public class CatalogIndex {
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 3;
+
+    private final Genre root;
+
+    // Lower-cased title -> movies with that title, in the order they were added
+    private final Map<String, List<Movie>> moviesByTitle = new ConcurrentHashMap<>();
+
+    // Lower-cased genre name -> genres with that name, in the order they were added
+    private final Map<String, List<Genre>> genresByName = new ConcurrentHashMap<>();
+
+    // Movie id -> movie
+    private final Map<Long, Movie> moviesById = new ConcurrentHashMap<>();
+
+    // Every movie ordered by rating, for TOP_RATED
+    private final RatingRanking ranking = new RatingRanking();
+
+    // Who rated what, and the movie neighbors built from it, for
+    // SIMILAR_USERS and BECAUSE_YOU_RATED
+    private final ItemSimilarity similarity = new ItemSimilarity();
+    private final UserRatings userRatings = new UserRatings(similarity);
+
+    private final AtomicLong nextMovieId = new AtomicLong(1);
+
+    // Structural changes (new genres and movies) are serialized by this lock.
+    // The version is a sequence lock: odd while a change is being published,
+    // bumped to the next even number when it is done.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final AtomicLong version = new AtomicLong();
+
+    // Ratings do not take the write lock, so they are counted separately
+    private final LongAdder ratingChanges = new LongAdder();
+
+    private CatalogIndex(Genre root) {
+        this.root = root;
+    }
+
+    // Index a whole tree, starting at its root genre
+    public static CatalogIndex build(Genre root) {
+        CatalogIndex index = new CatalogIndex(root);
+        index.register(root);
+        return index;
+    }
+
+    // The root genre of the indexed catalog
+    public Genre getRoot() {
+        return root;
+    }
+
+    // Structure version, bumped by every write(); even when no write is running
+    public long getVersion() {
+        return version.get();
+    }
+
+    // Version of the whole content: structure, ratings and published movie
+    // neighbors. It only grows, and it moves after a change is fully applied,
+    // so anything computed after reading it is at least as new as that version.
+    public long getContentVersion() {
+        return version.get() + ratingChanges.sum() + similarity.getVersion();
+    }
+
+    // Apply a structural change. Writers run one at a time; readers are never
+    // blocked by them, they just retry if a change landed under their feet.
+    public <T> T write(Supplier<T> change) {
+        writeLock.lock();
+        boolean outermost = writeLock.getHoldCount() == 1;
+        try {
+            if (outermost) {
+                version.incrementAndGet();
+            }
+            return change.get();
+        } finally {
+            if (outermost) {
+                version.incrementAndGet();
+            }
+            writeLock.unlock();
+        }
+    }
+
+    // Run a read-only operation against one point-in-time view of the tree
+    // structure. It runs optimistically without any lock and is retried if a
+    // write was published meanwhile; after a few failed attempts it waits for
+    // the writers instead, so a long read cannot starve.
+    public <T> T read(Supplier<T> reader) {
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            long before = version.get();
+            if ((before & 1) != 0) {
+                Thread.yield(); // a write is being published
+                continue;
+            }
+
+            T result = reader.get();
+            if (version.get() == before) {
+                return result;
+            }
+        }
+
+        writeLock.lock();
+        try {
+            return reader.get();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Find a genre by name (case-insensitive). When several genres share the
+    // name, the one added first wins.
+    public Genre findGenre(String name) {
+        List<Genre> genres = genresByName.get(key(name));
+        if (genres == null || genres.isEmpty()) {
+            return null;
+        }
+        return genres.get(0);
+    }
+
+    // Find all movies with this title (case-insensitive), oldest first
+    public List<Movie> findMovies(String title) {
+        List<Movie> movies = moviesByTitle.get(key(title));
+        if (movies == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(movies);
+    }
+
+    // Find a movie by title. When several movies share the title, the one
+    // added first wins; use findMovies() to see all of them.
+    public Movie findMovie(String title) {
+        List<Movie> movies = moviesByTitle.get(key(title));
+        if (movies == null || movies.isEmpty()) {
+            return null;
+        }
+        return movies.get(0);
+    }
+
+    // Find a movie by its catalog-wide id, or null
+    public Movie findMovieById(long id) {
+        return moviesById.get(id);
+    }
+
+    // Movies ordered by rating, best first
+    public RatingRanking getRanking() {
+        return ranking;
+    }
+
+    // Ratings per user profile
+    public UserRatings getUserRatings() {
+        return userRatings;
+    }
+
+    // Movie neighbors computed from the user profiles' ratings
+    public ItemSimilarity getSimilarity() {
+        return similarity;
+    }
+
+    // Number of distinct titles in the index
+    public int titleCount() {
+        return moviesByTitle.size();
+    }
+
+    // Add a component (and everything below it) to the index
+    void register(CatalogComponent component) {
+        if (component instanceof Movie) {
+            Movie movie = (Movie) component;
+            if (movie.getId() == 0) {
+                movie.setId(nextMovieId.getAndIncrement());
+            } else {
+                nextMovieId.accumulateAndGet(movie.getId() + 1, Math::max);
+            }
+            movie.setIndex(this);
+            moviesById.put(movie.getId(), movie);
+            moviesByTitle.computeIfAbsent(key(movie.getName()), k -> new CopyOnWriteArrayList<>()).add(movie);
+            ranking.add(movie);
+        } else if (component instanceof Genre) {
+            Genre genre = (Genre) component;
+            genre.setIndex(this);
+            genresByName.computeIfAbsent(key(genre.getName()), k -> new CopyOnWriteArrayList<>()).add(genre);
+
+            List<CatalogComponent> children = genre.getChildren();
+            for (int i = 0; i < children.size(); i++) {
+                register(children.get(i));
+            }
+        }
+    }
+
+    // Remove a component (and everything below it) from the index
+    void unregister(CatalogComponent component) {
+        if (component instanceof Movie) {
+            Movie movie = (Movie) component;
+            movie.setIndex(null);
+            moviesById.remove(movie.getId(), movie);
+            removeFrom(moviesByTitle, key(movie.getName()), movie);
+            ranking.remove(movie);
+        } else if (component instanceof Genre) {
+            Genre genre = (Genre) component;
+            genre.setIndex(null);
+            removeFrom(genresByName, key(genre.getName()), genre);
+
+            List<CatalogComponent> children = genre.getChildren();
+            for (int i = 0; i < children.size(); i++) {
+                unregister(children.get(i));
+            }
+        }
+    }
+
+    // Called by a movie whose rating just changed
+    void ratingChanged(Movie movie) {
+        ranking.update(movie);
+        ratingChanges.increment();
+    }
+
+    // Remove one entry from a name -> list map, dropping empty lists
+    private static <T> void removeFrom(Map<String, List<T>> map, String key, T value) {
+        List<T> values = map.get(key);
+        if (values != null) {
+            values.remove(value);
+            if (values.isEmpty()) {
+                map.remove(key, values);
+            }
+        }
+    }
+
+    // Names are matched ignoring case
+    static String key(String name) {
+        return name == null ? "" : name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,107 @@
+package com.recomtree.composite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Walks the lines of genre.display(sb, 0) one at a time, so a listing can be
+// sent in pages or in chunks without rendering the whole subtree at once.
+// The only state is one entry per open genre on the path.
+//
+// The walk does not lock the catalog: it reads each child list as it goes,
+// so movies added meanwhile may or may not show up. Child lists are
+// copy-on-write, which makes the walk itself safe.
+public class DisplayCursor {
+    private final List<List<CatalogComponent>> lists = new ArrayList<>(); // children of each open genre
+    private final List<Integer> positions = new ArrayList<>();            // next child in each list
+    private long line; // lines skipped or rendered so far
+
+    public DisplayCursor(Genre start) {
+        lists.add(start.getChildren());
+        positions.add(0);
+    }
+
+    // True while lines remain
+    public boolean hasNext() {
+        return peek() != null;
+    }
+
+    // Number of lines skipped or rendered so far (the cursor of the next page)
+    public long getPosition() {
+        return line;
+    }
+
+    // Skip up to count lines without rendering them. Whole sub-genres are
+    // skipped at once using their line counts. Returns the lines skipped.
+    public long skip(long count) {
+        long skipped = 0;
+        while (skipped < count) {
+            CatalogComponent next = peek();
+            if (next == null) {
+                break;
+            }
+            if (next instanceof Genre) {
+                long subtree = 1 + ((Genre) next).getDisplayLineCount();
+                if (skipped + subtree <= count) {
+                    advance();
+                    skipped += subtree;
+                    continue;
+                }
+                enter((Genre) next); // its own line is skipped, then its children
+            } else {
+                advance();
+            }
+            skipped++;
+        }
+        line += skipped;
+        return skipped;
+    }
+
+    // Render lines into sb until maxLines lines are written or sb holds at
+    // least maxChars characters. Returns the number of lines written.
+    public int render(StringBuilder sb, int maxLines, int maxChars) {
+        int written = 0;
+        while (written < maxLines && sb.length() < maxChars) {
+            CatalogComponent next = peek();
+            if (next == null) {
+                break;
+            }
+            int depth = lists.size();
+            if (next instanceof Genre) {
+                ((Genre) next).displayLine(sb, depth);
+                enter((Genre) next);
+            } else {
+                next.display(sb, depth);
+                advance();
+            }
+            written++;
+        }
+        line += written;
+        return written;
+    }
+
+    // Next child to visit, closing genres whose children are all visited
+    private CatalogComponent peek() {
+        while (!lists.isEmpty()) {
+            int top = lists.size() - 1;
+            List<CatalogComponent> children = lists.get(top);
+            int position = positions.get(top);
+            if (position < children.size()) {
+                return children.get(position);
+            }
+            lists.remove(top);
+            positions.remove(top);
+        }
+        return null;
+    }
+
+    private void advance() {
+        int top = positions.size() - 1;
+        positions.set(top, positions.get(top) + 1);
+    }
+
+    private void enter(Genre genre) {
+        advance();
+        lists.add(genre.getChildren());
+        positions.add(0);
+    }
+}
@@ -1,20 +1,83 @@
 package com.recomtree.composite;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
 
-// Class representing a genre that can contain movies and sub-genres
+// Class representing a genre that can contain movies and sub-genres.
+// Client threads read the children while admins add to them, so the child
+// list is copy-on-write and the aggregates are concurrent counters.
+// Every add() copies the child array: loaders build the whole list first
+// and attach it with one setChildren() instead.
 public class Genre extends CatalogComponent {
+    // Size of the per-genre top rated list
+    public static final int TOP_SIZE = 5;
+
+    // Best rating first, then oldest id (same order as the catalog ranking).
+    // Compares rating snapshots, since ratings keep changing while we sort.
+    private static final Comparator<RatingRanking.Entry> TOP_ORDER = (a, b) -> {
+        int byRating = Double.compare(b.rating, a.rating);
+        if (byRating != 0) {
+            return byRating;
+        }
+        return Long.compare(a.movieId, b.movieId);
+    };
+
     private List<CatalogComponent> children; // List to store movies and sub-genres
+    private Map<String, Genre> childGenres; // Direct sub-genres by lower-cased name
+
+    // Aggregates over the whole subtree, updated incrementally when movies
+    // are attached or rated (a change is applied to the ancestor path only)
+    private final AtomicInteger movieCount = new AtomicInteger();
+    private final AtomicInteger genreCount = new AtomicInteger(); // sub-genres at any depth
+    private final LongAdder ratingCount = new LongAdder();
+    private final DoubleAdder ratingSum = new DoubleAdder();
+    private volatile List<Movie> topMovies; // Immutable, replaced under the genre's lock
 
-    // Constructor with name
+    // Set whenever something in this subtree changes, cleared by the
+    // checkpointer before it writes the subtree. New genres start dirty.
+    private volatile boolean dirty = true;
+
+    private MovieStore store; // Movie store of this genre's catalog (shared by the whole tree)
+    private int storeId; // Id used by the movie store's parent column
+
+    // Constructor with name: the root of a new catalog, with a new movie store
     public Genre(String name) {
+        this(name, new MovieStore());
+    }
+
+    // Constructor for a genre of the catalog owning the store (see getStore())
+    public Genre(String name, MovieStore store) {
         super(name);
-        children = new ArrayList<>();
+        this.store = store;
+        storeId = store.registerGenre(this);
+        children = new CopyOnWriteArrayList<>();
+        childGenres = new ConcurrentHashMap<>();
+        topMovies = Collections.emptyList();
     }
 
     // Add a movie or sub-genre to this genre
     public void add(CatalogComponent component) {
+        component.moveTo(store);
         children.add(component);
+        component.setParent(this);
+        if (component instanceof Genre) {
+            childGenres.putIfAbsent(CatalogIndex.key(component.getName()), (Genre) component);
+        }
+        if (index != null) {
+            index.register(component);
+        }
+
+        // Roll the new subtree up into this genre and its ancestors
+        addTotals(component, 1);
+        if (component instanceof Movie) {
+            movieRatingChanged((Movie) component);
+        } else {
+            recomputeTopUpwards();
+        }
     }
 
     // Get all children (movies and sub-genres)
@@ -22,13 +85,245 @@ public class Genre extends CatalogComponent {
         return children;
     }
 
-    // Setter for children (needed for loading data)
+    // Replace all children at once (loaders: one copy instead of one per child)
     public void setChildren(List<CatalogComponent> children) {
-        this.children = children;
+        for (int i = 0; i < this.children.size(); i++) {
+            CatalogComponent old = this.children.get(i);
+            if (index != null) {
+                index.unregister(old);
+            }
+            addTotals(old, -1);
+            old.setParent(null);
+        }
+
+        for (int i = 0; i < children.size(); i++) {
+            children.get(i).moveTo(store);
+        }
+        this.children = new CopyOnWriteArrayList<>(children);
+
+        childGenres = new ConcurrentHashMap<>();
+        for (int i = 0; i < this.children.size(); i++) {
+            CatalogComponent child = this.children.get(i);
+            child.setParent(this);
+            if (child instanceof Genre) {
+                childGenres.putIfAbsent(CatalogIndex.key(child.getName()), (Genre) child);
+            }
+            if (index != null) {
+                index.register(child);
+            }
+            addTotals(child, 1);
+        }
+        recomputeTopUpwards();
+    }
+
+    // Get a direct sub-genre by name (case-insensitive), or null
+    public Genre getChildGenre(String genreName) {
+        return childGenres.get(CatalogIndex.key(genreName));
+    }
+
+    // Number of movies in this genre and all its sub-genres
+    public int getMovieCount() {
+        return movieCount.get();
+    }
+
+    // Number of lines display() prints below this genre (its movies and
+    // sub-genres at any depth), so a page can skip the subtree without walking it
+    public int getDisplayLineCount() {
+        return movieCount.get() + genreCount.get();
+    }
+
+    // Number of ratings given to movies of this subtree
+    public long getTotalRatingCount() {
+        return ratingCount.sum();
+    }
+
+    // Sum of the ratings given to movies of this subtree
+    public double getTotalRatingSum() {
+        return ratingSum.sum();
+    }
+
+    // Average of every rating given in this subtree (0 if none)
+    public double getAverageRating() {
+        long count = ratingCount.sum();
+        return count == 0 ? 0.0 : ratingSum.sum() / count;
+    }
+
+    // Best rated movies of this subtree (at most TOP_SIZE), best first
+    public List<Movie> getTopMovies() {
+        return new ArrayList<>(topMovies);
+    }
+
+    // The movie store of this genre's catalog: movies and genres created for
+    // the catalog are given this store
+    public MovieStore getStore() {
+        return store;
+    }
+
+    int getStoreId() {
+        return storeId;
+    }
+
+    // Join another catalog's store with the whole subtree (only while detached:
+    // the genre is being attached to that catalog)
+    @Override
+    void moveTo(MovieStore target) {
+        if (store == target) {
+            return;
+        }
+        store.releaseGenre(storeId);
+        store = target;
+        storeId = target.registerGenre(this);
+        for (int i = 0; i < children.size(); i++) {
+            CatalogComponent child = children.get(i);
+            child.moveTo(target);
+            child.setParent(this); // the parent column of the new store
+        }
+    }
+
+    // True if this subtree changed since the last clearDirty()
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    // Mark the subtree as saved. Call this before writing it out, so a change
+    // made during the write marks it dirty again.
+    public void clearDirty() {
+        dirty = false;
     }
 
-    // Find a genre by name (recursive search)
+    // Apply a change of subtree totals to this genre and all its ancestors
+    void propagate(int movies, long ratings, double sum) {
+        for (Genre genre = this; genre != null; genre = genre.getParent()) {
+            genre.markDirty();
+            if (movies != 0) {
+                genre.movieCount.addAndGet(movies);
+            }
+            genre.ratingCount.add(ratings);
+            genre.ratingSum.add(sum);
+        }
+    }
+
+    // A movie below this genre was added or re-rated: fix the top lists up the path
+    void movieRatingChanged(Movie movie) {
+        for (Genre genre = this; genre != null; genre = genre.getParent()) {
+            genre.markDirty();
+            genre.updateTop(movie);
+        }
+    }
+
+    // Read before writing, so hot genres that are already dirty don't keep
+    // invalidating the cache line for every rating
+    private void markDirty() {
+        if (!dirty) {
+            dirty = true;
+        }
+    }
+
+    // Add (sign = 1) or remove (sign = -1) a child's totals from the ancestor path
+    private void addTotals(CatalogComponent child, int sign) {
+        if (child instanceof Movie) {
+            Movie movie = (Movie) child;
+            propagate(sign, sign * (long) movie.getRatingCount(), sign * movie.getTotalRatingSum());
+        } else if (child instanceof Genre) {
+            Genre genre = (Genre) child;
+            propagate(sign * genre.getMovieCount(), sign * genre.getTotalRatingCount(), sign * genre.getTotalRatingSum());
+            int genres = sign * (1 + genre.genreCount.get());
+            for (Genre g = this; g != null; g = g.getParent()) {
+                g.genreCount.addAndGet(genres);
+            }
+        }
+    }
+
+    // Keep this genre's top list right after one movie changed
+    private void updateTop(Movie movie) {
+        // Fast path without the lock: an unlisted movie that cannot enter
+        List<Movie> current = topMovies;
+        if (current.size() == TOP_SIZE && !current.contains(movie)
+                && movie.getRating() < current.get(TOP_SIZE - 1).getRating()) {
+            return;
+        }
+
+        synchronized (this) {
+            List<RatingRanking.Entry> entries = snapshot(topMovies);
+            entries.sort(TOP_ORDER);
+            boolean listed = topMovies.contains(movie);
+
+            if (!listed) {
+                // Not listed yet: enter if there is room or it beats the last one
+                RatingRanking.Entry candidate = new RatingRanking.Entry(movie, 0);
+                if (entries.size() < TOP_SIZE) {
+                    entries.add(candidate);
+                } else if (TOP_ORDER.compare(candidate, entries.get(TOP_SIZE - 1)) < 0) {
+                    entries.set(TOP_SIZE - 1, candidate);
+                } else {
+                    return;
+                }
+                entries.sort(TOP_ORDER);
+                topMovies = toMovies(entries);
+                return;
+            }
+
+            topMovies = toMovies(entries);
+
+            // A full list whose last entry dropped may now miss a better outsider
+            if (entries.size() == TOP_SIZE && entries.get(TOP_SIZE - 1).movie == movie) {
+                recomputeTop();
+            }
+        }
+    }
+
+    // Rebuild the top list from direct movies and the sub-genres' top lists
+    private synchronized void recomputeTop() {
+        List<Movie> candidates = new ArrayList<>();
+        for (int i = 0; i < children.size(); i++) {
+            CatalogComponent child = children.get(i);
+            if (child instanceof Movie) {
+                candidates.add((Movie) child);
+            } else if (child instanceof Genre) {
+                candidates.addAll(((Genre) child).topMovies);
+            }
+        }
+
+        List<RatingRanking.Entry> entries = snapshot(candidates);
+        entries.sort(TOP_ORDER);
+        topMovies = toMovies(entries.subList(0, Math.min(TOP_SIZE, entries.size())));
+    }
+
+    // Freeze the current ratings of some movies so they can be sorted safely
+    private static List<RatingRanking.Entry> snapshot(List<Movie> movies) {
+        List<RatingRanking.Entry> entries = new ArrayList<>(movies.size());
+        for (int i = 0; i < movies.size(); i++) {
+            entries.add(new RatingRanking.Entry(movies.get(i), 0));
+        }
+        return entries;
+    }
+
+    private static List<Movie> toMovies(List<RatingRanking.Entry> entries) {
+        List<Movie> movies = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            movies.add(entries.get(i).movie);
+        }
+        return Collections.unmodifiableList(movies);
+    }
+
+    // Rebuild the top lists of this genre and its ancestors
+    private void recomputeTopUpwards() {
+        for (Genre genre = this; genre != null; genre = genre.getParent()) {
+            genre.recomputeTop();
+        }
+    }
+
+    // Find a genre by name anywhere in this subtree.
+    // On the root of an indexed catalog this is a single index lookup.
     public Genre findGenre(String genreName) {
+        if (index != null && index.getRoot() == this) {
+            return index.findGenre(genreName);
+        }
+        return searchGenre(genreName);
+    }
+
+    // Recursive depth-first search, used for detached or non-root genres
+    private Genre searchGenre(String genreName) {
         // Check if this is the genre we're looking for
         if (this.name != null && this.name.equalsIgnoreCase(genreName)) {
             return this;
@@ -40,7 +335,7 @@ public class Genre extends CatalogComponent {
 
             // Only search in sub-genres
             if (child instanceof Genre) {
-                Genre found = ((Genre) child).findGenre(genreName);
+                Genre found = ((Genre) child).searchGenre(genreName);
 
                 if (found != null) {
                     return found;
@@ -57,15 +352,7 @@ public class Genre extends CatalogComponent {
     public void display(StringBuilder sb, int depth) {
         // Skip root genre display
         if (depth > 0) {
-            // Add indentation
-            for (int i = 0; i < depth; i++) {
-                sb.append("   ");
-            }
-
-            // Add "- " prefix for sub-genres
-            sb.append("- ");
-            sb.append(name);
-            sb.append("\n");
+            displayLine(sb, depth);
         }
 
         // Display all children
@@ -74,9 +361,22 @@ public class Genre extends CatalogComponent {
         }
     }
 
-    // Genres don't have ratings
+    // The genre's own line, without its children
+    void displayLine(StringBuilder sb, int depth) {
+        // Add indentation
+        for (int i = 0; i < depth; i++) {
+            sb.append("   ");
+        }
+
+        // Add "- " prefix for sub-genres
+        sb.append("- ");
+        sb.append(name);
+        sb.append("\n");
+    }
+
+        // Genres don't have ratings
     @Override
     public double getRating() {
         return 0.0;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,293 @@
+package com.recomtree.composite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Item-item similarity between movies, from the scores user profiles gave
+// them (UserRatings): the cosine of the two movies' score vectors,
+//   sim(a, b) = sum(score_a * score_b) / (sqrt(sum score_a^2) * sqrt(sum score_b^2))
+// where the first sum runs over the profiles that rated both. Every movie
+// gets a list of its NEIGHBORS most similar movies.
+//
+// The sums are kept up to date incrementally by a background thread, handed
+// the ratings of a profile before and after each change. After a batch of
+// changes it recomputes the lists of the movies involved and publishes them;
+// queries only read published lists, so no similarity is computed on the
+// request path. A list is as fresh as its last recomputation: it is redone
+// whenever its movie, or a movie rated by the same profile in a change, is
+// involved in a batch. Batches start at least PUBLISH_INTERVAL_MS apart, so
+// under a stream of ratings each list is recomputed once per interval
+// instead of once per rating, and lists lag the ratings by about that much.
+//
+// Profiles with more than MAX_PROFILE_RATINGS ratings are left out: each
+// adds a term for every pair of its movies, so their cost grows
+// quadratically while they tell little about which movies go together.
+public class ItemSimilarity {
+    static final int NEIGHBORS = 20;
+    static final int MAX_PROFILE_RATINGS = 1000;
+    private static final int MAX_BATCH = 10_000;
+    private static final long PUBLISH_INTERVAL_MS = 100;
+
+    // A published neighbor list, most similar first
+    public static final class Neighbors {
+        private final long[] movieIds;
+        private final float[] similarities;
+
+        Neighbors(long[] movieIds, float[] similarities) {
+            this.movieIds = movieIds;
+            this.similarities = similarities;
+        }
+
+        public int size() {
+            return movieIds.length;
+        }
+
+        public long movieIdAt(int i) {
+            return movieIds[i];
+        }
+
+        public float similarityAt(int i) {
+            return similarities[i];
+        }
+    }
+
+    // The ratings of one profile before and after a change
+    private static final class Change {
+        final UserRatings.Ratings before;
+        final UserRatings.Ratings after;
+
+        Change(UserRatings.Ratings before, UserRatings.Ratings after) {
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private final LinkedBlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+    private final Map<Long, Neighbors> neighbors = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicInteger unpublished = new AtomicInteger(); // queued or in the batch being applied
+
+    // Used only by the updater thread
+    private final Map<Long, LongDoubleMap> products = new HashMap<>(); // movie -> other movie -> sum of score products
+    private final LongDoubleMap squares = new LongDoubleMap(); // movie -> sum of its squared scores
+    private final Set<Long> dirty = new HashSet<>(); // movies whose list must be recomputed
+
+    ItemSimilarity() {
+    }
+
+    // Called by UserRatings after every change. Changes may arrive in any
+    // order: each one adds (after - before) to the sums, so they add up to
+    // the same totals whatever the order.
+    void changed(UserRatings.Ratings before, UserRatings.Ratings after) {
+        if (counted(before) == counted(after)) {
+            return; // e.g. a profile over the limit
+        }
+        unpublished.incrementAndGet();
+        changes.add(new Change(before, after));
+        if (started.compareAndSet(false, true)) {
+            Thread updater = new Thread(this::updateLoop, "item-similarity");
+            updater.setDaemon(true);
+            updater.start();
+        }
+    }
+
+    // The neighbors of a movie, or null if it has none yet
+    public Neighbors getNeighbors(long movieId) {
+        return neighbors.get(movieId);
+    }
+
+    // Bumped every time recomputed lists are published
+    public long getVersion() {
+        return version.get();
+    }
+
+    // Changes not in the published lists yet: queued, or in the batch the
+    // updater thread is applying
+    public int getPending() {
+        return unpublished.get();
+    }
+
+    // The movies to recommend to a profile, best first: every movie it rated
+    // gives each of its neighbors a vote of similarity x score, and the
+    // movies it has not rated yet with the highest total win
+    public long[] recommend(UserRatings.Ratings rated, int count) {
+        LongDoubleMap votes = new LongDoubleMap(Math.min(rated.size() * NEIGHBORS, 4096));
+        for (int i = 0; i < rated.size(); i++) {
+            Neighbors list = neighbors.get(rated.movieIdAt(i));
+            if (list == null) {
+                continue;
+            }
+            for (int j = 0; j < list.size(); j++) {
+                if (Float.isNaN(rated.scoreOf(list.movieIdAt(j)))) {
+                    votes.add(list.movieIdAt(j), list.similarityAt(j) * rated.scoreAt(i));
+                }
+            }
+        }
+
+        long[] best = new long[count];
+        double[] bestVotes = new double[count];
+        int size = top(votes, best, bestVotes);
+        return Arrays.copyOf(best, size);
+    }
+
+    //==== UPDATER THREAD ====
+    private void updateLoop() {
+        List<Change> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(changes.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            changes.drainTo(batch, MAX_BATCH - 1);
+            int applied = batch.size();
+            for (int i = 0; i < applied; i++) {
+                apply(counted(batch.get(i).before), counted(batch.get(i).after));
+            }
+            batch.clear();
+
+            for (Long movieId : dirty) {
+                publish(movieId);
+            }
+            dirty.clear();
+            version.incrementAndGet();
+            unpublished.addAndGet(-applied);
+
+            // Let the next changes pile up (and share one recomputation)
+            try {
+                Thread.sleep(PUBLISH_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static UserRatings.Ratings counted(UserRatings.Ratings ratings) {
+        return ratings.size() > MAX_PROFILE_RATINGS ? UserRatings.Ratings.EMPTY : ratings;
+    }
+
+    // Add one profile's (after - before) to the sums
+    private void apply(UserRatings.Ratings before, UserRatings.Ratings after) {
+        // Movies whose score changed (a missing score counts as 0), ascending
+        int capacity = before.size() + after.size();
+        long[] changedIds = new long[capacity];
+        double[] oldScores = new double[capacity];
+        double[] newScores = new double[capacity];
+        int changed = 0;
+        int b = 0;
+        int a = 0;
+        while (b < before.size() || a < after.size()) {
+            long beforeId = b < before.size() ? before.movieIdAt(b) : Long.MAX_VALUE;
+            long afterId = a < after.size() ? after.movieIdAt(a) : Long.MAX_VALUE;
+            long id = Math.min(beforeId, afterId);
+            double oldScore = beforeId == id ? before.scoreAt(b++) : 0;
+            double newScore = afterId == id ? after.scoreAt(a++) : 0;
+            if (oldScore != newScore || beforeId != afterId) {
+                changedIds[changed] = id;
+                oldScores[changed] = oldScore;
+                newScores[changed] = newScore;
+                changed++;
+            }
+        }
+
+        for (int i = 0; i < changed; i++) {
+            long m = changedIds[i];
+            squares.add(m, newScores[i] * newScores[i] - oldScores[i] * oldScores[i]);
+            dirty.add(m);
+
+            // Pairs with a movie whose score stayed the same
+            double delta = newScores[i] - oldScores[i];
+            for (int j = 0; j < after.size(); j++) {
+                long other = after.movieIdAt(j);
+                if (Arrays.binarySearch(changedIds, 0, changed, other) < 0) {
+                    addProduct(m, other, delta * after.scoreAt(j));
+                }
+            }
+
+            // Pairs of two changed movies, once each
+            for (int j = i + 1; j < changed; j++) {
+                addProduct(m, changedIds[j], newScores[i] * newScores[j] - oldScores[i] * oldScores[j]);
+            }
+        }
+    }
+
+    private void addProduct(long a, long b, double delta) {
+        products.computeIfAbsent(a, k -> new LongDoubleMap()).add(b, delta);
+        products.computeIfAbsent(b, k -> new LongDoubleMap()).add(a, delta);
+        dirty.add(b);
+    }
+
+    // Recompute and publish the neighbor list of one movie
+    private void publish(long movieId) {
+        LongDoubleMap partners = products.get(movieId);
+        double square = squares.get(movieId);
+        if (partners == null || square <= 0) {
+            neighbors.remove(movieId);
+            return;
+        }
+
+        LongDoubleMap similarities = new LongDoubleMap(partners.size());
+        for (int i = 0; i < partners.capacity(); i++) {
+            long other = partners.keyAt(i);
+            double otherSquare = other == 0 ? 0 : squares.get(other);
+            // Sums go back to ~0 when scores are changed back: skip rounding noise
+            if (otherSquare > 0 && partners.valueAt(i) > 1e-9) {
+                similarities.add(other, partners.valueAt(i) / Math.sqrt(square * otherSquare));
+            }
+        }
+
+        long[] best = new long[NEIGHBORS];
+        double[] bestSimilarities = new double[NEIGHBORS];
+        int size = top(similarities, best, bestSimilarities);
+        if (size == 0) {
+            neighbors.remove(movieId);
+            return;
+        }
+        float[] published = new float[size];
+        for (int i = 0; i < size; i++) {
+            published[i] = (float) bestSimilarities[i];
+        }
+        neighbors.put(movieId, new Neighbors(Arrays.copyOf(best, size), published));
+    }
+
+    // The keys with the highest values (ties: lowest id first), best first,
+    // into ids/values; returns how many were found (at most ids.length)
+    private static int top(LongDoubleMap map, long[] ids, double[] values) {
+        int size = 0;
+        for (int cell = 0; cell < map.capacity(); cell++) {
+            long id = map.keyAt(cell);
+            double value = map.valueAt(cell);
+            if (id == 0 || value <= 0) {
+                continue;
+            }
+            if (size == ids.length && !before(value, id, values[size - 1], ids[size - 1])) {
+                continue;
+            }
+
+            int i = size < ids.length ? size++ : size - 1;
+            while (i > 0 && before(value, id, values[i - 1], ids[i - 1])) {
+                ids[i] = ids[i - 1];
+                values[i] = values[i - 1];
+                i--;
+            }
+            ids[i] = id;
+            values[i] = value;
+        }
+        return size;
+    }
+
+    private static boolean before(double value, long id, double otherValue, long otherId) {
+        return value > otherValue || (value == otherValue && id < otherId);
+    }
+}
@@ -0,0 +1,114 @@
+package com.recomtree.composite;
+
+// Map from movie id to a double, without boxing: open addressing over two
+// primitive arrays, about 16 bytes per entry at most half full instead of
+// some 80 for a HashMap<Long, Double> entry. Key 0 marks an empty cell (movie
+// ids start at 1). Not thread-safe; entries are never removed.
+final class LongDoubleMap {
+    private long[] keys;
+    private double[] values;
+    private int size;
+
+    LongDoubleMap() {
+        this(8);
+    }
+
+    LongDoubleMap(int expected) {
+        int capacity = 8;
+        while (capacity < expected * 2) {
+            capacity *= 2;
+        }
+        keys = new long[capacity];
+        values = new double[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Value of a key, or 0 if it has none
+    double get(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return 0;
+    }
+
+    // Add delta to the value of a key (starting from 0)
+    void add(long key, double delta) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                values[i] += delta;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = delta;
+        size++;
+        if (size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    // Set the value of a key; true if the key was new
+    boolean put(long key, double value) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    // Iteration by cell: for (i = 0; i < capacity(); i++) if (keyAt(i) != 0) ...
+    int capacity() {
+        return keys.length;
+    }
+
+    long keyAt(int cell) {
+        return keys[cell];
+    }
+
+    double valueAt(int cell) {
+        return values[cell];
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        double[] oldValues = values;
+        keys = new long[capacity];
+        values = new double[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != 0) {
+                int i = slot(oldKeys[j], mask);
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
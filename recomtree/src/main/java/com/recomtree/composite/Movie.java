@@ -1,70 +1,191 @@
 package com.recomtree.composite;
 
-// Class for a movie object
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+// Class for a movie object.
+// A Movie is a thin handle: its title, id, parent and the ratings loaded
+// from disk live in the columnar MovieStore of its catalog, under the
+// movie's slot.
+// Ratings can be added from many client threads at once: they go into a
+// lock-free RatingAccumulator, created on the first rating so that movies
+// nobody rates since loading cost no extra objects.
 public class Movie extends CatalogComponent {
-    private double rating;
-    private int ratingCount; // Number of ratings received
-    private double totalRatingSum; // Sum of all ratings for averaging
+    private static final AtomicReferenceFieldUpdater<Movie, RatingRanking.Entry> RANK_ENTRY =
+            AtomicReferenceFieldUpdater.newUpdater(Movie.class, RatingRanking.Entry.class, "rankEntry");
+    private static final AtomicReferenceFieldUpdater<Movie, RatingAccumulator> RATINGS =
+            AtomicReferenceFieldUpdater.newUpdater(Movie.class, RatingAccumulator.class, "ratings");
+    private static final long[] NO_RATINGS = {0, 0};
+
+    private MovieStore store; // Store of the catalog this movie belongs to
+    private int slot; // Position of this movie's fields in the store
+    private volatile RatingAccumulator ratings; // Ratings added since loading, null until the first
+    private volatile RatingRanking.Entry rankEntry; // Current position in the catalog ranking
 
     // Default constructor (needed for saving/loading)
     public Movie() {
-        this.rating = 0.0;
-        this.ratingCount = 0;
-        this.totalRatingSum = 0.0;
+        this(null, 0.0, MovieStore.forOneMovie());
     }
 
-    // Constructor with title only (no initial rating)
+    // Constructor with title only (no initial rating). Until the movie is
+    // attached, its fields live in a one-slot store of its own.
     public Movie(String title) {
-        super(title);
-        this.rating = 0.0;
-        this.ratingCount = 0;
-        this.totalRatingSum = 0.0;
+        this(title, 0.0, MovieStore.forOneMovie());
     }
 
     // Constructor with parameters (for backward compatibility)
     public Movie(String title, double rating) {
-        super(title);
-        this.rating = rating;
-        this.ratingCount = 0;
-        this.totalRatingSum = 0.0;
+        this(title, rating, MovieStore.forOneMovie());
+    }
+
+    // Constructors for a movie of the catalog owning the store (see
+    // Genre.getStore()): loaders use them to skip the one-slot store
+    public Movie(String title, MovieStore store) {
+        this(title, 0.0, store);
+    }
+
+    public Movie(String title, double rating, MovieStore store) {
+        this.store = store;
+        this.slot = store.allocate(title, rating);
+    }
+
+    // Get the title (dictionary-encoded in the store)
+    @Override
+    public String getName() {
+        return store.title(slot);
+    }
+
+    // Get the genre holding this movie (null while detached)
+    @Override
+    public Genre getParent() {
+        return store.parent(slot);
     }
 
-    // Get the rating of the movie
+    @Override
+    void setParent(Genre parent) {
+        store.setParent(slot, parent);
+    }
+
+    // Get the rating of the movie (average of all ratings)
     @Override
     public double getRating() {
-        return rating;
+        return average(totals());
     }
 
     // Get the number of ratings
     public int getRatingCount() {
-        return ratingCount;
+        return (int) (store.ratingCount(slot) + totals()[0]);
     }
 
     // Get the total rating sum
     public double getTotalRatingSum() {
-        return totalRatingSum;
+        return store.ratingSum(slot) + (double) totals()[1] / RatingAccumulator.SCALE;
     }
 
-    // Setter for rating
+    // Get the catalog-wide id (0 until the movie is indexed)
+    public long getId() {
+        return store.id(slot);
+    }
+
+    // Setter for id
+    public void setId(long id) {
+        store.setId(slot, id);
+    }
+
+    // Setter for rating (used while the movie has no counted ratings)
     public void setRating(double rating) {
-        this.rating = rating;
+        store.setRating(slot, rating);
+        ratingChanged();
     }
 
-    // Setter for ratingCount
+    // Setter for ratingCount (ratings loaded from disk)
     public void setRatingCount(int ratingCount) {
-        this.ratingCount = ratingCount;
+        int delta = ratingCount - store.ratingCount(slot);
+        store.setRatingCount(slot, ratingCount);
+        if (getParent() != null) {
+            getParent().propagate(0, delta, 0.0);
+        }
     }
 
-    // Setter for totalRatingSum
+    // Setter for totalRatingSum (ratings loaded from disk)
     public void setTotalRatingSum(double totalRatingSum) {
-        this.totalRatingSum = totalRatingSum;
+        double delta = totalRatingSum - store.ratingSum(slot);
+        store.setRatingSum(slot, totalRatingSum);
+        if (getParent() != null) {
+            getParent().propagate(0, 0, delta);
+        }
     }
 
-    // Add a user rating and update the average
+    // Add a user rating and update the average (safe to call from any thread)
     public void addRating(double userRating) {
-        this.totalRatingSum += userRating;
-        this.ratingCount++;
-        this.rating = this.totalRatingSum / this.ratingCount;
+        accumulator().add(userRating);
+
+        // Only the ancestor path gets the delta
+        if (getParent() != null) {
+            getParent().propagate(0, 1, userRating);
+        }
+        ratingChanged();
+    }
+
+    // Average from one consistent read of the accumulator
+    private double average(long[] totals) {
+        long count = store.ratingCount(slot) + totals[0];
+        if (count == 0) {
+            return store.rating(slot);
+        }
+        return (store.ratingSum(slot) + (double) totals[1] / RatingAccumulator.SCALE) / count;
+    }
+
+    // {count, sum in thousandths} of the ratings added since loading
+    private long[] totals() {
+        RatingAccumulator current = ratings;
+        return current == null ? NO_RATINGS : current.totals();
+    }
+
+    private RatingAccumulator accumulator() {
+        RatingAccumulator current = ratings;
+        if (current == null) {
+            RATINGS.compareAndSet(this, null, new RatingAccumulator());
+            current = ratings;
+        }
+        return current;
+    }
+
+    // Let the genre aggregates and the catalog ranking see the new rating
+    private void ratingChanged() {
+        if (getParent() != null) {
+            getParent().movieRatingChanged(this);
+        }
+        if (index != null) {
+            index.ratingChanged(this);
+        }
+    }
+
+    // Copy this movie's fields into another catalog's store (only while detached:
+    // the movie is being attached to a genre of that catalog)
+    @Override
+    void moveTo(MovieStore target) {
+        if (store == target) {
+            return;
+        }
+        int moved = target.allocate(store.title(slot), store.rating(slot));
+        target.setId(moved, store.id(slot));
+        target.setRatingCount(moved, store.ratingCount(slot));
+        target.setRatingSum(moved, store.ratingSum(slot));
+        store.release(slot);
+        store = target;
+        slot = moved; // the parent is set by the genre attaching the movie
+    }
+
+    RatingRanking.Entry getRankEntry() {
+        return rankEntry;
+    }
+
+    void setRankEntry(RatingRanking.Entry rankEntry) {
+        this.rankEntry = rankEntry;
+    }
+
+    boolean compareAndSetRankEntry(RatingRanking.Entry expected, RatingRanking.Entry entry) {
+        return RANK_ENTRY.compareAndSet(this, expected, entry);
     }
 
     // Display the movie with indentation
@@ -79,12 +200,14 @@ public class Movie extends CatalogComponent {
         sb.append("- ");
 
         // Add movie name
-        sb.append(name);
+        sb.append(getName());
         sb.append(" ");
 
         // Add rating in format "Rating/10 (number of ratings)"
+        long[] totals = totals();
+        long ratingCount = store.ratingCount(slot) + totals[0];
         if (ratingCount > 0) {
-            sb.append(String.format("%.1f", rating));
+            sb.append(String.format("%.1f", average(totals)));
             sb.append("/10 (");
             sb.append(ratingCount);
             sb.append(")");
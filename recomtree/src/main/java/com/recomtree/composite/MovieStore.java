@@ -0,0 +1,256 @@
+package com.recomtree.composite;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+// Columnar storage behind Movie: one primitive array per field instead of
+// fields spread over millions of objects. A Movie is only a thin handle
+// holding its slot number here, so loading a large catalog allocates a few
+// big arrays rather than several small objects per movie, and the GC has
+// (almost) no pointers to follow.
+//
+// Columns are split into chunks of 64K slots, so growing never copies the
+// data already stored. Titles are dictionary-encoded: the title column holds
+// a code, and equal titles share one String.
+//
+// Each catalog has its own store: it is created with the root genre (or by a
+// loader before the root exists) and every genre and movie of the catalog
+// keeps a reference to it, so it goes away with the catalog. A movie made
+// on its own (new Movie(title)) gets a one-slot store of its own until it is
+// attached. Slots and genre ids given up by a node that moves to another
+// catalog are reused; titles stay in the dictionary.
+public final class MovieStore {
+    private static final int CHUNK_BITS = 16;
+
+    // Volatile element access, same visibility as the volatile fields the columns replace
+    private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    // Columns of one chunk of movies
+    private static final class Chunk {
+        final double[] rating;      // rating shown while none is counted
+        final int[] ratingCount;    // ratings loaded from disk
+        final double[] ratingSum;   // sum of the ratings loaded from disk
+        final long[] id;
+        final int[] parent;         // parent genre id + 1 (0 = detached)
+        final int[] title;          // title code + 1 (0 = no title)
+
+        Chunk(int size) {
+            rating = new double[size];
+            ratingCount = new int[size];
+            ratingSum = new double[size];
+            id = new long[size];
+            parent = new int[size];
+            title = new int[size];
+        }
+    }
+
+    private final int chunkBits;
+    private final int chunkMask;
+
+    private volatile Chunk[] chunks = new Chunk[0];
+    private int size; // slots handed out, guarded by this
+    private int[] freeSlots = new int[0]; // slots given back, guarded by this
+    private int freeSlotCount;
+
+    // Genre ids, used by the parent column
+    private volatile Genre[] genres = new Genre[8];
+    private int genreCount; // guarded by this
+    private int[] freeGenreIds = new int[0]; // guarded by this
+    private int freeGenreIdCount;
+
+    // Title dictionary: code -> title, plus an open-addressing table of
+    // code + 1 by hash, so lookups cost no entry objects
+    private volatile String[] dictionary = new String[16];
+    private int dictionarySize; // guarded by this
+    private int[] lookup = new int[32]; // guarded by this
+
+    // An empty store for a new catalog. Small until used: a genre created on
+    // its own gets one, and gives it up when it is attached to a catalog.
+    public MovieStore() {
+        this(CHUNK_BITS);
+    }
+
+    private MovieStore(int chunkBits) {
+        this.chunkBits = chunkBits;
+        this.chunkMask = (1 << chunkBits) - 1;
+    }
+
+    // A store for one movie made on its own: chunks of a single slot
+    static MovieStore forOneMovie() {
+        return new MovieStore(0);
+    }
+
+    // Reserve a slot for a new movie, reusing a given-back one first
+    synchronized int allocate(String title, double rating) {
+        int slot;
+        if (freeSlotCount > 0) {
+            slot = freeSlots[--freeSlotCount];
+        } else {
+            slot = size;
+            Chunk[] current = chunks;
+            if ((slot >>> chunkBits) == current.length) {
+                Chunk[] grown = new Chunk[current.length + 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                grown[current.length] = new Chunk(chunkMask + 1);
+                chunks = grown;
+            }
+            size++;
+        }
+
+        Chunk chunk = chunk(slot);
+        int offset = slot & chunkMask;
+        chunk.rating[offset] = rating;
+        chunk.ratingCount[offset] = 0;
+        chunk.ratingSum[offset] = 0.0;
+        chunk.id[offset] = 0;
+        chunk.parent[offset] = 0;
+        chunk.title[offset] = title == null ? 0 : encode(title) + 1;
+        return slot;
+    }
+
+    // Take back the slot of a movie that moved to another store
+    synchronized void release(int slot) {
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, Math.max(8, freeSlots.length * 2));
+        }
+        freeSlots[freeSlotCount++] = slot;
+    }
+
+    // Give a genre an id for the parent column, reusing a given-back one first
+    synchronized int registerGenre(Genre genre) {
+        if (freeGenreIdCount > 0) {
+            int id = freeGenreIds[--freeGenreIdCount];
+            genres[id] = genre;
+            return id;
+        }
+        if (genreCount == genres.length) {
+            Genre[] grown = new Genre[genres.length * 2];
+            System.arraycopy(genres, 0, grown, 0, genreCount);
+            genres = grown;
+        }
+        genres[genreCount] = genre;
+        return genreCount++;
+    }
+
+    // Take back the id of a genre that moved to another store
+    synchronized void releaseGenre(int id) {
+        genres[id] = null;
+        if (freeGenreIdCount == freeGenreIds.length) {
+            freeGenreIds = Arrays.copyOf(freeGenreIds, Math.max(8, freeGenreIds.length * 2));
+        }
+        freeGenreIds[freeGenreIdCount++] = id;
+    }
+
+    //==== COLUMNS ====
+    String title(int slot) {
+        int code = (int) INTS.getVolatile(chunk(slot).title, slot & chunkMask);
+        return code == 0 ? null : dictionary[code - 1];
+    }
+
+    double rating(int slot) {
+        return (double) DOUBLES.getVolatile(chunk(slot).rating, slot & chunkMask);
+    }
+
+    void setRating(int slot, double rating) {
+        DOUBLES.setVolatile(chunk(slot).rating, slot & chunkMask, rating);
+    }
+
+    int ratingCount(int slot) {
+        return (int) INTS.getVolatile(chunk(slot).ratingCount, slot & chunkMask);
+    }
+
+    void setRatingCount(int slot, int count) {
+        INTS.setVolatile(chunk(slot).ratingCount, slot & chunkMask, count);
+    }
+
+    double ratingSum(int slot) {
+        return (double) DOUBLES.getVolatile(chunk(slot).ratingSum, slot & chunkMask);
+    }
+
+    void setRatingSum(int slot, double sum) {
+        DOUBLES.setVolatile(chunk(slot).ratingSum, slot & chunkMask, sum);
+    }
+
+    long id(int slot) {
+        return (long) LONGS.getVolatile(chunk(slot).id, slot & chunkMask);
+    }
+
+    void setId(int slot, long id) {
+        LONGS.setVolatile(chunk(slot).id, slot & chunkMask, id);
+    }
+
+    Genre parent(int slot) {
+        int genreId = (int) INTS.getVolatile(chunk(slot).parent, slot & chunkMask);
+        return genreId == 0 ? null : genres[genreId - 1];
+    }
+
+    void setParent(int slot, Genre parent) {
+        INTS.setVolatile(chunk(slot).parent, slot & chunkMask, parent == null ? 0 : parent.getStoreId() + 1);
+    }
+
+    // Number of slots in use
+    synchronized int size() {
+        return size - freeSlotCount;
+    }
+
+    // Number of distinct titles in the dictionary
+    synchronized int distinctTitles() {
+        return dictionarySize;
+    }
+
+    private Chunk chunk(int slot) {
+        return chunks[slot >>> chunkBits];
+    }
+
+    //==== TITLE DICTIONARY ====
+    // Code of a title, adding it if it is new (caller holds the lock)
+    private int encode(String title) {
+        int mask = lookup.length - 1;
+        int i = spread(title.hashCode()) & mask;
+        while (lookup[i] != 0) {
+            int code = lookup[i] - 1;
+            if (dictionary[code].equals(title)) {
+                return code;
+            }
+            i = (i + 1) & mask;
+        }
+
+        int code = dictionarySize;
+        if (code == dictionary.length) {
+            String[] grown = new String[dictionary.length * 2];
+            System.arraycopy(dictionary, 0, grown, 0, code);
+            grown[code] = title;
+            dictionary = grown;
+        } else {
+            dictionary[code] = title;
+        }
+        dictionarySize++;
+        lookup[i] = code + 1;
+
+        // Keep the table at most half full
+        if (dictionarySize * 2 > lookup.length) {
+            rehash(lookup.length * 2);
+        }
+        return code;
+    }
+
+    private void rehash(int capacity) {
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+        for (int code = 0; code < dictionarySize; code++) {
+            int i = spread(dictionary[code].hashCode()) & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = code + 1;
+        }
+        lookup = table;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,136 @@
+package com.recomtree.composite;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free accumulator for the ratings of one movie, in the spirit of LongAdder.
+//
+// Every rating is added as one packed long: the count in the high bits and
+// the rating in thousandths of a point (fixed point) in the low bits. A single
+// CAS therefore moves count and sum together, so a reader never sees a count
+// without its matching sum. Uncontended movies use one base cell; the first
+// failed CAS allocates a small padded array of cells that threads spread over.
+class RatingAccumulator {
+    static final long SCALE = 1000; // fixed point: 8.5 is stored as 8500
+    static final double MAX_RATING = 10.0;
+
+    private static final int COUNT_SHIFT = 40;
+    private static final long SUM_MASK = (1L << COUNT_SHIFT) - 1;
+    private static final long MAX_CELL_COUNT = (Long.MAX_VALUE >>> COUNT_SHIFT) - 1;
+    private static final long ONE_RATING = 1L << COUNT_SHIFT;
+
+    // Cells sit 8 longs (one cache line) apart to avoid false sharing
+    private static final int PADDING = 8;
+    private static final int CELL_COUNT = cellCount();
+
+    private final AtomicLong base = new AtomicLong();
+    private volatile AtomicLongArray cells;
+
+    // Used only once a cell is full (millions of ratings in one cell)
+    private volatile boolean overflowed;
+    private long overflowCount;
+    private long overflowSum;
+
+    // Add one rating between 0 and MAX_RATING
+    void add(double rating) {
+        if (!(rating >= 0.0 && rating <= MAX_RATING)) {
+            throw new IllegalArgumentException("Rating must be between 0.0 and " + MAX_RATING);
+        }
+        long delta = ONE_RATING + Math.round(rating * SCALE);
+
+        AtomicLongArray current = cells;
+        if (current == null) {
+            long value = base.get();
+            if (countOf(value) < MAX_CELL_COUNT && base.compareAndSet(value, value + delta)) {
+                return;
+            }
+            current = createCells();
+        }
+
+        // Start from a per-thread slot and move on whenever a CAS loses
+        int hash = threadHash();
+        int fullCells = 0;
+        while (fullCells < CELL_COUNT * 2) {
+            int slot = (hash & (CELL_COUNT - 1)) * PADDING;
+            long value = current.get(slot);
+
+            if (countOf(value) >= MAX_CELL_COUNT) {
+                fullCells++;
+            } else if (current.compareAndSet(slot, value, value + delta)) {
+                return;
+            }
+            hash = hash * 0x9E3779B9 + 1;
+        }
+        addOverflow(delta);
+    }
+
+    // Number of ratings added so far
+    long count() {
+        return totals()[0];
+    }
+
+    // Sum of the ratings added so far, in thousandths of a point
+    long sumFixed() {
+        return totals()[1];
+    }
+
+    // Read count and sum in one pass: {count, sum in thousandths}
+    long[] totals() {
+        long count = 0;
+        long sum = 0;
+
+        long value = base.get();
+        count += countOf(value);
+        sum += value & SUM_MASK;
+
+        AtomicLongArray current = cells;
+        if (current != null) {
+            for (int i = 0; i < CELL_COUNT; i++) {
+                value = current.get(i * PADDING);
+                count += countOf(value);
+                sum += value & SUM_MASK;
+            }
+        }
+
+        if (overflowed) {
+            synchronized (this) {
+                count += overflowCount;
+                sum += overflowSum;
+            }
+        }
+        return new long[] {count, sum};
+    }
+
+    private synchronized void addOverflow(long delta) {
+        overflowCount += countOf(delta);
+        overflowSum += delta & SUM_MASK;
+        overflowed = true;
+    }
+
+    private synchronized AtomicLongArray createCells() {
+        if (cells == null) {
+            cells = new AtomicLongArray(CELL_COUNT * PADDING);
+        }
+        return cells;
+    }
+
+    private static long countOf(long value) {
+        return value >>> COUNT_SHIFT;
+    }
+
+    // Spread thread ids so neighbouring threads land on different cells
+    private static int threadHash() {
+        long id = Thread.currentThread().getId();
+        id = (id ^ (id >>> 33)) * 0xff51afd7ed558ccdL;
+        return (int) (id ^ (id >>> 29));
+    }
+
+    // Power of two, about one cell per core, capped at 16
+    private static int cellCount() {
+        int cells = 1;
+        while (cells < Runtime.getRuntime().availableProcessors() && cells < 16) {
+            cells <<= 1;
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,113 @@
+package com.recomtree.composite;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// All movies of a catalog ordered by rating (highest first, then by id).
+// Kept up to date as movies are added and rated, so reading the top K
+// costs O(log n + offset + K) instead of sorting the whole catalog.
+public class RatingRanking {
+
+    // Immutable sort key. A movie's rating changes over time, so the set
+    // stores a snapshot of it and the movie points at its current entry.
+    // The version keeps two snapshots of the same movie distinct.
+    static final class Entry {
+        final double rating;
+        final long movieId;
+        final long version;
+        final Movie movie;
+
+        Entry(Movie movie, long version) {
+            this.rating = movie.getRating();
+            this.movieId = movie.getId();
+            this.version = version;
+            this.movie = movie;
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = (a, b) -> {
+        int byRating = Double.compare(b.rating, a.rating);
+        if (byRating != 0) {
+            return byRating;
+        }
+        int byId = Long.compare(a.movieId, b.movieId);
+        if (byId != 0) {
+            return byId;
+        }
+        return Long.compare(a.version, b.version);
+    };
+
+    private final NavigableSet<Entry> entries = new ConcurrentSkipListSet<>(ORDER);
+
+    // Get `count` movies starting at position `offset` (0 = best rated)
+    public List<Movie> top(int count, int offset) {
+        List<Movie> result = new ArrayList<>(Math.min(count, 64));
+        Iterator<Entry> iterator = entries.iterator();
+
+        int skipped = 0;
+        while (result.size() < count && iterator.hasNext()) {
+            Entry entry = iterator.next();
+
+            // Skip snapshots already replaced by a concurrent rating
+            if (entry.movie.getRankEntry() != entry) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                result.add(entry.movie);
+            }
+        }
+        return result;
+    }
+
+    // Number of ranked movies (may briefly over-count during concurrent ratings)
+    public int size() {
+        return entries.size();
+    }
+
+    void add(Movie movie) {
+        Entry entry = new Entry(movie, 0);
+        if (movie.compareAndSetRankEntry(null, entry)) {
+            entries.add(entry);
+        }
+    }
+
+    void remove(Movie movie) {
+        Entry entry;
+        do {
+            entry = movie.getRankEntry();
+            if (entry == null) {
+                return;
+            }
+        } while (!movie.compareAndSetRankEntry(entry, null));
+        entries.remove(entry);
+    }
+
+    // Re-position a movie after its rating changed. Lock-free: the movie's
+    // entry is swapped with a CAS, and whoever loses a race cleans up after itself.
+    void update(Movie movie) {
+        while (true) {
+            Entry old = movie.getRankEntry();
+            if (old == null) {
+                return; // not ranked in this catalog
+            }
+
+            Entry fresh = new Entry(movie, old.version + 1);
+            if (movie.compareAndSetRankEntry(old, fresh)) {
+                entries.add(fresh);
+                entries.remove(old);
+
+                // A newer rating may have replaced our entry before we added it
+                if (movie.getRankEntry() != fresh) {
+                    entries.remove(fresh);
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.recomtree.composite;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Who rated what: for every user profile, the score it gave each movie it
+// rated (its latest rating of that movie). Movie.addRating still folds every
+// rating into the movie's average; this is the per-user view the item-item
+// recommendations (ItemSimilarity) are built from.
+//
+// The ratings of a profile are two sorted primitive arrays (movie ids and
+// scores), 12 bytes per rating. They are copy-on-write: a new rating
+// publishes new arrays, so readers never lock and the similarity updater is
+// handed the exact ratings before and after every change. A copy costs at
+// most ItemSimilarity.MAX_PROFILE_RATINGS entries: past that the profile no
+// longer counts for the similarities, and its scores move to a map that is
+// changed in place (amortized O(1) per rating, e.g. for a bulk ingest).
+// Each profile has its own lock, so raters of different profiles never wait
+// for each other.
+public class UserRatings {
+    // The ratings of one profile, never changed once published
+    public static final class Ratings {
+        static final Ratings EMPTY = new Ratings(new long[0], new float[0]);
+
+        private final long[] movieIds; // ascending
+        private final float[] scores;
+
+        Ratings(long[] movieIds, float[] scores) {
+            this.movieIds = movieIds;
+            this.scores = scores;
+        }
+
+        public int size() {
+            return movieIds.length;
+        }
+
+        public long movieIdAt(int i) {
+            return movieIds[i];
+        }
+
+        public float scoreAt(int i) {
+            return scores[i];
+        }
+
+        // Score given to a movie, or NaN if it was not rated
+        public float scoreOf(long movieId) {
+            int i = Arrays.binarySearch(movieIds, movieId);
+            return i >= 0 ? scores[i] : Float.NaN;
+        }
+
+        // A copy of the scores in a map, sorted by movie id
+        static Ratings of(LongDoubleMap map) {
+            long[] ids = new long[map.size()];
+            int n = 0;
+            for (int cell = 0; cell < map.capacity(); cell++) {
+                if (map.keyAt(cell) != 0) {
+                    ids[n++] = map.keyAt(cell);
+                }
+            }
+            Arrays.sort(ids);
+            float[] scores = new float[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                scores[i] = (float) map.get(ids[i]);
+            }
+            return new Ratings(ids, scores);
+        }
+
+        // These ratings with some scores set (the last score of a repeated id wins)
+        Ratings with(long[] ids, float[] newScores) {
+            if (ids.length == 1) {
+                return with(ids[0], newScores[0]);
+            }
+            // Batches and whole profiles read from disk: sort the changes first
+            TreeMap<Long, Float> sorted = new TreeMap<>();
+            for (int i = 0; i < ids.length; i++) {
+                sorted.put(ids[i], newScores[i]);
+            }
+
+            long[] mergedIds = new long[movieIds.length + sorted.size()];
+            float[] mergedScores = new float[mergedIds.length];
+            int n = 0;
+            int i = 0;
+            for (Map.Entry<Long, Float> change : sorted.entrySet()) {
+                long id = change.getKey();
+                while (i < movieIds.length && movieIds[i] < id) {
+                    mergedIds[n] = movieIds[i];
+                    mergedScores[n++] = scores[i++];
+                }
+                if (i < movieIds.length && movieIds[i] == id) {
+                    i++; // replaced
+                }
+                mergedIds[n] = id;
+                mergedScores[n++] = change.getValue();
+            }
+            while (i < movieIds.length) {
+                mergedIds[n] = movieIds[i];
+                mergedScores[n++] = scores[i++];
+            }
+            return new Ratings(Arrays.copyOf(mergedIds, n), Arrays.copyOf(mergedScores, n));
+        }
+
+        private Ratings with(long id, float score) {
+            int i = Arrays.binarySearch(movieIds, id);
+            if (i >= 0) {
+                float[] changed = scores.clone();
+                changed[i] = score;
+                return new Ratings(movieIds, changed);
+            }
+
+            int at = -i - 1;
+            long[] grownIds = new long[movieIds.length + 1];
+            float[] grownScores = new float[grownIds.length];
+            System.arraycopy(movieIds, 0, grownIds, 0, at);
+            System.arraycopy(scores, 0, grownScores, 0, at);
+            grownIds[at] = id;
+            grownScores[at] = score;
+            System.arraycopy(movieIds, at, grownIds, at + 1, movieIds.length - at);
+            System.arraycopy(scores, at, grownScores, at + 1, scores.length - at);
+            return new Ratings(grownIds, grownScores);
+        }
+    }
+
+    // The ratings of one profile: published Ratings while small, a map once large
+    private static final class Profile {
+        private volatile Ratings small = Ratings.EMPTY; // null once large
+        private LongDoubleMap large; // guarded by the profile
+
+        // The ratings right now (a copy once large)
+        Ratings snapshot() {
+            Ratings current = small;
+            if (current != null) {
+                return current;
+            }
+            synchronized (this) {
+                return Ratings.of(large);
+            }
+        }
+    }
+
+    private final Map<String, Profile> users = new ConcurrentHashMap<>();
+    private final ItemSimilarity similarity; // told about every change
+    private final AtomicLong ratingCount = new AtomicLong();
+
+    UserRatings(ItemSimilarity similarity) {
+        this.similarity = similarity;
+    }
+
+    // Record the score a profile gave one movie
+    public void rate(String user, long movieId, float score) {
+        rate(user, new long[] {movieId}, new float[] {score});
+    }
+
+    // Record several scores of one profile as one change
+    public void rate(String user, long[] movieIds, float[] scores) {
+        Profile profile = users.computeIfAbsent(user, k -> new Profile());
+        Ratings before = null; // set while the profile counts for the similarities
+        Ratings after = null;
+        int added = 0;
+        synchronized (profile) {
+            if (profile.large == null) {
+                before = profile.small;
+                after = before.with(movieIds, scores);
+                added = after.size() - before.size();
+                if (after.size() > ItemSimilarity.MAX_PROFILE_RATINGS) {
+                    LongDoubleMap large = new LongDoubleMap(after.size());
+                    for (int i = 0; i < after.size(); i++) {
+                        large.put(after.movieIdAt(i), after.scoreAt(i));
+                    }
+                    profile.large = large;
+                    profile.small = null;
+                } else {
+                    profile.small = after;
+                }
+            } else {
+                for (int i = 0; i < movieIds.length; i++) {
+                    if (profile.large.put(movieIds[i], scores[i])) {
+                        added++;
+                    }
+                }
+            }
+        }
+        ratingCount.addAndGet(added);
+        if (before != null) {
+            similarity.changed(before, after);
+        }
+    }
+
+    // The ratings of a profile (empty if it rated nothing)
+    public Ratings get(String user) {
+        Profile profile = users.get(user);
+        return profile == null ? Ratings.EMPTY : profile.snapshot();
+    }
+
+    // Every profile with its ratings at this moment, e.g. to save them
+    public Map<String, Ratings> getAll() {
+        Map<String, Ratings> all = new HashMap<>();
+        for (Map.Entry<String, Profile> user : users.entrySet()) {
+            all.put(user.getKey(), user.getValue().snapshot());
+        }
+        return Collections.unmodifiableMap(all);
+    }
+
+    public int getUserCount() {
+        return users.size();
+    }
+
+    // Number of (profile, movie) scores kept
+    public long getRatingCount() {
+        return ratingCount.get();
+    }
+}
@@ -0,0 +1,196 @@
+package com.recomtree.logging;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous logger: request threads drop events into a lock-free ring and
+// return immediately; one background thread formats them and writes whole
+// batches to the console and/or a log file.
+//
+// - events below the minimum level are rejected before any string is built
+// - each level can be sampled (keep 1 event out of N)
+// - when the ring is full the event is dropped and counted, never waited on
+// - an idle writer sleeps until a producer wakes it, instead of polling
+public class AsyncLogger {
+    private static final int BATCH_SIZE = 512;
+    // Backstop only: producers unpark the sleeping writer
+    private static final long IDLE_PARK_NANOS = 100_000_000L; // 100 ms
+    private static final DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    private final LogRingBuffer ring;
+    private final LogLevel minimumLevel;
+    private final int[] sampleRates = new int[LogLevel.values().length];
+    private final boolean console;
+    private final Writer file;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final StringBuilder batch = new StringBuilder();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    private final AtomicBoolean sleeping = new AtomicBoolean(); // writer parked on an empty ring
+    private long reportedDrops;
+
+    // capacity: ring size; filePath: null for console only
+    public AsyncLogger(int capacity, LogLevel minimumLevel, boolean console, String filePath) throws IOException {
+        this.ring = new LogRingBuffer(capacity);
+        this.minimumLevel = minimumLevel;
+        this.console = console;
+        this.file = filePath == null ? null : new BufferedWriter(new FileWriter(filePath, true), 64 * 1024);
+        for (int i = 0; i < sampleRates.length; i++) {
+            sampleRates[i] = 1;
+        }
+
+        this.writerThread = new Thread(this::writeLoop, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // Keep only 1 out of every `rate` events of this level (1 = keep all)
+    public void setSampleRate(LogLevel level, int rate) {
+        sampleRates[level.ordinal()] = Math.max(1, rate);
+    }
+
+    // Check before building an expensive message
+    public boolean isEnabled(LogLevel level) {
+        return level.compareTo(minimumLevel) >= 0;
+    }
+
+    public void debug(String message) {
+        log(LogLevel.DEBUG, message);
+    }
+
+    public void info(String message) {
+        log(LogLevel.INFO, message);
+    }
+
+    public void warn(String message) {
+        log(LogLevel.WARN, message);
+    }
+
+    public void error(String message) {
+        log(LogLevel.ERROR, message);
+    }
+
+    // Queue one event; never blocks the caller
+    public void log(LogLevel level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+
+        int rate = sampleRates[level.ordinal()];
+        if (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0) {
+            sampledOut.increment();
+            return;
+        }
+
+        if (!ring.offer(System.currentTimeMillis(), level, message)) {
+            dropped.increment();
+            return;
+        }
+
+        // Only the first event after the writer went idle pays for the unpark
+        if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    // Number of events dropped because the ring was full
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    // Number of events skipped by sampling
+    public long getSampledOutCount() {
+        return sampledOut.sum();
+    }
+
+    // Stop the writer thread after everything queued so far has been written
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to close log file: " + e.getMessage());
+        }
+    }
+
+    // Background loop: drain the ring in batches, sleep when it is empty
+    private void writeLoop() {
+        while (true) {
+            int drained = ring.drain(this::append, BATCH_SIZE);
+            reportDrops();
+            writeBatch();
+
+            if (drained == 0) {
+                if (!running) {
+                    return;
+                }
+                // Announce the sleep, then look again: an event published
+                // before the announcement is seen here, and the producer of
+                // one published after it sees the flag and unparks us
+                sleeping.set(true);
+                if (ring.isEmpty() && running) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                sleeping.set(false);
+            }
+        }
+    }
+
+    // Format one event into the current batch (runs on the writer thread)
+    private void append(long timestamp, LogLevel level, String message) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault());
+        batch.append('[').append(time.format(timeFormatter)).append("] ");
+        if (level != LogLevel.INFO) {
+            batch.append(level).append(' ');
+        }
+        batch.append(message).append(System.lineSeparator());
+    }
+
+    // Mention drops in the log itself, at most once per batch
+    private void reportDrops() {
+        long total = dropped.sum();
+        if (total != reportedDrops) {
+            append(System.currentTimeMillis(), LogLevel.WARN,
+                   "Logger dropped " + (total - reportedDrops) + " events (ring full)");
+            reportedDrops = total;
+        }
+    }
+
+    private void writeBatch() {
+        if (batch.length() == 0) {
+            return;
+        }
+        if (console) {
+            System.out.print(batch);
+        }
+        if (file != null) {
+            try {
+                file.append(batch);
+                file.flush();
+            } catch (IOException e) {
+                System.err.println("Failed to write log file: " + e.getMessage());
+            }
+        }
+        batch.setLength(0);
+    }
+}
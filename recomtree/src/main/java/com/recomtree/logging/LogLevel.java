@@ -0,0 +1,9 @@
+package com.recomtree.logging;
+
+// Severity of a log line, from the most to the least verbose
+public enum LogLevel {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR
+}
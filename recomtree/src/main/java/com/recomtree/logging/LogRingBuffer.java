@@ -0,0 +1,100 @@
+package com.recomtree.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded lock-free ring buffer for log events: many producers, one consumer.
+// Each slot carries a sequence number; producers claim a position with a CAS
+// on the tail and publish the slot by advancing its sequence, so nobody ever
+// waits on a lock. When the ring is full, offer() fails instead of blocking.
+class LogRingBuffer {
+
+    // Preallocated slot, reused for every lap around the ring
+    static class Slot {
+        long timestamp;
+        LogLevel level;
+        String message;
+    }
+
+    private final Slot[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(0);
+    private long head; // only touched by the consumer thread
+
+    LogRingBuffer(int capacity) {
+        // Round up to a power of two so positions map to slots with a mask
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Slot[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    // Try to publish an event; returns false when the ring is full
+    boolean offer(long timestamp, LogLevel level, String message) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    Slot slot = slots[index];
+                    slot.timestamp = timestamp;
+                    slot.level = level;
+                    slot.message = message;
+                    // A full volatile write, not lazySet: the caller then
+                    // checks whether the consumer went to sleep, and that read
+                    // must not move ahead of the publication
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false; // consumer has not freed this slot yet
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    // Hand up to max published events to the consumer, in order; returns how many
+    int drain(Consumer consumer, int max) {
+        int drained = 0;
+        while (drained < max) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                break; // next slot not published yet
+            }
+
+            Slot slot = slots[index];
+            consumer.accept(slot.timestamp, slot.level, slot.message);
+            slot.message = null;
+            sequences.lazySet(index, head + slots.length);
+            head++;
+            drained++;
+        }
+        return drained;
+    }
+
+    // True when the next event is not published yet (consumer thread only)
+    boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+    // Callback used by drain() so slots never escape the buffer
+    interface Consumer {
+        void accept(long timestamp, LogLevel level, String message);
+    }
+}
@@ -0,0 +1,242 @@
+package com.recomtree.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// CPU time and allocated bytes of every command, read from the JVM's
+// per-thread counters (ThreadMXBean) around the execution, on the thread
+// that runs it. Kept two ways:
+//   totals         per command and role, since start
+//   top requests   the most expensive single requests (e.g. one
+//                  LIST_SUBTREE genre), by CPU and by allocation,
+//                  since start or the last resetTop()
+//
+// Reading both counters takes well under a microsecond. Where the JVM
+// cannot measure a thread (e.g. virtual threads) nothing is recorded.
+public class CommandCosts {
+    private static final int TOP = 10;
+    private static final int MAX_REQUEST_LENGTH = 80;
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    // Totals of one command run by one role
+    private static class Totals {
+        final String command;
+        final String role;
+        final LongAdder count = new LongAdder();
+        final LongAdder cpuNanos = new LongAdder();
+        final LongAdder allocatedBytes = new LongAdder();
+
+        Totals(String command, String role) {
+            this.command = command;
+            this.role = role;
+        }
+    }
+
+    // One expensive request
+    private static class Request {
+        final String text;
+        final String role;
+        final long cpuNanos;
+        final long allocatedBytes;
+
+        Request(String text, String role, long cpuNanos, long allocatedBytes) {
+            this.text = text;
+            this.role = role;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    // The TOP largest values offered, largest first. Most requests are
+    // turned away by the threshold without taking the lock.
+    private static class TopRequests {
+        private final Request[] requests = new Request[TOP];
+        private final long[] values = new long[TOP];
+        private int size;
+        private volatile long threshold; // smallest value kept, once full
+
+        void offer(long value, String text, String role, long cpuNanos, long allocatedBytes) {
+            if (value <= threshold) {
+                return;
+            }
+            synchronized (this) {
+                if (size == TOP && value <= values[TOP - 1]) {
+                    return;
+                }
+                int i = size < TOP ? size++ : TOP - 1;
+                while (i > 0 && values[i - 1] < value) {
+                    requests[i] = requests[i - 1];
+                    values[i] = values[i - 1];
+                    i--;
+                }
+                if (text.length() > MAX_REQUEST_LENGTH) {
+                    text = text.substring(0, MAX_REQUEST_LENGTH) + "...";
+                }
+                requests[i] = new Request(text, role, cpuNanos, allocatedBytes);
+                values[i] = value;
+                if (size == TOP) {
+                    threshold = values[TOP - 1];
+                }
+            }
+        }
+
+        synchronized List<Request> get() {
+            List<Request> copy = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                copy.add(requests[i]);
+            }
+            return copy;
+        }
+
+        synchronized void clear() {
+            for (int i = 0; i < size; i++) {
+                requests[i] = null;
+                values[i] = 0;
+            }
+            size = 0;
+            threshold = 0;
+        }
+    }
+
+    private final Map<String, Map<String, Totals>> totals = new ConcurrentHashMap<>(); // command -> role -> totals
+    private final TopRequests topCpu = new TopRequests();
+    private final TopRequests topAllocated = new TopRequests();
+
+    // The extended bean of HotSpot-based JVMs, with the counters switched on,
+    // or null when this JVM cannot measure threads
+    private static com.sun.management.ThreadMXBean threadBean() {
+        try {
+            if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+                return null;
+            }
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (!threads.isCurrentThreadCpuTimeSupported() || !threads.isThreadAllocatedMemorySupported()) {
+                return null;
+            }
+            threads.setThreadCpuTimeEnabled(true);
+            threads.setThreadAllocatedMemoryEnabled(true);
+            return threads;
+        } catch (UnsupportedOperationException | SecurityException e) {
+            return null;
+        }
+    }
+
+    // CPU time used so far by the current thread, in nanoseconds, or -1
+    public static long threadCpuTime() {
+        return THREADS == null ? -1 : THREADS.getCurrentThreadCpuTime();
+    }
+
+    // Bytes allocated so far by the current thread, or -1
+    public static long threadAllocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    // Record one command from the counter values read before and after it.
+    // The request text is only kept (shortened) when it makes a top list.
+    public void record(String command, String role, String request,
+                       long cpuBefore, long cpuAfter, long allocatedBefore, long allocatedAfter) {
+        if (cpuBefore < 0 || cpuAfter < 0 || allocatedBefore < 0 || allocatedAfter < 0) {
+            return;
+        }
+        long cpuNanos = Math.max(0, cpuAfter - cpuBefore);
+        long allocatedBytes = Math.max(0, allocatedAfter - allocatedBefore);
+
+        Map<String, Totals> roles = totals.get(command);
+        if (roles == null) {
+            roles = totals.computeIfAbsent(command, k -> new ConcurrentHashMap<>());
+        }
+        Totals t = roles.get(role);
+        if (t == null) {
+            t = roles.computeIfAbsent(role, k -> new Totals(command, role));
+        }
+        t.count.increment();
+        t.cpuNanos.add(cpuNanos);
+        t.allocatedBytes.add(allocatedBytes);
+
+        topCpu.offer(cpuNanos, request, role, cpuNanos, allocatedBytes);
+        topAllocated.offer(allocatedBytes, request, role, cpuNanos, allocatedBytes);
+    }
+
+    // Forget the top requests (e.g. the slow first runs before the JIT
+    // compiled the code); the totals are kept
+    public void resetTop() {
+        topCpu.clear();
+        topAllocated.clear();
+    }
+
+    // Table of the totals per command and role, then both top lists
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        if (THREADS == null) {
+            sb.append("Command costs: this JVM cannot measure thread CPU time and allocations\n");
+            return sb.toString();
+        }
+        sb.append("Command costs (CPU time and bytes allocated by the thread running the command)\n");
+
+        List<Totals> rows = rows();
+        rows.sort((a, b) -> Long.compare(b.cpuNanos.sum(), a.cpuNanos.sum()));
+        if (rows.isEmpty()) {
+            sb.append("  (no commands)\n");
+        } else {
+            sb.append(String.format("  %-17s %-6s %8s %12s %10s %14s %12s\n",
+                    "COMMAND", "ROLE", "COUNT", "CPU ms", "CPU us/cmd", "ALLOC KB", "ALLOC B/cmd"));
+            for (int i = 0; i < rows.size(); i++) {
+                Totals t = rows.get(i);
+                long count = t.count.sum();
+                long cpu = t.cpuNanos.sum();
+                long allocated = t.allocatedBytes.sum();
+                sb.append(String.format("  %-17s %-6s %8d %12.1f %10d %14d %12d\n",
+                        t.command, t.role, count, cpu / 1e6, count == 0 ? 0 : cpu / count / 1000,
+                        allocated / 1024, count == 0 ? 0 : allocated / count));
+            }
+        }
+
+        sb.append("\nTop requests by CPU time:\n");
+        appendTop(sb, topCpu.get());
+        sb.append("\nTop requests by bytes allocated:\n");
+        appendTop(sb, topAllocated.get());
+        return sb.toString();
+    }
+
+    private static void appendTop(StringBuilder sb, List<Request> requests) {
+        if (requests.isEmpty()) {
+            sb.append("  (none)\n");
+            return;
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            Request r = requests.get(i);
+            sb.append(String.format("  %2d. %8d us %12d B  %-6s %s\n",
+                    i + 1, r.cpuNanos / 1000, r.allocatedBytes, r.role, r.text));
+        }
+    }
+
+    private List<Totals> rows() {
+        List<Totals> rows = new ArrayList<>();
+        for (Map<String, Totals> roles : totals.values()) {
+            rows.addAll(roles.values());
+        }
+        return rows;
+    }
+
+    // The totals as counters, for the Prometheus endpoint
+    public void export(PrometheusWriter out) {
+        List<Totals> rows = rows();
+        rows.sort((a, b) -> a.command.equals(b.command) ? a.role.compareTo(b.role) : a.command.compareTo(b.command));
+
+        out.family("recomtree_command_cpu_seconds_total", "counter", "CPU time used running commands, by command and role");
+        for (int i = 0; i < rows.size(); i++) {
+            Totals t = rows.get(i);
+            out.sample("recomtree_command_cpu_seconds_total", t.cpuNanos.sum() / 1e9, "command", t.command, "role", t.role);
+        }
+        out.family("recomtree_command_allocated_bytes_total", "counter", "Bytes allocated running commands, by command and role");
+        for (int i = 0; i < rows.size(); i++) {
+            Totals t = rows.get(i);
+            out.sample("recomtree_command_allocated_bytes_total", t.allocatedBytes.sum(), "command", t.command, "role", t.role);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.recomtree.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder event for one command run by the CommandInvoker.
+// Record with e.g.
+//   java -XX:StartFlightRecording=filename=recomtree.jfr,settings=profile ...
+// and look for "RecomTree" in JDK Mission Control or `jfr print --events
+// com.recomtree.Command recomtree.jfr`. Without a recording the event is
+// never committed and its fields are never filled in.
+@Name("com.recomtree.Command")
+@Label("Command")
+@Category({"RecomTree", "Commands"})
+@Description("A command executed for a client")
+@StackTrace(false)
+public class CommandEvent extends jdk.jfr.Event {
+    @Label("Command")
+    public String command;
+
+    @Label("Role")
+    public String role;
+
+    @Label("Result Size")
+    @Description("Length of the response text, in characters")
+    public int resultSize;
+}
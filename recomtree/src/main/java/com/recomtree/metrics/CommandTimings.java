@@ -0,0 +1,145 @@
+package com.recomtree.metrics;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Latency of every command, split in its phases, and the size of its responses:
+//   parse    from the request line to the command being known
+//   execute  running the command (the response is built)
+//   write    from the response being built to its flush reaching the socket
+//            (pipelined responses flushed together end at the same time)
+//   bytes    size of the response as written
+//
+// Two sets are kept: since start, and the current interval. rotate() (called
+// every interval, or by METRICS RESET) keeps the finished interval as a
+// snapshot and starts an empty one, so a regression shows up without being
+// diluted by everything recorded since the server started.
+public class CommandTimings {
+    // Unknown command names are all counted as OTHER past this many names
+    private static final int MAX_COMMANDS = 64;
+    private static final String OTHER = "OTHER";
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    // The four histograms of one command
+    private static class Phases {
+        final LatencyHistogram parse = new LatencyHistogram();
+        final LatencyHistogram execute = new LatencyHistogram();
+        final LatencyHistogram write = new LatencyHistogram();
+        final LatencyHistogram bytes = new LatencyHistogram();
+
+        void record(long parseNanos, long executeNanos, long writeNanos, long responseBytes) {
+            parse.record(parseNanos);
+            execute.record(executeNanos);
+            write.record(writeNanos);
+            bytes.recordValue(responseBytes);
+        }
+    }
+
+    // Histograms of all commands over one period of time
+    private static class Period {
+        final Map<String, Phases> commands = new ConcurrentHashMap<>();
+        final LocalTime start = LocalTime.now();
+        volatile LocalTime end; // null while running
+
+        Phases phases(String command) {
+            Phases phases = commands.get(command);
+            if (phases != null) {
+                return phases;
+            }
+            if (commands.size() >= MAX_COMMANDS) {
+                command = OTHER;
+            }
+            return commands.computeIfAbsent(command, k -> new Phases());
+        }
+    }
+
+    private final Period total = new Period();
+    private volatile Period current = new Period();
+    private volatile Period last; // null until the first rotation
+
+    // Record one answered command (times in nanoseconds)
+    public void record(String command, long parseNanos, long executeNanos, long writeNanos, long responseBytes) {
+        total.phases(command).record(parseNanos, executeNanos, writeNanos, responseBytes);
+        current.phases(command).record(parseNanos, executeNanos, writeNanos, responseBytes);
+    }
+
+    // End the current interval: it becomes the last snapshot
+    public synchronized void rotate() {
+        Period finished = current;
+        current = new Period();
+        finished.end = LocalTime.now();
+        last = finished;
+    }
+
+    // Table of p50/p99/max per command and phase, since start and for the
+    // last finished interval. Times are in microseconds.
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Command latencies in microseconds (p50/p99/max), response sizes in bytes\n");
+        sb.append("\nSince start (").append(total.start.format(TIME)).append("):\n");
+        appendTable(sb, total);
+
+        Period snapshot = last;
+        sb.append("\nLast interval");
+        if (snapshot == null) {
+            sb.append(": none finished yet\n");
+        } else {
+            sb.append(" (").append(snapshot.start.format(TIME)).append(" - ").append(snapshot.end.format(TIME)).append("):\n");
+            appendTable(sb, snapshot);
+        }
+        return sb.toString();
+    }
+
+    // The since-start histograms, for the Prometheus endpoint
+    public void export(PrometheusWriter out) {
+        List<String> names = new ArrayList<>(total.commands.keySet());
+        Collections.sort(names);
+
+        out.family("recomtree_command_duration_seconds", "histogram",
+                "Time spent per command and phase (parse, execute, write)");
+        for (int i = 0; i < names.size(); i++) {
+            Phases phases = total.commands.get(names.get(i));
+            exportPhase(out, names.get(i), "parse", phases.parse);
+            exportPhase(out, names.get(i), "execute", phases.execute);
+            exportPhase(out, names.get(i), "write", phases.write);
+        }
+
+        out.family("recomtree_response_bytes", "histogram", "Size of the responses per command");
+        for (int i = 0; i < names.size(); i++) {
+            out.histogram("recomtree_response_bytes", total.commands.get(names.get(i)).bytes,
+                    PrometheusWriter.BYTE_BOUNDS, 1, "command", names.get(i));
+        }
+    }
+
+    private static void exportPhase(PrometheusWriter out, String command, String phase, LatencyHistogram histogram) {
+        out.histogram("recomtree_command_duration_seconds", histogram, PrometheusWriter.LATENCY_BOUNDS_MICROS,
+                PrometheusWriter.MICROS_PER_SECOND, "command", command, "phase", phase);
+    }
+
+    private static void appendTable(StringBuilder sb, Period period) {
+        if (period.commands.isEmpty()) {
+            sb.append("  (no commands)\n");
+            return;
+        }
+        sb.append(String.format("  %-17s %8s  %-17s %-17s %-17s %s\n",
+                "COMMAND", "COUNT", "PARSE", "EXECUTE", "WRITE", "BYTES"));
+
+        List<String> names = new ArrayList<>(period.commands.keySet());
+        Collections.sort(names);
+        for (int i = 0; i < names.size(); i++) {
+            Phases phases = period.commands.get(names.get(i));
+            sb.append(String.format("  %-17s %8d  %-17s %-17s %-17s %s\n",
+                    names.get(i), phases.execute.getCount(), summary(phases.parse), summary(phases.execute),
+                    summary(phases.write), summary(phases.bytes)));
+        }
+    }
+
+    private static String summary(LatencyHistogram histogram) {
+        return histogram.getPercentile(50) + "/" + histogram.getPercentile(99) + "/" + histogram.getMax();
+    }
+}
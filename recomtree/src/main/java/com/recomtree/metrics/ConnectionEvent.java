@@ -0,0 +1,26 @@
+package com.recomtree.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder event spanning one client connection, from accept
+// to disconnect (see CommandEvent for how to record)
+@Name("com.recomtree.Connection")
+@Label("Connection")
+@Category({"RecomTree", "Connections"})
+@Description("A client connection, from accept to disconnect")
+@StackTrace(false)
+public class ConnectionEvent extends jdk.jfr.Event {
+    @Label("Client")
+    public String client;
+
+    @Label("Role")
+    @Description("Role of the client when it disconnected")
+    public String role;
+
+    @Label("Requests")
+    public int requests;
+}
@@ -0,0 +1,135 @@
+package com.recomtree.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Histogram of latencies in microseconds, safe to record from many threads.
+// Buckets are log-linear: every power of two is split into 32 equal buckets,
+// so any percentile is reported at most about 3% too high, whatever the
+// range. 1024 counters cover 1 microsecond to about 19 hours, in 8 KB.
+// Recording allocates nothing. recordValue() takes values in other units
+// (e.g. response sizes in bytes); the getters then answer in that unit.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 1024;
+    private static final long MAX_VALUE = (1L << 36) - 1; // larger values go in the last bucket
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // Record one latency, given in nanoseconds (kept in microseconds)
+    public void record(long nanos) {
+        recordValue(nanos / 1000);
+    }
+
+    // Record one value as it is
+    public void recordValue(long value) {
+        value = Math.min(Math.max(value, 0), MAX_VALUE);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        total.add(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    // Add everything recorded by another histogram
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.add(other.count.sum());
+        total.add(other.total.sum());
+
+        long otherMax = other.max.get();
+        long current = max.get();
+        while (otherMax > current && !max.compareAndSet(current, otherMax)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    // Largest value recorded (microseconds for latencies)
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0.0 : (double) total.sum() / n;
+    }
+
+    // Sum of all recorded values (microseconds for latencies)
+    public long getTotal() {
+        return total.sum();
+    }
+
+    // Number of values at or below each bound (bounds in increasing order),
+    // followed by the number of all values, from one pass over the buckets.
+    // A bucket counts for a bound when all its values are at or below it.
+    public long[] getCumulativeCounts(long[] bounds) {
+        long[] cumulative = new long[bounds.length + 1];
+        int next = 0;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            while (next < bounds.length && highestValue(i) > bounds[next]) {
+                cumulative[next++] = seen;
+            }
+            seen += counts.get(i);
+        }
+        while (next < bounds.length) {
+            cumulative[next++] = seen;
+        }
+        cumulative[bounds.length] = seen;
+        return cumulative;
+    }
+
+    // Value (microseconds for latencies) that "percent" percent of the
+    // recordings do not exceed, e.g. 99.9. Returns the top of the bucket,
+    // never more than the max.
+    public long getPercentile(double percent) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percent / 100.0 * n));
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // Bucket of a value: below 64 every value has its own bucket, above that
+    // the value keeps its top 6 bits (shift = how many low bits are dropped)
+    private static int bucket(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (int) (shift * SUB_BUCKETS + (value >>> shift));
+    }
+
+    // Largest value that falls in a bucket
+    private static long highestValue(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long top = bucket - (long) shift * SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
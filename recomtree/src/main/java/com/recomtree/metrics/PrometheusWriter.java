@@ -0,0 +1,119 @@
+package com.recomtree.metrics;
+
+// Builds a page in the Prometheus text exposition format (version 0.0.4):
+//   # HELP name text
+//   # TYPE name counter|gauge|histogram|summary
+//   name{label="value"} 42
+// Call family() once per metric name, then sample() or histogram() for each
+// label set, so all lines of a metric stay together as the format requires.
+public class PrometheusWriter {
+    // Histogram buckets for latencies recorded in microseconds (50 us to 10 s)
+    public static final long[] LATENCY_BOUNDS_MICROS = {
+        50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+        100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000
+    };
+    public static final double MICROS_PER_SECOND = 1_000_000.0;
+
+    // Histogram buckets for sizes in bytes (64 B to 16 MB)
+    public static final long[] BYTE_BOUNDS = {
+        64, 256, 1024, 4096, 16_384, 65_536, 262_144, 1_048_576, 4_194_304, 16_777_216
+    };
+    private final StringBuilder sb = new StringBuilder(16 * 1024);
+
+    // Start a metric: its help line and type
+    public PrometheusWriter family(String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    // One value; labels are name, value, name, value, ...
+    public PrometheusWriter sample(String name, double value, String... labels) {
+        sb.append(name);
+        appendLabels(labels, null, null);
+        sb.append(' ');
+        appendNumber(value);
+        sb.append('\n');
+        return this;
+    }
+
+    // The _bucket, _sum and _count lines of a histogram. The histogram's
+    // values are divided by "divisor" to get the exported unit (for example
+    // 1e6 to export microsecond latencies in seconds).
+    public PrometheusWriter histogram(String name, LatencyHistogram histogram, long[] bounds, double divisor,
+                                      String... labels) {
+        long[] cumulative = histogram.getCumulativeCounts(bounds);
+        for (int i = 0; i < bounds.length; i++) {
+            sb.append(name).append("_bucket");
+            appendLabels(labels, "le", number(bounds[i] / divisor));
+            sb.append(' ').append(cumulative[i]).append('\n');
+        }
+        long count = cumulative[bounds.length];
+        sb.append(name).append("_bucket");
+        appendLabels(labels, "le", "+Inf");
+        sb.append(' ').append(count).append('\n');
+
+        sb.append(name).append("_sum");
+        appendLabels(labels, null, null);
+        sb.append(' ');
+        appendNumber(histogram.getTotal() / divisor);
+        sb.append('\n');
+
+        sb.append(name).append("_count");
+        appendLabels(labels, null, null);
+        sb.append(' ').append(count).append('\n');
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+
+    private void appendLabels(String[] labels, String extraName, String extraValue) {
+        if (labels.length == 0 && extraName == null) {
+            return;
+        }
+        sb.append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendLabel(labels[i], labels[i + 1]);
+        }
+        if (extraName != null) {
+            if (labels.length > 0) {
+                sb.append(',');
+            }
+            appendLabel(extraName, extraValue);
+        }
+        sb.append('}');
+    }
+
+    private void appendLabel(String name, String value) {
+        sb.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private void appendNumber(double value) {
+        sb.append(number(value));
+    }
+
+    // Whole numbers without ".0", everything else as Java prints doubles
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,36 @@
+package com.recomtree.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder event for a whole snapshot being saved or loaded
+// (see CommandEvent for how to record)
+@Name("com.recomtree.Snapshot")
+@Label("Snapshot")
+@Category({"RecomTree", "Persistence"})
+@Description("The catalog saved to or loaded from a snapshot")
+@StackTrace(false)
+public class SnapshotEvent extends jdk.jfr.Event {
+    @Label("Operation")
+    @Description("save or load")
+    public String operation;
+
+    @Label("Format")
+    @Description("Snapshot format, or the loader used")
+    public String format;
+
+    @Label("Nodes")
+    @Description("Genres and movies in the catalog")
+    public long nodes;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
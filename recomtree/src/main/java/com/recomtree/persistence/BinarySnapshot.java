@@ -0,0 +1,223 @@
+package com.recomtree.persistence;
+
+import com.recomtree.composite.CatalogComponent;
+import com.recomtree.composite.Genre;
+import com.recomtree.composite.Movie;
+import com.recomtree.composite.MovieStore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Compact binary snapshot of the catalog (catalog_data.bin).
+//
+// Layout, all numbers big-endian:
+//   header:  magic "RTBS", format version, walSegment, string count, genre count, movie count
+//   strings: every distinct genre name, then every movie title, each as
+//            a byte length followed by UTF-8 bytes
+//   tree:    pre-order; a genre is GENRE, name index, child count, children;
+//            a movie is MOVIE, name index, id, rating, rating count, rating sum
+//   footer:  CRC32 of everything before it
+//
+// Loading maps the file and checks the CRC before building anything.
+class BinarySnapshot {
+    static final int MAGIC = 0x52544253; // "RTBS"
+    static final int VERSION = 1;
+
+    private static final byte GENRE = 1;
+    private static final byte MOVIE = 2;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 4 + 4;
+
+    private final Genre root;
+    private final int walSegment;
+
+    private BinarySnapshot(Genre root, int walSegment) {
+        this.root = root;
+        this.walSegment = walSegment;
+    }
+
+    // The catalog read from the file (not indexed yet)
+    Genre getRoot() {
+        return root;
+    }
+
+    // First log segment not contained in the snapshot
+    int getWalSegment() {
+        return walSegment;
+    }
+
+    //==== WRITE ====
+    // Write the tree to a stream. Genre names are shared through the string
+    // table; titles are nearly always unique, so they are stored in tree order
+    // without a lookup map (which would cost more memory than it saves).
+    static void write(Genre root, int walSegment, OutputStream target) throws IOException {
+        write(CatalogCopy.of(root), walSegment, target);
+    }
+
+    // Same, from a copy taken at a cut of the log
+    static void write(CatalogCopy tree, int walSegment, OutputStream target) throws IOException {
+        // Pass 1: distinct genre names and the number of movies
+        Map<String, Integer> genreNames = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        int genres = 0;
+        int movies = 0;
+        for (int node = 0; node < tree.size(); node++) {
+            if (tree.isMovie(node)) {
+                movies++;
+            } else {
+                genres++;
+                if (!genreNames.containsKey(tree.name(node))) {
+                    genreNames.put(tree.name(node), names.size());
+                    names.add(tree.name(node));
+                }
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        CheckedOutputStream checked = new CheckedOutputStream(target, crc);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 1 << 20));
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(walSegment);
+        out.writeInt(names.size() + movies);
+        out.writeInt(genres);
+        out.writeInt(movies);
+
+        // Pass 2: the string table
+        for (int i = 0; i < names.size(); i++) {
+            writeString(out, names.get(i));
+        }
+        for (int node = 0; node < tree.size(); node++) {
+            if (tree.isMovie(node)) {
+                writeString(out, tree.name(node));
+            }
+        }
+
+        // Pass 3: the tree (the copy is already in pre-order), movie titles
+        // numbered in the same order as pass 2
+        int nextTitle = names.size();
+        for (int node = 0; node < tree.size(); node++) {
+            if (tree.isMovie(node)) {
+                out.writeByte(MOVIE);
+                out.writeInt(nextTitle++);
+                out.writeLong(tree.id(node));
+                out.writeDouble(tree.rating(node));
+                out.writeInt(tree.ratingCount(node));
+                out.writeDouble(tree.ratingSum(node));
+            } else {
+                out.writeByte(GENRE);
+                out.writeInt(genreNames.get(tree.name(node)));
+                out.writeInt(tree.childCount(node));
+            }
+        }
+
+        out.flush();
+        new DataOutputStream(target).writeInt((int) crc.getValue());
+        target.flush();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    //==== READ ====
+    // Map the file, verify it and build the tree
+    static BinarySnapshot read(Path file) throws IOException {
+        return read(file, new MovieStore());
+    }
+
+    // Same, into the store of the catalog the file is a part of
+    static BinarySnapshot read(Path file, MovieStore store) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Binary snapshot is larger than 2 GB and cannot be mapped");
+            }
+            if (size < HEADER_BYTES + 4) {
+                throw new IOException("Binary snapshot is truncated");
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            // Checksum over everything but the footer
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buffer.duplicate();
+            body.limit((int) size - 4);
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt((int) size - 4)) {
+                throw new IOException("Binary snapshot checksum mismatch");
+            }
+
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a binary catalog snapshot");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary snapshot version " + version);
+            }
+            int walSegment = buffer.getInt();
+            int stringCount = buffer.getInt();
+            buffer.getInt(); // genre count (informational)
+            buffer.getInt(); // movie count (informational)
+
+            String[] strings = new String[stringCount];
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < stringCount; i++) {
+                int length = buffer.getInt();
+                if (length > scratch.length) {
+                    scratch = new byte[Math.max(length, scratch.length * 2)];
+                }
+                buffer.get(scratch, 0, length);
+                strings[i] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+
+            if (buffer.get() != GENRE) {
+                throw new IOException("Binary snapshot root is not a genre");
+            }
+            Genre root = readGenre(buffer, strings, store);
+            return new BinarySnapshot(root, walSegment);
+        }
+    }
+
+    // Read a genre whose tag has already been consumed
+    private static Genre readGenre(ByteBuffer buffer, String[] strings, MovieStore store) throws IOException {
+        Genre genre = new Genre(strings[buffer.getInt()], store);
+        int childCount = buffer.getInt();
+
+        // Attached in one go once read (see Genre.setChildren)
+        List<CatalogComponent> children = new ArrayList<>(childCount);
+        for (int i = 0; i < childCount; i++) {
+            byte tag = buffer.get();
+            if (tag == GENRE) {
+                children.add(readGenre(buffer, strings, store));
+            } else if (tag == MOVIE) {
+                String title = strings[buffer.getInt()];
+                long id = buffer.getLong();
+                double rating = buffer.getDouble();
+
+                Movie movie = new Movie(title, rating, store);
+                movie.setId(id);
+                movie.setRatingCount(buffer.getInt());
+                movie.setTotalRatingSum(buffer.getDouble());
+                children.add(movie);
+            } else {
+                throw new IOException("Corrupt binary snapshot: unknown node type " + tag);
+            }
+        }
+        genre.setChildren(children);
+        return genre;
+    }
+}
@@ -0,0 +1,117 @@
+package com.recomtree.persistence;
+
+import com.recomtree.composite.CatalogComponent;
+import com.recomtree.composite.Genre;
+import com.recomtree.composite.Movie;
+
+import java.util.Arrays;
+import java.util.List;
+
+// A copy of a catalog subtree (names and rating totals) taken at a cut of
+// the mutation log. Snapshots and checkpoints are encoded and written from
+// the copy after the cut, so mutations only wait for the copy, not for the
+// encoding and the disk.
+//
+// Nodes are stored in tree order: a genre, then each of its children (and
+// their own children) in turn. Only genres and movies are copied.
+final class CatalogCopy {
+    private static final int MOVIE = -1; // in childCounts
+
+    private String[] names;
+    private int[] childCounts; // genres: number of children, movies: MOVIE
+    private long[] ids;
+    private double[] ratings;
+    private int[] ratingCounts;
+    private double[] ratingSums;
+    private int size;
+
+    private CatalogCopy(int capacity) {
+        names = new String[capacity];
+        childCounts = new int[capacity];
+        ids = new long[capacity];
+        ratings = new double[capacity];
+        ratingCounts = new int[capacity];
+        ratingSums = new double[capacity];
+    }
+
+    // Copy a genre and everything below it (call it inside cut())
+    static CatalogCopy of(Genre genre) {
+        CatalogCopy copy = new CatalogCopy(genre.getDisplayLineCount() + 1);
+        copy.add(genre);
+        return copy;
+    }
+
+    private void add(Genre genre) {
+        int node = next();
+        names[node] = genre.getName();
+
+        List<CatalogComponent> children = genre.getChildren();
+        int count = 0;
+        for (int i = 0; i < children.size(); i++) {
+            CatalogComponent child = children.get(i);
+            if (child instanceof Genre) {
+                add((Genre) child);
+                count++;
+            } else if (child instanceof Movie) {
+                Movie movie = (Movie) child;
+                int m = next();
+                names[m] = movie.getName();
+                childCounts[m] = MOVIE;
+                ids[m] = movie.getId();
+                ratings[m] = movie.getRating();
+                ratingCounts[m] = movie.getRatingCount();
+                ratingSums[m] = movie.getTotalRatingSum();
+                count++;
+            }
+        }
+        childCounts[node] = count;
+    }
+
+    // Take the next node, growing the arrays if the tree was larger than expected
+    private int next() {
+        if (size == names.length) {
+            int capacity = names.length * 2 + 16;
+            names = Arrays.copyOf(names, capacity);
+            childCounts = Arrays.copyOf(childCounts, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            ratings = Arrays.copyOf(ratings, capacity);
+            ratingCounts = Arrays.copyOf(ratingCounts, capacity);
+            ratingSums = Arrays.copyOf(ratingSums, capacity);
+        }
+        return size++;
+    }
+
+    //==== NODES (0 is the copied genre) ====
+    int size() {
+        return size;
+    }
+
+    boolean isMovie(int node) {
+        return childCounts[node] == MOVIE;
+    }
+
+    String name(int node) {
+        return names[node];
+    }
+
+    // Number of children of a genre
+    int childCount(int node) {
+        return childCounts[node];
+    }
+
+    long id(int node) {
+        return ids[node];
+    }
+
+    double rating(int node) {
+        return ratings[node];
+    }
+
+    int ratingCount(int node) {
+        return ratingCounts[node];
+    }
+
+    double ratingSum(int node) {
+        return ratingSums[node];
+    }
+}
@@ -0,0 +1,283 @@
+package com.recomtree.persistence;
+
+import com.recomtree.composite.CatalogComponent;
+import com.recomtree.composite.Genre;
+import com.recomtree.composite.Movie;
+import com.recomtree.composite.UserRatings;
+import com.recomtree.logging.AsyncLogger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Background thread that saves only the parts of the catalog that changed.
+//
+// The catalog is split by top-level genre: each one lives in its own file in
+// catalog_checkpoint/, and manifest.json lists them in order (movies placed
+// directly under the root are stored in the manifest itself). A checkpoint
+// rewrites the files of dirty genres under new names, then publishes a new
+// manifest with an atomic rename, so a crash always leaves one complete,
+// consistent checkpoint. The manifest records the log segment it starts from,
+// exactly like a full snapshot, and older log segments are deleted afterwards.
+public class Checkpointer {
+    static final String DIRECTORY = "catalog_checkpoint";
+    static final String MANIFEST = "manifest.json";
+
+    private final Genre root;
+    private final TreePersistence.Format format;
+    private final long intervalMs;
+    private final AsyncLogger logger;
+
+    // Top-level genre -> file holding its last checkpoint (checkpointer thread only)
+    private final Map<Genre, String> files = new IdentityHashMap<>();
+    private int checkpoints;
+    private int sequence; // number of the last checkpoint started, kept across restarts
+    private int partsWritten;
+    private volatile boolean failed; // retry even if nothing changed since
+
+    private Thread thread;
+
+    public Checkpointer(Genre root, TreePersistence.Format format, long intervalSeconds, AsyncLogger logger) {
+        this.root = root;
+        this.format = format;
+        this.intervalMs = intervalSeconds * 1000;
+        this.logger = logger;
+        this.sequence = TreePersistence.getRestoredCheckpoint();
+
+        // Genres loaded from the last checkpoint and unchanged since are not rewritten
+        files.putAll(TreePersistence.getRestoredParts());
+    }
+
+    // Start checkpointing every interval in a daemon thread
+    public void start() {
+        thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (root.isDirty() || failed) {
+                    checkpoint();
+                }
+            }
+        }, "checkpointer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stop the background thread and write a final checkpoint
+    public void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        checkpoint();
+    }
+
+    // Write the dirty top-level genres and a new manifest
+    public synchronized void checkpoint() {
+        long start = System.nanoTime();
+        List<CatalogCopy> pendingParts = new ArrayList<>();
+        List<String> pendingFiles = new ArrayList<>();
+        Map<Genre, String> current = new IdentityHashMap<>();
+        int number = ++sequence; // even if this one fails, its files are never reused
+
+        try {
+            Files.createDirectories(Paths.get(DIRECTORY));
+
+            // Decide everything at one cut of the log: no mutation runs meanwhile.
+            // Dirty genres are only copied here; they are encoded and written
+            // out after the cut.
+            List<Map<String, UserRatings.Ratings>> users = new ArrayList<>(); // taken at the cut
+            JSONObject manifest = TreePersistence.cut(segment -> {
+                users.add(TreePersistence.userRatingsOf(root));
+                JSONObject json = new JSONObject();
+                json.put("walSegment", segment);
+                json.put("checkpoint", number);
+                json.put("name", root.getName());
+                json.put("format", format.name().toLowerCase());
+                root.clearDirty();
+
+                JSONArray children = new JSONArray();
+                List<CatalogComponent> rootChildren = root.getChildren();
+                for (int i = 0; i < rootChildren.size(); i++) {
+                    CatalogComponent child = rootChildren.get(i);
+
+                    if (child instanceof Movie) {
+                        children.put(TreePersistence.movieToJson((Movie) child));
+                    } else if (child instanceof Genre) {
+                        Genre genre = (Genre) child;
+                        String file = files.get(genre);
+
+                        if (file == null || genre.isDirty()) {
+                            genre.clearDirty();
+                            file = partName(i, segment, number);
+                            pendingParts.add(CatalogCopy.of(genre));
+                            pendingFiles.add(file);
+                        }
+                        current.put(genre, file);
+
+                        JSONObject part = new JSONObject();
+                        part.put("type", "part");
+                        part.put("file", file);
+                        children.put(part);
+                    }
+                }
+                json.put("children", children);
+                return json;
+            });
+
+            int segment = manifest.getInt("walSegment");
+            for (int i = 0; i < pendingParts.size(); i++) {
+                writePart(pendingFiles.get(i), pendingParts.get(i), segment);
+            }
+
+            TreePersistence.saveUserRatings(users.get(0));
+
+            // Publishing the manifest switches to the new checkpoint
+            TreePersistence.writeAtomically(DIRECTORY + File.separator + MANIFEST,
+                    out -> out.write(manifest.toString(2).getBytes(StandardCharsets.UTF_8)));
+
+            files.clear();
+            files.putAll(current);
+            deleteUnreferencedParts();
+            TreePersistence.deleteLogSegmentsBefore(segment);
+
+            failed = false;
+            checkpoints++;
+            partsWritten += pendingParts.size();
+            PersistenceMetrics.checkpointFinished(System.nanoTime() - start);
+            logger.info("Checkpoint " + checkpoints + ": " + pendingParts.size() + " of " +
+                    files.size() + " top-level genre(s) written in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            checkpointFailed(e);
+        }
+    }
+
+    // Dirty flags were already cleared: rewrite everything next time
+    private void checkpointFailed(IOException e) {
+        logger.error("Checkpoint failed: " + e.getMessage());
+        PersistenceMetrics.checkpointFailed();
+        files.clear();
+        failed = true;
+    }
+
+    public synchronized int getCheckpointCount() {
+        return checkpoints;
+    }
+
+    public synchronized int getPartsWritten() {
+        return partsWritten;
+    }
+
+    // Part files carry the segment and the checkpoint they were written at.
+    // The checkpoint number always grows (the segment does not without the
+    // mutation log), so a new version never overwrites the file the live
+    // manifest still points to.
+    private String partName(int position, int segment, int number) {
+        String extension = format == TreePersistence.Format.BINARY ? ".bin" : ".json";
+        return "genre-" + position + "-" + segment + "-" + number + extension;
+    }
+
+    private void writePart(String file, CatalogCopy genre, int segment) throws IOException {
+        String path = DIRECTORY + File.separator + file;
+        if (format == TreePersistence.Format.BINARY) {
+            TreePersistence.writeAtomically(path, out -> BinarySnapshot.write(genre, segment, out));
+        } else {
+            String text = TreePersistence.genreToJson(genre, segment).toString(2);
+            TreePersistence.writeAtomically(path, out -> out.write(text.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    // Remove part files the new manifest no longer lists
+    private void deleteUnreferencedParts() {
+        Set<String> referenced = new HashSet<>(files.values());
+        File[] existing = new File(DIRECTORY).listFiles();
+        if (existing == null) {
+            return;
+        }
+        for (File f : existing) {
+            if (f.getName().startsWith("genre-") && !referenced.contains(f.getName())) {
+                if (!f.delete()) {
+                    logger.warn("Could not delete old checkpoint file " + f);
+                }
+            }
+        }
+    }
+
+    //==== LOAD ====
+    // The manifest of the last checkpoint (may not exist)
+    static File manifestFile() {
+        return new File(DIRECTORY, MANIFEST);
+    }
+
+    // A catalog rebuilt from a checkpoint, not indexed yet
+    static final class Restored {
+        final Genre root;
+        final int walSegment;
+        final int checkpoint; // number of the checkpoint
+        final Map<Genre, String> parts = new IdentityHashMap<>(); // top-level genre -> its file
+
+        Restored(Genre root, int walSegment, int checkpoint) {
+            this.root = root;
+            this.walSegment = walSegment;
+            this.checkpoint = checkpoint;
+        }
+    }
+
+    // Rebuild the catalog from the manifest and its part files
+    static Restored read() throws IOException {
+        Path directory = Paths.get(DIRECTORY);
+        String content = new String(Files.readAllBytes(directory.resolve(MANIFEST)), StandardCharsets.UTF_8);
+        JSONObject manifest = new JSONObject(content);
+
+        Restored restored = new Restored(new Genre(manifest.getString("name")), manifest.getInt("walSegment"),
+                manifest.optInt("checkpoint", 0));
+        Genre root = restored.root;
+        JSONArray children = manifest.getJSONArray("children");
+        List<CatalogComponent> parts = new ArrayList<>(children.length());
+        for (int i = 0; i < children.length(); i++) {
+            JSONObject child = children.getJSONObject(i);
+            String type = child.getString("type");
+
+            if ("part".equals(type)) {
+                Path part = directory.resolve(child.getString("file"));
+                Genre genre;
+                if (part.toString().endsWith(".bin")) {
+                    genre = BinarySnapshot.read(part, root.getStore()).getRoot();
+                } else {
+                    genre = JsonCatalogReader.open(part, root.getStore()).readCatalog();
+                }
+                parts.add(genre);
+                restored.parts.put(genre, child.getString("file"));
+            } else if ("movie".equals(type)) {
+                parts.add(TreePersistence.jsonToMovie(child, root.getStore()));
+            }
+        }
+        root.setChildren(parts);
+
+        // Identical to their files
+        for (Genre genre : restored.parts.keySet()) {
+            genre.clearDirty();
+        }
+        root.clearDirty();
+        return restored;
+    }
+}
@@ -0,0 +1,358 @@
+package com.recomtree.persistence;
+
+import com.recomtree.composite.CatalogComponent;
+import com.recomtree.composite.Genre;
+import com.recomtree.composite.Movie;
+import com.recomtree.composite.MovieStore;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Pull parser for catalog_data.json that builds Genre/Movie nodes while it
+// reads, in a single pass over a buffered stream. Unlike the org.json DOM
+// path it never holds the whole file as a String nor a tree of JSONObjects,
+// so peak memory is about the catalog itself.
+//
+// It accepts exactly what TreePersistence writes (keys in any order; org.json
+// puts "children" before "name") and skips keys it does not know.
+class JsonCatalogReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader in;
+    private final MovieStore store; // of the catalog being read
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private long offset; // chars consumed before the buffer, for error messages
+    private final StringBuilder text = new StringBuilder(64);
+
+    private int walSegment; // "walSegment" of the root object, 0 if absent
+
+    private JsonCatalogReader(Reader in, MovieStore store) {
+        this.in = in;
+        this.store = store;
+    }
+
+    // Read a whole catalog file; the result has not been indexed yet
+    static JsonCatalogReader open(Path file) throws IOException {
+        return open(file, new MovieStore());
+    }
+
+    // Read a file holding part of a catalog, into that catalog's store
+    static JsonCatalogReader open(Path file, MovieStore store) throws IOException {
+        return new JsonCatalogReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8), store);
+    }
+
+    // Parse the root genre and close the file
+    Genre readCatalog() throws IOException {
+        try {
+            CatalogComponent root = readComponent(true);
+            if (!(root instanceof Genre)) {
+                throw error("the root object is not a genre");
+            }
+            skipWhitespace();
+            if (peek() != -1) {
+                throw error("unexpected data after the root object");
+            }
+            return (Genre) root;
+        } finally {
+            in.close();
+        }
+    }
+
+    // First log segment not contained in the file (valid after readCatalog)
+    int getWalSegment() {
+        return walSegment;
+    }
+
+    // Read one {"type": ..., "name": ..., ...} object. Children are built
+    // first and attached once the genre's name is known.
+    private CatalogComponent readComponent(boolean isRoot) throws IOException {
+        expect('{');
+
+        String type = null;
+        String name = null;
+        long id = 0;
+        double rating = 0.0;
+        boolean hasRating = false;
+        int ratingCount = -1;
+        double totalRatingSum = Double.NaN;
+        List<CatalogComponent> children = null;
+
+        skipWhitespace();
+        if (peek() == '}') {
+            next();
+        } else {
+            while (true) {
+                String key = readString();
+                expect(':');
+
+                switch (key) {
+                    case "type":
+                        type = readString();
+                        break;
+                    case "name":
+                        name = readString();
+                        break;
+                    case "id":
+                        id = (long) readNumber();
+                        break;
+                    case "rating":
+                        rating = readNumber();
+                        hasRating = true;
+                        break;
+                    case "ratingCount":
+                        ratingCount = (int) readNumber();
+                        break;
+                    case "totalRatingSum":
+                        totalRatingSum = readNumber();
+                        break;
+                    case "walSegment":
+                        if (isRoot) {
+                            walSegment = (int) readNumber();
+                        } else {
+                            skipValue();
+                        }
+                        break;
+                    case "children":
+                        children = readChildren();
+                        break;
+                    default:
+                        skipValue();
+                        break;
+                }
+
+                skipWhitespace();
+                int c = next();
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',') {
+                    throw error("expected ',' or '}'");
+                }
+            }
+        }
+
+        if (name == null) {
+            throw error("object without a name");
+        }
+
+        // The root is a genre whatever its type says (as in the DOM loader)
+        if (isRoot || "genre".equals(type)) {
+            Genre genre = new Genre(name, store);
+            if (children != null) {
+                genre.setChildren(children);
+            }
+            return genre;
+        }
+
+        if ("movie".equals(type)) {
+            if (!hasRating) {
+                throw error("movie '" + name + "' has no rating");
+            }
+            Movie movie = new Movie(name, rating, store);
+            movie.setId(id);
+            if (ratingCount >= 0) {
+                movie.setRatingCount(ratingCount);
+            }
+            if (!Double.isNaN(totalRatingSum)) {
+                movie.setTotalRatingSum(totalRatingSum);
+            }
+            return movie;
+        }
+
+        return null; // unknown type: ignored, like the DOM loader does
+    }
+
+    private List<CatalogComponent> readChildren() throws IOException {
+        List<CatalogComponent> children = new ArrayList<>();
+        expect('[');
+
+        skipWhitespace();
+        if (peek() == ']') {
+            next();
+            return children;
+        }
+
+        while (true) {
+            CatalogComponent child = readComponent(false);
+            if (child != null) {
+                children.add(child);
+            }
+
+            skipWhitespace();
+            int c = next();
+            if (c == ']') {
+                return children;
+            }
+            if (c != ',') {
+                throw error("expected ',' or ']'");
+            }
+        }
+    }
+
+    //==== TOKENS ====
+    private String readString() throws IOException {
+        expect('"');
+        text.setLength(0);
+
+        while (true) {
+            int c = next();
+            if (c == '"') {
+                return text.toString();
+            }
+            if (c == -1) {
+                throw error("unterminated string");
+            }
+            if (c != '\\') {
+                text.append((char) c);
+                continue;
+            }
+
+            c = next();
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    text.append((char) c);
+                    break;
+                case 'b':
+                    text.append('\b');
+                    break;
+                case 'f':
+                    text.append('\f');
+                    break;
+                case 'n':
+                    text.append('\n');
+                    break;
+                case 'r':
+                    text.append('\r');
+                    break;
+                case 't':
+                    text.append('\t');
+                    break;
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(next(), 16);
+                        if (digit < 0) {
+                            throw error("bad \\u escape");
+                        }
+                        code = code * 16 + digit;
+                    }
+                    text.append((char) code);
+                    break;
+                default:
+                    throw error("bad escape");
+            }
+        }
+    }
+
+    private double readNumber() throws IOException {
+        skipWhitespace();
+        text.setLength(0);
+
+        while (true) {
+            int c = peek();
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                text.append((char) next());
+            } else {
+                break;
+            }
+        }
+
+        if (text.length() == 0) {
+            throw error("expected a number");
+        }
+        try {
+            return Double.parseDouble(text.toString());
+        } catch (NumberFormatException e) {
+            throw error("bad number '" + text + "'");
+        }
+    }
+
+    // Skip a value of any kind (for keys this reader doesn't use)
+    private void skipValue() throws IOException {
+        skipWhitespace();
+        int c = peek();
+
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            // Skip to the matching bracket, stepping over strings
+            int depth = 0;
+            do {
+                c = peek();
+                if (c == '"') {
+                    readString();
+                    continue;
+                }
+                next();
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                } else if (c == -1) {
+                    throw error("unterminated value");
+                }
+            } while (depth > 0);
+        } else if (c == 't' || c == 'f' || c == 'n') {
+            while (Character.isLetter(peek())) {
+                next();
+            }
+        } else {
+            readNumber();
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        skipWhitespace();
+        if (next() != expected) {
+            throw error("expected '" + expected + "'");
+        }
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                position++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private int next() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        offset += limit;
+        position = 0;
+        limit = in.read(buffer, 0, buffer.length);
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private IOException error(String message) {
+        return new IOException("Invalid catalog JSON at character " + (offset + position) + ": " + message);
+    }
+}
@@ -0,0 +1,668 @@
+package com.recomtree.persistence;
+
+import com.recomtree.composite.CatalogComponent;
+import com.recomtree.composite.Genre;
+import com.recomtree.composite.Movie;
+import com.recomtree.logging.LogLevel;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+
+// Append-only log of catalog mutations (new movies and ratings), written
+// between two snapshots so a crash loses at most the last unsynced batch.
+//
+// The log is split into numbered segments (catalog_data.wal.1, .2, ...).
+// A snapshot remembers the first segment it does NOT contain; loading reads
+// the snapshot and replays that segment and every later one.
+//
+// Client threads only append records to an in-memory batch. A single writer
+// thread turns each batch into one write and, depending on the fsync policy,
+// one fsync shared by every record of the batch (group commit).
+//
+// When a write or fsync fails, the records that were not on disk yet are
+// marked as failed (awaitDurable throws for them) and the segment is cut
+// back to its last complete record, so a torn record never hides the good
+// records written after it.
+public class MutationLog {
+    // When records are forced to disk
+    public enum FsyncPolicy {
+        ALWAYS,   // every batch; mutating commands wait until their record is on disk
+        INTERVAL, // at most once per fsync interval; commands don't wait
+        NEVER     // left to the operating system
+    }
+
+    private static final byte ADD = 1;
+    private static final byte RATE = 2;
+    private static final byte RATE_BY = 3; // a rating together with the profile that gave it
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+
+    // One logged mutation
+    private static final class Record {
+        final byte type;
+        final long movieId;
+        final String path;
+        final String title;
+        final double rating;
+        final String user;
+
+        Record(byte type, long movieId, String path, String title, double rating, String user) {
+            this.type = type;
+            this.movieId = movieId;
+            this.path = path;
+            this.title = title;
+            this.rating = rating;
+            this.user = user;
+        }
+    }
+
+    // Marker telling the writer to continue in the next segment
+    private static final Record ROTATE = new Record((byte) 0, 0, null, null, 0, null);
+
+    private final Path directory;
+    private final String baseName;
+    private final FsyncPolicy policy;
+    private final long fsyncIntervalMs;
+
+    // Mutations hold the read side while they change the tree and append
+    // their record; compaction takes the write side for an exact cut.
+    private final ReentrantReadWriteLock cutLock = new ReentrantReadWriteLock();
+
+    // Guarded by `this`
+    private List<Record> pending = new ArrayList<>();
+    private long appendedLsn;
+    private long durableLsn;
+    private int segment;
+    private long recordsInSegment;
+    private boolean closed;
+    private final NavigableMap<Long, Long> failedLsns = new TreeMap<>(); // first -> last of each failed range
+    private String lastError;
+
+    // Commands waiting in awaitDurable park on this condition, not on the
+    // monitor: a virtual thread blocked in Object.wait() pins its carrier.
+    // The writer signals it after every batch and on close().
+    private final ReentrantLock durableLock = new ReentrantLock();
+    private final Condition durableChanged = durableLock.newCondition();
+
+    // Used only by the writer thread
+    private DataOutputStream out;       // null while the segment cannot be opened
+    private FileOutputStream file;
+    private int writtenSegment;
+    private long segmentBytes;          // bytes of the records handed to `out`
+    private long flushedBytes;          // bytes of whole records written to the file
+    private boolean broken;             // the file may end with a partial record
+    private String lastWriterError;     // why it is broken
+    private long lastSync = System.currentTimeMillis();
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final CRC32 crc = new CRC32();
+
+    private final Thread writer;
+
+    // Open a new segment for appending (segments are never appended to after a restart)
+    MutationLog(Path directory, String baseName, int segment, FsyncPolicy policy, long fsyncIntervalMs)
+            throws IOException {
+        this.directory = directory;
+        this.baseName = baseName;
+        this.segment = segment;
+        this.policy = policy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        openSegment(segment);
+        if (broken) {
+            throw new IOException(lastWriterError);
+        }
+
+        writer = new Thread(this::writeLoop, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Run an in-memory change together with the logging of its record(s), so
+    // a compaction never sees the change without its record or the reverse.
+    // Returns the log sequence number of the last record appended.
+    public long apply(LongSupplier change) {
+        cutLock.readLock().lock();
+        try {
+            return change.getAsLong();
+        } finally {
+            cutLock.readLock().unlock();
+        }
+    }
+
+    // Record a movie attached under a genre path ("action/superhero")
+    public long logAdd(long movieId, String genrePath, String title, double initialRating) {
+        return append(new Record(ADD, movieId, genrePath, title, initialRating, null));
+    }
+
+    // Record one rating given to a movie
+    public long logRating(long movieId, double rating) {
+        return logRating(movieId, rating, null);
+    }
+
+    // Record one rating given to a movie by a user profile (null: anonymous)
+    public long logRating(long movieId, double rating, String user) {
+        return append(new Record(user == null ? RATE : RATE_BY, movieId, null, null, rating, user));
+    }
+
+    // With FsyncPolicy.ALWAYS, wait until the record with this number is on
+    // disk. Throws IllegalStateException if it could not be written: the
+    // change is in memory (and in the next snapshot) but a crash before that
+    // snapshot would lose it.
+    public void awaitDurable(long lsn) {
+        if (policy != FsyncPolicy.ALWAYS) {
+            return;
+        }
+        durableLock.lock();
+        try {
+            // Checked while holding durableLock, so a signal can't be missed
+            while (!isSettled(lsn)) {
+                durableChanged.awaitUninterruptibly();
+            }
+        } finally {
+            durableLock.unlock();
+        }
+        synchronized (this) {
+            if (isFailed(lsn)) {
+                throw new IllegalStateException("Change applied in memory but not saved to the mutation log ("
+                        + lastError + ")");
+            }
+        }
+    }
+
+    // True once the record is on disk or failed, or the log is closed
+    private synchronized boolean isSettled(long lsn) {
+        return durableLsn >= lsn || isFailed(lsn) || closed;
+    }
+
+    // Wake the commands waiting in awaitDurable (call it without holding `this`)
+    private void signalDurable() {
+        durableLock.lock();
+        try {
+            durableChanged.signalAll();
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    // True if the record with this number was lost by a failed write or fsync
+    private boolean isFailed(long lsn) {
+        Map.Entry<Long, Long> range = failedLsns.floorEntry(lsn);
+        return range != null && lsn <= range.getValue();
+    }
+
+    // Mark the records after the durable ones, up to `last`, as failed
+    private void markFailed(long last, String error) {
+        lastError = error;
+        long first = durableLsn + 1;
+        Map.Entry<Long, Long> previous = failedLsns.lastEntry();
+        if (previous != null && previous.getValue() >= first - 1) {
+            first = previous.getKey(); // a disk that keeps failing makes one range
+        }
+        if (first <= last) {
+            failedLsns.put(first, last);
+        }
+    }
+
+    // Start a new segment and take a snapshot of the state it starts from,
+    // with no mutation in between. The snapshot function gets the new segment
+    // number; every older segment is covered by the snapshot.
+    <T> T cut(IntFunction<T> snapshot) {
+        cutLock.writeLock().lock();
+        try {
+            int newSegment;
+            synchronized (this) {
+                segment++;
+                newSegment = segment;
+                recordsInSegment = 0;
+                pending.add(ROTATE);
+                appendedLsn++;
+                notifyAll();
+            }
+            return snapshot.apply(newSegment);
+        } finally {
+            cutLock.writeLock().unlock();
+        }
+    }
+
+    // Delete the segments older than `firstKept`
+    void deleteSegmentsBefore(int firstKept) {
+        Map<Integer, Path> segments = listSegments(directory, baseName);
+        for (Map.Entry<Integer, Path> entry : segments.entrySet()) {
+            if (entry.getKey() < firstKept) {
+                try {
+                    Files.deleteIfExists(entry.getValue());
+                } catch (IOException e) {
+                    TreePersistence.log(LogLevel.WARN, "Could not delete old log segment " + entry.getValue() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Number of the last record appended since the server started
+    // (segment switches take a number too)
+    public synchronized long getAppendedLsn() {
+        return appendedLsn;
+    }
+
+    // Number of the last record known to be on disk (written, with FsyncPolicy.NEVER)
+    public synchronized long getDurableLsn() {
+        return durableLsn;
+    }
+
+    // Records appended to the current segment
+    public synchronized long getRecordsInSegment() {
+        return recordsInSegment;
+    }
+
+    public synchronized int getSegment() {
+        return segment;
+    }
+
+    // Write and sync what is pending, then stop the writer thread
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        signalDurable();
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized long append(Record record) {
+        if (closed) {
+            return appendedLsn; // shutting down: the final snapshot has been taken
+        }
+        pending.add(record);
+        recordsInSegment++;
+        appendedLsn++;
+        if (pending.size() == 1) {
+            notifyAll(); // the writer may be waiting for work
+        }
+        return appendedLsn;
+    }
+
+    //==== WRITER THREAD ====
+    private void writeLoop() {
+        while (true) {
+            List<Record> batch;
+            long batchEnd;
+            boolean stopping;
+
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait(policy == FsyncPolicy.INTERVAL ? Math.max(1, fsyncIntervalMs) : 0);
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                    if (policy == FsyncPolicy.INTERVAL && pending.isEmpty() && durableLsn < appendedLsn) {
+                        break; // time to sync what the last batches left unsynced
+                    }
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                batchEnd = appendedLsn;
+                stopping = closed && batch.isEmpty();
+            }
+
+            // After a failure the rest of the batch is not written (it is all
+            // reported as failed), but segment switches still happen, so the
+            // numbering stays that of cut()
+            boolean synced = false;
+            String error = null;
+            for (int i = 0; i < batch.size(); i++) {
+                Record record = batch.get(i);
+                if (record == ROTATE) {
+                    String closeError = closeSegment();
+                    error = error != null ? error : closeError;
+                    openSegment(writtenSegment + 1);
+                } else if (error != null) {
+                    continue;
+                } else if (!broken || repair()) {
+                    try {
+                        writeRecord(record);
+                    } catch (IOException e) {
+                        error = failed(e);
+                    }
+                } else {
+                    error = lastWriterError;
+                }
+            }
+
+            if (broken) {
+                repair(); // drop this batch's partial records right away
+            } else {
+                try {
+                    out.flush();
+                    flushedBytes = segmentBytes;
+
+                    long now = System.currentTimeMillis();
+                    if (error == null && (policy == FsyncPolicy.ALWAYS || stopping
+                            || (policy == FsyncPolicy.INTERVAL && now - lastSync >= fsyncIntervalMs))) {
+                        sync();
+                        lastSync = now;
+                        synced = true;
+                    }
+                } catch (IOException e) {
+                    error = failed(e);
+                    repair();
+                }
+            }
+
+            synchronized (this) {
+                if (error != null) {
+                    markFailed(batchEnd, error); // don't leave waiting commands hanging
+                } else if (synced || policy == FsyncPolicy.NEVER) {
+                    durableLsn = batchEnd;
+                }
+            }
+            signalDurable();
+
+            if (stopping) {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        TreePersistence.log(LogLevel.ERROR, "Failed to close mutation log: " + e.getMessage());
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    // Open a segment for appending. On failure the segment stays broken
+    // and repair() tries again before the next record.
+    private void openSegment(int number) {
+        writtenSegment = number;
+        out = null;
+        file = null;
+        try {
+            file = new FileOutputStream(segmentPath(directory, baseName, number).toFile(), true);
+            segmentBytes = file.getChannel().size();
+            flushedBytes = segmentBytes;
+            out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            broken = false;
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    // Finish the current segment; returns the error, or null
+    private String closeSegment() {
+        String error = null;
+        if (!broken || repair()) {
+            try {
+                out.flush();
+                sync();
+            } catch (IOException e) {
+                error = failed(e);
+                repair(); // leave whole records behind
+            }
+        } else {
+            error = lastWriterError;
+        }
+        try {
+            if (file != null) {
+                file.close(); // drops whatever the stream still buffers
+            }
+        } catch (IOException e) {
+            TreePersistence.log(LogLevel.WARN, "Failed to close mutation log segment: " + e.getMessage());
+        }
+        return error;
+    }
+
+    // Report a failed write and mark the segment broken; returns the message
+    private String failed(IOException e) {
+        lastWriterError = e.getMessage() == null ? e.toString() : e.getMessage();
+        TreePersistence.log(LogLevel.ERROR, "Failed to write mutation log: " + lastWriterError);
+        broken = true;
+        return lastWriterError;
+    }
+
+    // Cut the segment back to its last whole record and start a fresh
+    // stream there (dropping what the old one still buffers). Returns false
+    // if that failed too; it is tried again before the next record.
+    private boolean repair() {
+        if (file == null) {
+            openSegment(writtenSegment);
+            return !broken;
+        }
+        try {
+            file.getChannel().truncate(flushedBytes);
+            out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            segmentBytes = flushedBytes;
+            broken = false;
+            return true;
+        } catch (IOException e) {
+            lastWriterError = e.getMessage() == null ? e.toString() : e.getMessage();
+            return false;
+        }
+    }
+
+    // Force the segment to disk, timing it for the metrics
+    private void sync() throws IOException {
+        long start = System.nanoTime();
+        file.getChannel().force(false);
+        PersistenceMetrics.fsyncFinished(System.nanoTime() - start);
+    }
+
+    // Record layout: payload length, CRC32 of the payload, payload
+    private void writeRecord(Record record) throws IOException {
+        recordBytes.reset();
+        DataOutputStream payload = new DataOutputStream(recordBytes);
+        payload.writeByte(record.type);
+        payload.writeLong(record.movieId);
+        if (record.type == ADD) {
+            payload.writeUTF(record.path);
+            payload.writeUTF(record.title);
+        }
+        payload.writeDouble(record.rating);
+        if (record.type == RATE_BY) {
+            payload.writeUTF(record.user);
+        }
+        payload.flush();
+
+        byte[] bytes = recordBytes.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+        segmentBytes += 8 + bytes.length;
+    }
+
+    //==== REPLAY ====
+    // Apply every segment numbered `fromSegment` or later to the tree, in order.
+    // Returns the highest segment found (fromSegment - 1 if there is none).
+    static int replay(Genre root, Path directory, String baseName, int fromSegment) {
+        int last = fromSegment - 1;
+        Map<Long, List<Record>> early = new HashMap<>(); // ratings read before their movie's ADD
+        int added = 0;
+        int rated = 0;
+
+        for (Map.Entry<Integer, Path> entry : listSegments(directory, baseName).entrySet()) {
+            if (entry.getKey() < fromSegment) {
+                continue;
+            }
+            last = entry.getKey();
+
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(entry.getValue()), 64 * 1024))) {
+                while (true) {
+                    byte[] bytes = readRecord(in, entry.getValue());
+                    if (bytes == null) {
+                        break;
+                    }
+
+                    DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+                    byte type = payload.readByte();
+                    long movieId = payload.readLong();
+
+                    if (type == ADD) {
+                        String path = payload.readUTF();
+                        String title = payload.readUTF();
+                        double rating = payload.readDouble();
+                        if (replayAdd(root, movieId, path, title, rating)) {
+                            added++;
+                        }
+                        List<Record> ratings = early.remove(movieId);
+                        if (ratings != null) {
+                            Movie movie = root.getIndex().findMovieById(movieId);
+                            for (int i = 0; i < ratings.size(); i++) {
+                                replayRating(root, movie, ratings.get(i));
+                                rated++;
+                            }
+                        }
+                    } else if (type == RATE || type == RATE_BY) {
+                        double rating = payload.readDouble();
+                        String user = type == RATE_BY ? payload.readUTF() : null;
+                        Record record = new Record(type, movieId, null, null, rating, user);
+                        Movie movie = root.getIndex().findMovieById(movieId);
+                        if (movie != null) {
+                            replayRating(root, movie, record);
+                            rated++;
+                        } else {
+                            early.computeIfAbsent(movieId, k -> new ArrayList<>()).add(record);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                TreePersistence.log(LogLevel.ERROR, "Failed to read log segment " + entry.getValue() + ": " + e.getMessage());
+            }
+        }
+
+        if (!early.isEmpty()) {
+            TreePersistence.log(LogLevel.WARN, "Mutation log: ignored ratings of " + early.size() + " unknown movie(s)");
+        }
+        if (added > 0 || rated > 0) {
+            TreePersistence.log(LogLevel.INFO, "Mutation log replayed: " + added + " movie(s) added, " + rated + " rating(s)");
+        }
+        return last;
+    }
+
+    // The rating goes into the movie's average and, when the record names a
+    // profile, into that profile's ratings (the latest score wins, so a rating
+    // already in the ratings file is simply set again)
+    private static void replayRating(Genre root, Movie movie, Record record) {
+        movie.addRating(record.rating);
+        if (record.user != null) {
+            root.getIndex().getUserRatings().rate(record.user, movie.getId(), (float) record.rating);
+        }
+    }
+
+    // Read one record; null at the end of the segment or at a torn/corrupt record
+    private static byte[] readRecord(DataInputStream in, Path segmentFile) throws IOException {
+        int length;
+        int expectedCrc;
+        try {
+            length = in.readInt();
+            expectedCrc = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        if (length <= 0 || length > MAX_RECORD_BYTES) {
+            TreePersistence.log(LogLevel.WARN, "Mutation log: bad record length in " + segmentFile + ", ignoring the rest");
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        try {
+            in.readFully(bytes);
+        } catch (EOFException e) {
+            TreePersistence.log(LogLevel.WARN, "Mutation log: incomplete last record in " + segmentFile + ", ignored");
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        if ((int) crc.getValue() != expectedCrc) {
+            TreePersistence.log(LogLevel.WARN, "Mutation log: checksum mismatch in " + segmentFile + ", ignoring the rest");
+            return null;
+        }
+        return bytes;
+    }
+
+    // Same path resolution as CatalogService: follow existing genres, create the rest.
+    // An ADD whose movie id is already in the catalog was applied before; skip it.
+    private static boolean replayAdd(Genre root, long movieId, String genrePath, String title, double rating) {
+        if (root.getIndex().findMovieById(movieId) != null) {
+            return false;
+        }
+
+        String[] pathParts = genrePath.split("/");
+        Genre targetGenre = root;
+        int i = 0;
+        for (; i < pathParts.length; i++) {
+            String genreName = pathParts[i].trim();
+            if (genreName.isEmpty()) {
+                continue;
+            }
+            Genre nextGenre = targetGenre.getChildGenre(genreName);
+            if (nextGenre == null) {
+                break;
+            }
+            targetGenre = nextGenre;
+        }
+
+        Movie movie = new Movie(title, rating, root.getStore());
+        movie.setId(movieId);
+        CatalogComponent newBranch = movie;
+        for (int j = pathParts.length - 1; j >= i; j--) {
+            String genreName = pathParts[j].trim();
+            if (genreName.isEmpty()) {
+                continue;
+            }
+            Genre newGenre = new Genre(genreName, root.getStore());
+            newGenre.add(newBranch);
+            newBranch = newGenre;
+        }
+        targetGenre.add(newBranch);
+        return true;
+    }
+
+    //==== SEGMENT FILES ====
+    static Path segmentPath(Path directory, String baseName, int number) {
+        return directory.resolve(baseName + "." + number);
+    }
+
+    // Existing segment files by number, in ascending order
+    static Map<Integer, Path> listSegments(Path directory, String baseName) {
+        Map<Integer, Path> segments = new TreeMap<>();
+        File[] files = directory.toFile().listFiles();
+        if (files == null) {
+            return segments;
+        }
+
+        String prefix = baseName + ".";
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            try {
+                segments.put(Integer.parseInt(name.substring(prefix.length())), f.toPath());
+            } catch (NumberFormatException e) {
+                // not a segment (e.g. a temporary file)
+            }
+        }
+        return segments;
+    }
+}
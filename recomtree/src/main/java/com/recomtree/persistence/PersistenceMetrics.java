@@ -0,0 +1,84 @@
+package com.recomtree.persistence;
+
+import com.recomtree.metrics.LatencyHistogram;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Timings of the persistence layer (snapshot load and saves, checkpoints,
+// mutation log fsyncs), read by the metrics endpoint
+public class PersistenceMetrics {
+    private static final LatencyHistogram saveTimes = new LatencyHistogram();
+    private static final LatencyHistogram checkpointTimes = new LatencyHistogram();
+    private static final LatencyHistogram fsyncTimes = new LatencyHistogram();
+    private static final AtomicLong failedSaves = new AtomicLong();
+    private static final AtomicLong failedCheckpoints = new AtomicLong();
+
+    // The load at startup
+    private static volatile String loader = "none";
+    private static volatile long loadNanos;
+    private static volatile long loadBytes;
+
+    private PersistenceMetrics() {
+    }
+
+    static void loaded(String loaderName, long nanos, long bytes) {
+        loader = loaderName;
+        loadNanos = nanos;
+        loadBytes = bytes;
+    }
+
+    static void saveFinished(long nanos) {
+        saveTimes.record(nanos);
+    }
+
+    static void saveFailed() {
+        failedSaves.incrementAndGet();
+    }
+
+    static void checkpointFinished(long nanos) {
+        checkpointTimes.record(nanos);
+    }
+
+    static void checkpointFailed() {
+        failedCheckpoints.incrementAndGet();
+    }
+
+    static void fsyncFinished(long nanos) {
+        fsyncTimes.record(nanos);
+    }
+
+    // Full snapshot saves (shutdown, log compaction), in microseconds
+    public static LatencyHistogram getSaveTimes() {
+        return saveTimes;
+    }
+
+    // Incremental checkpoints, in microseconds
+    public static LatencyHistogram getCheckpointTimes() {
+        return checkpointTimes;
+    }
+
+    // Mutation log fsyncs, in microseconds
+    public static LatencyHistogram getFsyncTimes() {
+        return fsyncTimes;
+    }
+
+    public static long getFailedSaves() {
+        return failedSaves.get();
+    }
+
+    public static long getFailedCheckpoints() {
+        return failedCheckpoints.get();
+    }
+
+    // "streaming", "DOM", "binary", "checkpoint" or "none" (started empty)
+    public static String getLoader() {
+        return loader;
+    }
+
+    public static long getLoadNanos() {
+        return loadNanos;
+    }
+
+    public static long getLoadBytes() {
+        return loadBytes;
+    }
+}
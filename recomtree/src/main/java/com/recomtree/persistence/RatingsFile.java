@@ -0,0 +1,94 @@
+package com.recomtree.persistence;
+
+import com.recomtree.composite.UserRatings;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// The ratings of every user profile (catalog_data.ratings), saved next to
+// each snapshot or checkpoint.
+//
+// Layout, all numbers big-endian:
+//   header:  magic "RTUR", format version, profile count
+//   profile: name (modified UTF-8), rating count, then per rating
+//            movie id (long) and score (float)
+//   footer:  CRC32 of everything before it
+//
+// The file is taken at the same cut of the mutation log as the snapshot, and
+// written before the snapshot replaces the old one. If the server stops in
+// between, the old snapshot's log segments are replayed on top of these newer
+// ratings: a rating sets the profile's score for that movie, so replaying
+// them in order ends with the same scores.
+class RatingsFile {
+    static final int MAGIC = 0x52545552; // "RTUR"
+    static final int VERSION = 1;
+
+    static void write(Map<String, UserRatings.Ratings> users, OutputStream target) throws IOException {
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new CheckedOutputStream(target, crc), 64 * 1024));
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(users.size());
+        for (Map.Entry<String, UserRatings.Ratings> user : users.entrySet()) {
+            UserRatings.Ratings ratings = user.getValue();
+            out.writeUTF(user.getKey());
+            out.writeInt(ratings.size());
+            for (int i = 0; i < ratings.size(); i++) {
+                out.writeLong(ratings.movieIdAt(i));
+                out.writeFloat(ratings.scoreAt(i));
+            }
+        }
+        out.flush();
+        out.writeInt((int) crc.getValue());
+        out.flush();
+    }
+
+    // Read the file into the (empty) ratings of a freshly loaded catalog.
+    // Returns the number of profiles read.
+    static int read(Path file, UserRatings target) throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 64 * 1024), crc))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a ratings file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported ratings file version " + version);
+            }
+
+            // Read everything first: a damaged file must not leave half of it loaded
+            int count = in.readInt();
+            String[] names = new String[count];
+            long[][] movieIds = new long[count][];
+            float[][] scores = new float[count][];
+            for (int u = 0; u < count; u++) {
+                names[u] = in.readUTF();
+                int size = in.readInt();
+                movieIds[u] = new long[size];
+                scores[u] = new float[size];
+                for (int i = 0; i < size; i++) {
+                    movieIds[u][i] = in.readLong();
+                    scores[u][i] = in.readFloat();
+                }
+            }
+
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("checksum mismatch");
+            }
+
+            for (int u = 0; u < count; u++) {
+                target.rate(names[u], movieIds[u], scores[u]);
+            }
+            return count;
+        }
+    }
+}
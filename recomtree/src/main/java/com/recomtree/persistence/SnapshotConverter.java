@@ -0,0 +1,58 @@
+package com.recomtree.persistence;
+
+import com.recomtree.composite.Genre;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+// Command-line converter between the JSON and binary snapshot formats.
+// The direction follows the file extensions:
+//   java -cp ... com.recomtree.persistence.SnapshotConverter catalog_data.json catalog_data.bin
+//   java -cp ... com.recomtree.persistence.SnapshotConverter catalog_data.bin catalog_data.json
+// The log segment recorded in the snapshot is kept, so a converted file can
+// replace the original without losing the mutation log replay.
+public class SnapshotConverter {
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: SnapshotConverter <input .json|.bin> <output .json|.bin>");
+            System.exit(2);
+        }
+
+        String input = args[0];
+        String output = args[1];
+        long start = System.nanoTime();
+
+        try {
+            Genre root;
+            int walSegment;
+            if (input.endsWith(".bin")) {
+                BinarySnapshot snapshot = BinarySnapshot.read(Paths.get(input));
+                root = snapshot.getRoot();
+                walSegment = snapshot.getWalSegment();
+            } else {
+                JsonCatalogReader reader = JsonCatalogReader.open(Paths.get(input));
+                root = reader.readCatalog();
+                walSegment = reader.getWalSegment();
+            }
+            long loaded = System.nanoTime();
+
+            if (output.endsWith(".bin")) {
+                TreePersistence.writeAtomically(output, out -> BinarySnapshot.write(root, walSegment, out));
+            } else {
+                JSONObject json = TreePersistence.genreToJson(root, walSegment);
+                TreePersistence.writeAtomically(output, out -> out.write(json.toString(2).getBytes(StandardCharsets.UTF_8)));
+            }
+            long written = System.nanoTime();
+
+            System.out.println("Converted " + root.getMovieCount() + " movies from " + input + " to " + output +
+                    " (read " + (loaded - start) / 1_000_000 + " ms, write " + (written - loaded) / 1_000_000 + " ms)");
+        } catch (IOException e) {
+            System.err.println("Conversion failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
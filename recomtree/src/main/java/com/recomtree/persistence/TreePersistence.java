@@ -1,55 +1,234 @@
 package com.recomtree.persistence;
 
+import com.recomtree.composite.CatalogIndex;
 import com.recomtree.composite.Genre;
 import com.recomtree.composite.Movie;
+import com.recomtree.composite.MovieStore;
 import com.recomtree.composite.CatalogComponent;
+import com.recomtree.composite.UserRatings;
+import com.recomtree.logging.AsyncLogger;
+import com.recomtree.logging.LogLevel;
+import com.recomtree.metrics.SnapshotEvent;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
 
-// Class to save and load catalog data using JSON
+// Class to save and load catalog data using JSON.
+// The JSON file is a snapshot; mutations made after it are kept in a
+// MutationLog (catalog_data.wal.N) and replayed on top of it when loading.
 public class TreePersistence {
     private static final String FILE_PATH = "catalog_data.json";
+    private static final String BINARY_PATH = "catalog_data.bin";
+    private static final String WAL_NAME = "catalog_data.wal";
+    private static final String RATINGS_PATH = "catalog_data.ratings";
 
-    //==== SAVE DATA TO JSON FILE ====
-    // Save catalog to JSON file
-    public static void save(Genre root) {
+    // Snapshot file formats
+    public enum Format {
+        JSON,  // catalog_data.json, readable and diffable
+        BINARY // catalog_data.bin, compact and fast to load
+    }
+
+    private static Format format = Format.JSON;
+    private static AsyncLogger logger; // null: print to the console
+
+    // -Drecomtree.loader=dom switches back to the org.json DOM loader
+    private static final String LOADER_PROPERTY = "recomtree.loader";
+
+    private static MutationLog mutationLog; // null until openLog()
+    private static int lastSegment;         // last log segment seen by load()
+    private static Map<Genre, String> restoredParts = Collections.emptyMap();
+    private static int restoredCheckpoint; // number of the checkpoint loaded, 0 if none
+
+    //==== SAVE DATA ====
+    // Save catalog to the snapshot file. With an open mutation log this is a
+    // compaction: the log moves to a new segment, the snapshot covers
+    // everything before it, and the older segments are deleted once the
+    // snapshot is on disk. Saves run one at a time, as they write the same
+    // temporary files.
+    public static synchronized void save(Genre root) {
+        long start = System.nanoTime();
+        SnapshotEvent event = new SnapshotEvent();
+        event.begin();
         try {
-            JSONObject json = genreToJson(root);
+            // Only a copy is taken while mutations wait; it is encoded and
+            // written to disk after the cut
+            List<Map<String, UserRatings.Ratings>> users = new ArrayList<>(); // taken at the cut
+            List<CatalogCopy> tree = new ArrayList<>();
+            int segment = cut(next -> {
+                users.add(userRatingsOf(root));
+                tree.add(CatalogCopy.of(root));
+                return next;
+            });
 
-            // Write JSON to file with pretty print
-            FileWriter writer = new FileWriter(FILE_PATH);
-            writer.write(json.toString(2)); // 2 spaces indentation
-            writer.close();
+            // Older segments are only deleted below, once the ratings are on disk too
+            saveUserRatings(users.get(0));
+            if (format == Format.BINARY) {
+                writeAtomically(BINARY_PATH, out -> BinarySnapshot.write(tree.get(0), segment, out));
+            } else {
+                JSONObject json = genreToJson(tree.get(0), segment);
+                writeAtomically(FILE_PATH, out -> out.write(json.toString(2).getBytes(StandardCharsets.UTF_8)));
+            }
 
-            System.out.println("System state saved to " + FILE_PATH);
+            deleteLogSegmentsBefore(segment);
+            PersistenceMetrics.saveFinished(System.nanoTime() - start);
+            event.succeeded = true;
+            log(LogLevel.INFO, "System state saved to " + (format == Format.BINARY ? BINARY_PATH : FILE_PATH));
         } catch (IOException e) {
-            System.err.println("Failed to save state: " + e.getMessage());
+            PersistenceMetrics.saveFailed();
+            log(LogLevel.ERROR, "Failed to save state: " + e.getMessage());
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            String path = format == Format.BINARY ? BINARY_PATH : FILE_PATH;
+            event.operation = "save";
+            event.format = format.name().toLowerCase();
+            event.nodes = root.getDisplayLineCount();
+            event.bytes = new File(path).length();
+            event.commit();
+        }
+    }
+
+    // Choose the snapshot format used by save()
+    public static void setFormat(Format newFormat) {
+        format = newFormat;
+    }
+
+    // Send the messages of the persistence classes to the server's logger
+    public static void setLogger(AsyncLogger newLogger) {
+        logger = newLogger;
+    }
+
+    // Log through the server's logger, or print to the console when there is
+    // none (e.g. in SnapshotConverter or in tests)
+    static void log(LogLevel level, String message) {
+        if (logger != null) {
+            logger.log(level, message);
+        } else if (level == LogLevel.WARN || level == LogLevel.ERROR) {
+            System.err.println(message);
+        } else {
+            System.out.println(message);
+        }
+    }
+
+    // Run the snapshot function at a point with no mutation in flight,
+    // passing it the first log segment it will not contain
+    static <T> T cut(IntFunction<T> snapshot) {
+        if (mutationLog == null) {
+            return snapshot.apply(lastSegment + 1);
+        }
+        return mutationLog.cut(snapshot);
+    }
+
+    // The ratings of every user profile right now (call it inside cut())
+    static Map<String, UserRatings.Ratings> userRatingsOf(Genre root) {
+        CatalogIndex index = root.getIndex();
+        return index == null ? Collections.emptyMap() : index.getUserRatings().getAll();
+    }
+
+    // Write the user ratings taken at a cut, before the snapshot of that cut
+    // is published (see RatingsFile)
+    static void saveUserRatings(Map<String, UserRatings.Ratings> users) throws IOException {
+        writeAtomically(RATINGS_PATH, out -> RatingsFile.write(users, out));
+    }
+
+    // Something that writes a snapshot to a stream
+    interface SnapshotWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // Write to a temporary file, sync it, then rename it over the snapshot,
+    // so a crash leaves either the old or the new snapshot, never half of one
+    static void writeAtomically(String path, SnapshotWriter writer) throws IOException {
+        Path target = Paths.get(path).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            writer.writeTo(out);
+            out.getChannel().force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //==== MUTATION LOG ====
+    // Start logging mutations, in a fresh segment after the ones replayed by load()
+    public static MutationLog openLog(MutationLog.FsyncPolicy policy, long fsyncIntervalMs) throws IOException {
+        mutationLog = new MutationLog(directory(), WAL_NAME, lastSegment + 1, policy, fsyncIntervalMs);
+        return mutationLog;
+    }
+
+    // Flush and stop the mutation log (after the final save)
+    public static void closeLog() {
+        if (mutationLog != null) {
+            mutationLog.close();
+            mutationLog = null;
         }
     }
 
-    // Convert Genre to JSON object
-    private static JSONObject genreToJson(Genre genre) {
+    // Delete the log segments a new snapshot or checkpoint covers
+    static void deleteLogSegmentsBefore(int segment) {
+        if (mutationLog != null) {
+            mutationLog.deleteSegmentsBefore(segment);
+        }
+    }
+
+    // Top-level genres loaded from a checkpoint, with their files (empty otherwise)
+    static Map<Genre, String> getRestoredParts() {
+        return restoredParts;
+    }
+
+    // Number of the checkpoint load() read, so new ones get higher numbers (0 otherwise)
+    static int getRestoredCheckpoint() {
+        return restoredCheckpoint;
+    }
+
+    private static Path directory() {
+        return Paths.get(FILE_PATH).toAbsolutePath().getParent();
+    }
+
+    // Convert the whole catalog to a JSON object, with the snapshot's log segment
+    static JSONObject genreToJson(Genre root, int walSegment) {
+        return genreToJson(CatalogCopy.of(root), walSegment);
+    }
+
+    // Same, from a copy taken at a cut of the log
+    static JSONObject genreToJson(CatalogCopy tree, int walSegment) {
+        JSONObject json = genreToJson(tree, new int[1]);
+        json.put("walSegment", walSegment);
+        return json;
+    }
+
+    // Convert the genre at next[0] of the copy to a JSON object, moving
+    // next[0] past it and its children
+    private static JSONObject genreToJson(CatalogCopy tree, int[] next) {
+        int node = next[0]++;
         JSONObject json = new JSONObject();
         json.put("type", "genre");
-        json.put("name", genre.getName());
+        json.put("name", tree.name(node));
 
         JSONArray childrenArray = new JSONArray();
-        List<CatalogComponent> children = genre.getChildren();
 
         // Recursively convert children
-        for (int i = 0; i < children.size(); i++) {
-            CatalogComponent child = children.get(i);
-
-            if (child instanceof Genre) {
-                childrenArray.put(genreToJson((Genre) child));
-            } else if (child instanceof Movie) {
-                childrenArray.put(movieToJson((Movie) child));
+        for (int i = 0; i < tree.childCount(node); i++) {
+            if (tree.isMovie(next[0])) {
+                childrenArray.put(movieToJson(tree, next[0]++));
+            } else {
+                childrenArray.put(genreToJson(tree, next));
             }
         }
 
@@ -57,10 +236,22 @@ public class TreePersistence {
         return json;
     }
 
+    private static JSONObject movieToJson(CatalogCopy tree, int node) {
+        JSONObject json = new JSONObject();
+        json.put("type", "movie");
+        json.put("id", tree.id(node));
+        json.put("name", tree.name(node));
+        json.put("rating", tree.rating(node));
+        json.put("ratingCount", tree.ratingCount(node));
+        json.put("totalRatingSum", tree.ratingSum(node));
+        return json;
+    }
+
     // Convert Movie to JSON object
-    private static JSONObject movieToJson(Movie movie) {
+    static JSONObject movieToJson(Movie movie) {
         JSONObject json = new JSONObject();
         json.put("type", "movie");
+        json.put("id", movie.getId());
         json.put("name", movie.getName());
         json.put("rating", movie.getRating());
         json.put("ratingCount", movie.getRatingCount());
@@ -68,59 +259,197 @@ public class TreePersistence {
         return json;
     }
 
-    //==== LOAD DATA FROM JSON FILE ====
-    // Load catalog from JSON file
+    //==== LOAD DATA ====
+    // Load the catalog from the newest snapshot: the JSON file, the binary
+    // file or the last checkpoint. Several exist only when the format or the
+    // checkpointing setting was changed between runs.
     public static Genre load() {
-        File file = new File(FILE_PATH);
+        SnapshotEvent event = new SnapshotEvent();
+        event.begin();
+        event.succeeded = true; // until a snapshot fails to load
+        File jsonFile = new File(FILE_PATH);
+        File binaryFile = new File(BINARY_PATH);
+        File manifestFile = Checkpointer.manifestFile();
+        Genre root;
+        int fromSegment = 0; // first log segment not contained in the snapshot
+
+        File newest = newest(newest(jsonFile, binaryFile), manifestFile);
+        boolean binary = newest == binaryFile;
+
+        if (newest == manifestFile) {
+            long start = System.nanoTime();
+            try {
+                Checkpointer.Restored restored = Checkpointer.read();
+                root = restored.root;
+                fromSegment = restored.walSegment;
+                restoredParts = restored.parts;
+                restoredCheckpoint = restored.checkpoint;
+                reportLoad("checkpoint", System.nanoTime() - start, directorySize(manifestFile.getParentFile()));
+            } catch (Exception e) {
+                log(LogLevel.ERROR, "Failed to load checkpoint, starting fresh: " + e.getMessage());
+                event.succeeded = false;
+                root = new Genre("Movies Catalog");
+            }
+        } else if (newest == null) {
+            // If no file exists, start with a new root
+            root = new Genre("Movies Catalog");
+        } else {
+            long start = System.nanoTime();
+            boolean dom = "dom".equalsIgnoreCase(System.getProperty(LOADER_PROPERTY));
+            try {
+                if (binary) {
+                    BinarySnapshot snapshot = BinarySnapshot.read(binaryFile.toPath());
+                    root = snapshot.getRoot();
+                    fromSegment = snapshot.getWalSegment();
+                    reportLoad("binary", System.nanoTime() - start, binaryFile.length());
+                } else if (dom) {
+                    // Read file content
+                    String content = new String(Files.readAllBytes(Paths.get(FILE_PATH)));
+                    JSONObject json = new JSONObject(content);
+                    fromSegment = json.optInt("walSegment", 0);
+
+                    // Convert JSON back to Genre tree
+                    root = jsonToGenre(json, new MovieStore());
+                    reportLoad("DOM", System.nanoTime() - start, jsonFile.length());
+                } else {
+                    // Build the tree straight from the file, without a DOM
+                    JsonCatalogReader reader = JsonCatalogReader.open(Paths.get(FILE_PATH));
+                    root = reader.readCatalog();
+                    fromSegment = reader.getWalSegment();
+                    reportLoad("streaming", System.nanoTime() - start, jsonFile.length());
+                }
 
-        // If file doesn't exist, return new root
-        if (!file.exists()) {
-            return new Genre("Movies Catalog");
+            } catch (Exception e) {
+                log(LogLevel.ERROR, "Failed to load state, starting fresh: " + e.getMessage());
+                event.succeeded = false;
+                root = new Genre("Movies Catalog");
+            }
         }
 
-        try {
-            // Read file content
-            String content = new String(Files.readAllBytes(Paths.get(FILE_PATH)));
-            JSONObject json = new JSONObject(content);
+        // Then the user ratings saved with it, and what was logged after it
+        indexed(root);
+        loadUserRatings(root);
+        lastSegment = MutationLog.replay(root, directory(), WAL_NAME, fromSegment);
+
+        // Covers the replay too: it is part of the startup time
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = "load";
+            event.format = PersistenceMetrics.getLoader();
+            event.nodes = root.getDisplayLineCount();
+            event.bytes = PersistenceMetrics.getLoadBytes();
+            event.commit();
+        }
+        return root;
+    }
+
+    // The more recently written of two files, ignoring missing ones (null if both are)
+    private static File newest(File a, File b) {
+        if (a == null || !a.exists()) {
+            return b != null && b.exists() ? b : null;
+        }
+        if (b == null || !b.exists()) {
+            return a;
+        }
+        return b.lastModified() > a.lastModified() ? b : a;
+    }
+
+    private static long directorySize(File directory) {
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                size += f.length();
+            }
+        }
+        return size;
+    }
+
+    // Log load time and memory, to compare the streaming and DOM loaders
+    private static void reportLoad(String loader, long nanos, long fileBytes) {
+        PersistenceMetrics.loaded(loader, nanos, fileBytes);
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        String line = String.format("Loaded %d KB with the %s loader in %d ms (peak heap %d MB",
+                fileBytes / 1024, loader, nanos / 1_000_000, peakHeap / (1024 * 1024));
+        long peakRssKb = peakRssKb();
+        if (peakRssKb > 0) {
+            line += ", peak RSS " + (peakRssKb / 1024) + " MB";
+        }
+        log(LogLevel.INFO, line + ")");
+    }
 
-            // Convert JSON back to Genre tree
-            return jsonToGenre(json);
+    // Peak resident set size from /proc (Linux only), or -1
+    private static long peakRssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not available on this platform
+        }
+        return -1;
+    }
 
-        } catch (Exception e) {
-            System.err.println("Failed to load state, starting fresh: " + e.getMessage());
-            return new Genre("Movies Catalog");
+    private static void loadUserRatings(Genre root) {
+        Path file = Paths.get(RATINGS_PATH);
+        if (!Files.exists(file)) {
+            return;
         }
+        try {
+            int users = RatingsFile.read(file, root.getIndex().getUserRatings());
+            log(LogLevel.INFO, "Loaded the ratings of " + users + " user profile(s)");
+        } catch (IOException e) {
+            log(LogLevel.WARN, "Failed to load user ratings, starting without them: " + e.getMessage());
+        }
+    }
+
+    // Build the catalog index once the whole tree is in memory
+    private static Genre indexed(Genre root) {
+        CatalogIndex.build(root);
+        return root;
     }
 
     // Convert JSON object to Genre
-    private static Genre jsonToGenre(JSONObject json) {
+    static Genre jsonToGenre(JSONObject json, MovieStore store) {
         String name = json.getString("name");
-        Genre genre = new Genre(name);
+        Genre genre = new Genre(name, store);
 
         if (json.has("children")) {
             JSONArray childrenArray = json.getJSONArray("children");
+            List<CatalogComponent> children = new ArrayList<>(childrenArray.length());
 
             for (int i = 0; i < childrenArray.length(); i++) {
                 JSONObject childJson = childrenArray.getJSONObject(i);
                 String type = childJson.getString("type");
 
                 if ("genre".equals(type)) {
-                    genre.add(jsonToGenre(childJson));
+                    children.add(jsonToGenre(childJson, store));
                 } else if ("movie".equals(type)) {
-                    genre.add(jsonToMovie(childJson));
+                    children.add(jsonToMovie(childJson, store));
                 }
             }
+            genre.setChildren(children);
         }
 
         return genre;
     }
 
     // Convert JSON object to Movie
-    private static Movie jsonToMovie(JSONObject json) {
+    static Movie jsonToMovie(JSONObject json, MovieStore store) {
         String name = json.getString("name");
         double rating = json.getDouble("rating");
 
-        Movie movie = new Movie(name, rating);
+        Movie movie = new Movie(name, rating, store);
+        movie.setId(json.optLong("id", 0)); // 0: assigned when indexed
 
         // Load ratingCount and totalRatingSum if present (for backward compatibility)
         if (json.has("ratingCount")) {
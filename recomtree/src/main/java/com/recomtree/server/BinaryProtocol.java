@@ -0,0 +1,47 @@
+package com.recomtree.server;
+
+import java.nio.ByteBuffer;
+
+// Length-prefixed framing used after a client sends "PROTOCOL BINARY".
+//
+// Every frame, in both directions (big-endian):
+//   int  length     bytes that follow this field
+//   byte opcode
+//   int  request id echoed back in the response
+//   byte status     OK, ERROR or MORE in responses, 0 in requests
+//   payload
+//
+// Requests carry a COMMAND: the same command line as the text protocol, in
+// UTF-8. Responses are TEXT (the text response in UTF-8, without the end
+// marker) or MOVIES (RECOMMEND results in the compact encoding of
+// CatalogService.recommendEncoded). A streamed listing is a series of TEXT
+// frames with status MORE, closed by one with status OK.
+// EXIT closes the connection without a frame.
+final class BinaryProtocol {
+    static final int HEADER_BYTES = 1 + 4 + 1; // after the length field
+    static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+    // Opcodes
+    static final byte COMMAND = 1; // client -> server
+    static final byte TEXT = 1;    // server -> client
+    static final byte MOVIES = 2;  // server -> client
+
+    // Status
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+    static final byte MORE = 2; // part of a streamed response, more frames follow
+
+    private BinaryProtocol() {
+    }
+
+    // Build a complete frame, length prefix included, so it goes out in one write
+    static byte[] frame(byte opcode, int requestId, byte status, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER_BYTES + payload.length);
+        buffer.putInt(HEADER_BYTES + payload.length);
+        buffer.put(opcode);
+        buffer.putInt(requestId);
+        buffer.put(status);
+        buffer.put(payload);
+        return buffer.array();
+    }
+}
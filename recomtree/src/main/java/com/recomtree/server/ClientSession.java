@@ -0,0 +1,433 @@
+package com.recomtree.server;
+
+import com.recomtree.command.CommandInvoker;
+import com.recomtree.composite.DisplayCursor;
+import com.recomtree.composite.Genre;
+import com.recomtree.logging.LogLevel;
+import com.recomtree.metrics.CommandCosts;
+import com.recomtree.metrics.ConnectionEvent;
+import com.recomtree.service.CatalogService;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+
+// Protocol state of one client connection (role, session start, command invoker).
+// Shared by the blocking thread-per-client handler and the NIO event loops,
+// so it never touches the socket itself.
+class ClientSession {
+    static final String END_OF_RESPONSE = "<END_OF_RESPONSE>";
+    // Responses queued but not yet flushed whose phases are kept; past this,
+    // the oldest is recorded without waiting for its flush
+    private static final int MAX_QUEUED_TIMINGS = 1024;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    static final String[] WELCOME_MESSAGES = {
+        "Welcome to RecomTree!",
+        "",
+        "Please log in:",
+        "  - Admin: LOGIN admin admin123",
+        "  - User:  LOGIN user user123",
+        "  - User with a rating profile: LOGIN user user123 <profile>",
+        "",
+        "Type HELP to see all available commands"
+    };
+
+    private final String clientInfo;
+    private final CatalogService service;
+    private final CommandInvoker invoker;
+    private final LocalDateTime sessionStart;
+    private String currentRole;
+    private String requestId; // "#id" prefix of the request being answered, or null
+    private boolean binary; // switched to BinaryProtocol frames
+    private ListingStream stream; // streamed listing started by the last request
+    private boolean movieListWanted; // binary request: RECOMMEND may answer with a movie list
+    private byte[] movieList; // the movie list of the last request, or null
+    private final ConnectionEvent connectionEvent = new ConnectionEvent(); // JFR, committed by close()
+    private int requests;
+
+    // Phase times of the request being answered, kept by responseQueued()
+    private String timedCommand; // null when there is nothing to record
+    private long parseNanos;
+    private long executeNanos;
+    private long readyAt; // the response is built, its write phase starts
+    // Responses handed to the front end, recorded by responsesFlushed()
+    private final ArrayDeque<QueuedTiming> queuedTimings = new ArrayDeque<>();
+
+    private static class QueuedTiming {
+        final String command;
+        final long parseNanos;
+        final long executeNanos;
+        final long readyAt;
+        final long bytes;
+
+        QueuedTiming(String command, long parseNanos, long executeNanos, long readyAt, long bytes) {
+            this.command = command;
+            this.parseNanos = parseNanos;
+            this.executeNanos = executeNanos;
+            this.readyAt = readyAt;
+            this.bytes = bytes;
+        }
+    }
+
+    ClientSession(String clientInfo, Genre rootCatalog) {
+        this.clientInfo = clientInfo;
+        this.currentRole = "GUEST";
+        this.sessionStart = LocalDateTime.now();
+        this.service = new CatalogService(rootCatalog,
+                RecommendationServer.recommendationCache, RecommendationServer.mutationLog);
+        this.invoker = new CommandInvoker(service);
+        connectionEvent.begin();
+    }
+
+    // Helper method to log with client info
+    void logClient(String message) {
+        logClient(LogLevel.INFO, message);
+    }
+
+    void logClient(LogLevel level, String message) {
+        RecommendationServer.log(level, "[" + clientInfo + "] " + message);
+    }
+
+    // Log a sent response: one summary line, and every line only at DEBUG
+    void logSent(String[] lines) {
+        if (RecommendationServer.isLogEnabled(LogLevel.DEBUG)) {
+            for (String line : lines) {
+                logClient(LogLevel.DEBUG, "<<< SENT: " + line);
+            }
+        }
+        logClient("<<< SENT: " + lines.length + " line" + (lines.length == 1 ? "" : "s") + " + " + endMarker());
+    }
+
+    // End marker of the last response. A request sent as "#id COMMAND ..."
+    // gets "<END_OF_RESPONSE> #id", so a client that pipelines many requests
+    // can match each response to its request.
+    String endMarker() {
+        return requestId == null ? END_OF_RESPONSE : END_OF_RESPONSE + " #" + requestId;
+    }
+
+    // Handle one request line and return the response text.
+    // Returns null when the client asked to end the session, and "" when a
+    // streamed listing (takeStream) replaces the response.
+    String handle(String request) {
+        requests++;
+        return handle(request, System.nanoTime());
+    }
+
+    private String handle(String request, long received) {
+        timedCommand = null;
+        logClient(">>> RECEIVED: " + request);
+
+        // Optional request id: "#id COMMAND ..."
+        requestId = null;
+        String trimmed = request.trim();
+        if (trimmed.startsWith("#")) {
+            int end = 1;
+            while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+                end++;
+            }
+            requestId = trimmed.substring(1, end);
+            request = trimmed.substring(end);
+            if (request.trim().isEmpty()) {
+                return "ERROR: Empty command";
+            }
+        }
+
+        // Check if client wants to exit
+        if ("EXIT".equalsIgnoreCase(request.trim())) {
+            logClient("Client requested exit");
+            return null;
+        }
+
+        // Split command into parts
+        String[] parts = request.trim().split("\\s+");
+        String cmd = parts[0].toUpperCase();
+
+        timedCommand = isSessionCommand(cmd) || invoker.hasCommand(cmd) ? cmd : "UNKNOWN";
+        String role = currentRole; // before LOGIN changes it
+        parseNanos = System.nanoTime() - received;
+
+        // The thread counters are read outside the timed phases
+        long cpuBefore = CommandCosts.threadCpuTime();
+        long allocatedBefore = CommandCosts.threadAllocatedBytes();
+        long executeStart = System.nanoTime();
+        String response = dispatch(request, parts, cmd);
+        executeNanos = System.nanoTime() - executeStart;
+        long cpuAfter = CommandCosts.threadCpuTime();
+        long allocatedAfter = CommandCosts.threadAllocatedBytes();
+
+        // The password of a LOGIN must not end up in the top requests
+        RecommendationServer.metrics.recordCosts(timedCommand, role, "LOGIN".equals(cmd) ? "LOGIN" : request.trim(),
+                cpuBefore, cpuAfter, allocatedBefore, allocatedAfter);
+        readyAt = System.nanoTime();
+        return response;
+    }
+
+    private static boolean isSessionCommand(String cmd) {
+        return "LOGIN".equals(cmd) || "PROTOCOL".equals(cmd) || "METRICS".equals(cmd);
+    }
+
+    // Run a parsed request: session commands here, the others through the invoker
+    private String dispatch(String request, String[] parts, String cmd) {
+        // Handle login command
+        if ("LOGIN".equals(cmd)) {
+            return handleLogin(parts);
+        }
+
+        // Streamed listings are written by the front end, chunk by chunk
+        if (("LIST_ALL".equals(cmd) || "LIST_SUBTREE".equals(cmd))
+                && parts.length == ("LIST_ALL".equals(cmd) ? 2 : 3)
+                && "STREAM".equalsIgnoreCase(parts[parts.length - 1])
+                && !"GUEST".equals(currentRole)) {
+            RecommendationServer.metrics.incrementCommand(cmd);
+            return openStream("LIST_SUBTREE".equals(cmd) ? parts[1] : null);
+        }
+
+        // Protocol switch: the reply is the last text response on this connection
+        if ("PROTOCOL".equals(cmd)) {
+            if (parts.length == 2 && "BINARY".equalsIgnoreCase(parts[1])) {
+                binary = true;
+                logClient("Switching to binary protocol");
+                return "PROTOCOL BINARY OK";
+            }
+            return "USAGE: PROTOCOL BINARY";
+        }
+
+        // Live latency report (admins only)
+        if ("METRICS".equals(cmd)) {
+            RecommendationServer.metrics.incrementCommand(cmd);
+            return handleMetrics(parts);
+        }
+
+        // Execute command (unknown names are counted together)
+        logClient(LogLevel.DEBUG, "Executing command as role: " + currentRole);
+        RecommendationServer.metrics.incrementCommand(timedCommand);
+        if (movieListWanted) {
+            return invoker.invoke(request, currentRole, movies -> movieList = movies);
+        }
+        return invoker.invoke(request, currentRole);
+    }
+
+    // METRICS shows the latency report; METRICS RESET first ends the current
+    // interval, so the report's last interval starts from scratch next time,
+    // and forgets the top requests by cost. METRICS COSTS shows the CPU time
+    // and allocations per command and role, and the most expensive requests.
+    private String handleMetrics(String[] parts) {
+        if (!"ADMIN".equals(currentRole)) {
+            return "ERROR: Access Denied. Admins only.";
+        }
+        if (parts.length == 2 && "RESET".equalsIgnoreCase(parts[1])) {
+            RecommendationServer.metrics.rotateTimings();
+            RecommendationServer.metrics.resetTopCosts();
+            logClient("Metrics interval reset");
+            return RecommendationServer.metrics.getTimingReport() + "Interval reset: the current one starts now.";
+        }
+        if (parts.length == 2 && "COSTS".equalsIgnoreCase(parts[1])) {
+            return RecommendationServer.metrics.getCostReport();
+        }
+        if (parts.length > 1) {
+            return "USAGE: METRICS [RESET|COSTS]";
+        }
+        return RecommendationServer.metrics.getTimingReport();
+    }
+
+    // Called by the front end once the response of the last request is
+    // queued for the socket (all of it, for a streamed listing). Its phases
+    // are recorded by the next responsesFlushed().
+    void responseQueued(long bytes) {
+        if (timedCommand == null) {
+            return;
+        }
+        queuedTimings.add(new QueuedTiming(timedCommand, parseNanos, executeNanos, readyAt, bytes));
+        timedCommand = null;
+        if (queuedTimings.size() > MAX_QUEUED_TIMINGS) {
+            record(queuedTimings.poll(), System.nanoTime());
+        }
+    }
+
+    // Called by the front end once everything queued has reached the socket:
+    // the write phase of each queued response ends now
+    void responsesFlushed() {
+        if (queuedTimings.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        QueuedTiming timing;
+        while ((timing = queuedTimings.poll()) != null) {
+            record(timing, now);
+        }
+    }
+
+    private static void record(QueuedTiming timing, long flushedAt) {
+        RecommendationServer.metrics.recordTimings(timing.command, timing.parseNanos,
+                timing.executeNanos, flushedAt - timing.readyAt, timing.bytes);
+    }
+
+    // Start a streamed listing. Returns "" when the stream replaces the
+    // response, or a normal response (error, empty catalog).
+    private String openStream(String genreName) {
+        DisplayCursor cursor = service.openListing(genreName);
+        if (cursor == null) {
+            return "ERROR: Genre '" + genreName + "' not found.";
+        }
+        if (genreName == null && !cursor.hasNext()) {
+            return "Catalog is empty.";
+        }
+        String header = genreName == null ? "" : service.listingHeader(genreName);
+        stream = new ListingStream(cursor, header, endMarker());
+        return "";
+    }
+
+    // The streamed listing started by the last request, or null. The front
+    // end writes its chunks instead of the (empty) response.
+    ListingStream takeStream() {
+        ListingStream started = stream;
+        stream = null;
+        return started;
+    }
+
+    // Log a finished streamed listing
+    void logStreamed(ListingStream finished) {
+        logClient("<<< SENT: streamed " + finished.getSummary());
+        responseQueued(finished.getBytes());
+    }
+
+    // True once the client asked for binary frames
+    boolean isBinary() {
+        return binary;
+    }
+
+    // Handle one binary request frame and return the complete response frame.
+    // Returns null when the client asked to end the session, and an empty
+    // array when a streamed listing (takeStream) replaces the response.
+    byte[] handleFrame(byte opcode, int id, byte[] payload) {
+        long received = System.nanoTime();
+        timedCommand = null;
+        requests++;
+        if (opcode != BinaryProtocol.COMMAND) {
+            logClient(LogLevel.WARN, "Unknown binary opcode " + opcode);
+            return textFrame(id, "ERROR: Unknown opcode " + opcode);
+        }
+        String request = new String(payload, StandardCharsets.UTF_8);
+
+        // Timed, costed and traced like a text request; RECOMMEND results
+        // come back in the compact list encoding
+        movieList = null;
+        movieListWanted = true;
+        String response;
+        try {
+            response = handle(request, received);
+        } finally {
+            movieListWanted = false;
+        }
+        if (response == null) {
+            return null;
+        }
+        if (stream != null) {
+            stream.useFrames(id);
+            return new byte[0];
+        }
+        if (movieList != null) {
+            byte[] frame = BinaryProtocol.frame(BinaryProtocol.MOVIES, id, BinaryProtocol.OK, movieList);
+            movieList = null;
+            logClient("<<< SENT: movie list frame, " + frame.length + " bytes");
+            return frame;
+        }
+        byte[] frame = textFrame(id, response);
+        logClient("<<< SENT: text frame, " + frame.length + " bytes");
+        return frame;
+    }
+
+    private static byte[] textFrame(int id, String response) {
+        byte status = response.startsWith("ERROR") ? BinaryProtocol.ERROR : BinaryProtocol.OK;
+        return BinaryProtocol.frame(BinaryProtocol.TEXT, id, status, response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Bytes taken by response lines and the end marker once encoded, each
+    // followed by a line separator. Only non-ASCII lines need encoding.
+    static long encodedLength(String[] lines, String endMarker) {
+        long bytes = encodedLength(endMarker) + LINE_SEPARATOR.length();
+        for (int i = 0; i < lines.length; i++) {
+            bytes += encodedLength(lines[i]) + LINE_SEPARATOR.length();
+        }
+        return bytes;
+    }
+
+    private static int encodedLength(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) >= 0x80) {
+                return line.getBytes(Charset.defaultCharset()).length;
+            }
+        }
+        return line.length();
+    }
+
+    // Split a response into the lines written on the wire
+    static String[] responseLines(String response) {
+        return response.split("\n");
+    }
+
+    // Method to handle login
+    // LOGIN <username> <password> [profile]: the profile names whose ratings
+    // these are (SIMILAR_USERS recommendations). Without one, ratings only
+    // count in the movies' averages and are not kept per user.
+    private String handleLogin(String[] parts) {
+        if (parts.length < 3 || parts.length > 4) {
+            return "USAGE: LOGIN <username> <password> [profile]";
+        }
+
+        String username = parts[1];
+        String password = parts[2];
+        String profile = parts.length == 4 ? parts[3] : null;
+        if (profile != null && !profile.matches("[A-Za-z0-9_.-]{1,32}")) {
+            return "ERROR: Profile names are 1 to 32 letters, digits, '_', '.' or '-'.";
+        }
+
+        logClient("Login attempt - Username: " + username);
+
+        // Check credentials
+        String response;
+        if ("admin".equals(username) && "admin123".equals(password)) {
+            currentRole = "ADMIN";
+            response = "CONNECTION SUCCESSFUL: You are now ADMIN.";
+            service.setUser(profile);
+            RecommendationServer.metrics.incrementAdminLogins();
+            logClient("Login successful as ADMIN");
+        } else if ("user".equals(username) && "user123".equals(password)) {
+            currentRole = "USER";
+            response = "CONNECTION SUCCESSFUL: You are now USER.";
+            service.setUser(profile);
+            RecommendationServer.metrics.incrementUserLogins();
+            logClient("Login successful as USER");
+        } else {
+            response = "ERROR: Invalid credentials.";
+            RecommendationServer.metrics.incrementFailedLogins();
+            logClient("Login failed - Invalid credentials");
+        }
+        if (parts.length == 4 && !response.startsWith("ERROR")) {
+            response += " Profile: " + profile + ".";
+        }
+        return response;
+    }
+
+    // Called once when the connection is gone
+    void close() {
+        Duration sessionDuration = Duration.between(sessionStart, LocalDateTime.now());
+        long minutes = sessionDuration.toMinutes();
+        long seconds = sessionDuration.toSecondsPart();
+
+        RecommendationServer.metrics.decrementCurrentConnections();
+        logClient("<<< CLIENT DISCONNECTED (Session duration: " + minutes + "m " + seconds + "s)");
+        logClient("    [Active connections: " + RecommendationServer.metrics.getCurrentConnections() + "]");
+
+        connectionEvent.end();
+        if (connectionEvent.shouldCommit()) {
+            connectionEvent.client = clientInfo;
+            connectionEvent.role = currentRole;
+            connectionEvent.requests = requests;
+            connectionEvent.commit();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.recomtree.server;
+
+import com.recomtree.composite.DisplayCursor;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+// A LIST_ALL / LIST_SUBTREE ... STREAM response, produced chunk by chunk
+// while the socket takes it, so a listing of any size needs one chunk of
+// memory. In text mode the chunks are the response lines, the last one
+// followed by the end marker; in binary mode each chunk is a TEXT frame.
+class ListingStream {
+    static final int CHUNK_CHARS = 32 * 1024;
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final DisplayCursor cursor;
+    private String header; // sent with the first chunk
+    private final String endMarker;
+    private boolean binary;
+    private int requestId;
+    private boolean done;
+    private int chunks;
+    private long bytes; // returned by nextChunk so far
+
+    ListingStream(DisplayCursor cursor, String header, String endMarker) {
+        this.cursor = cursor;
+        this.header = header;
+        this.endMarker = endMarker;
+    }
+
+    // Send the listing as binary frames answering this request
+    void useFrames(int requestId) {
+        this.binary = true;
+        this.requestId = requestId;
+    }
+
+    // Next bytes to write, or null when the whole response has been returned
+    byte[] nextChunk() {
+        if (done) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(CHUNK_CHARS + 256);
+        sb.append(header);
+        header = "";
+        cursor.render(sb, Integer.MAX_VALUE, CHUNK_CHARS);
+        done = !cursor.hasNext();
+        chunks++;
+
+        if (binary) {
+            byte status = done ? BinaryProtocol.OK : BinaryProtocol.MORE;
+            byte[] frame = BinaryProtocol.frame(BinaryProtocol.TEXT, requestId, status,
+                    sb.toString().getBytes(StandardCharsets.UTF_8));
+            bytes += frame.length;
+            return frame;
+        }
+
+        String text = sb.toString();
+        if (!"\n".equals(LINE_SEPARATOR)) {
+            text = text.replace("\n", LINE_SEPARATOR);
+        }
+        if (done) {
+            text += endMarker + LINE_SEPARATOR;
+        }
+        byte[] chunk = text.getBytes(CHARSET);
+        bytes += chunk.length;
+        return chunk;
+    }
+
+    // Size of the listing written so far
+    long getBytes() {
+        return bytes;
+    }
+
+    // For the log once the stream is finished
+    String getSummary() {
+        return cursor.getPosition() + " lines in " + chunks + " chunk" + (chunks == 1 ? "" : "s");
+    }
+}
@@ -0,0 +1,168 @@
+package com.recomtree.server;
+
+import com.recomtree.composite.CatalogIndex;
+import com.recomtree.composite.Genre;
+import com.recomtree.metrics.PrometheusWriter;
+import com.recomtree.persistence.PersistenceMetrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+// Optional HTTP listener with every metric in the Prometheus text format:
+//   --metrics-port=9100 [--metrics-host=127.0.0.1]
+//   curl http://127.0.0.1:9100/metrics
+// Built on the JDK's com.sun.net.httpserver and answered on its own daemon
+// thread, so a scrape never waits for client threads or the console.
+class MetricsEndpoint {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final Genre root;
+
+    MetricsEndpoint(String host, int port, Genre root) throws IOException {
+        this.root = root;
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    void start() {
+        server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(method)) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // The whole page, read fresh on every scrape
+    String render() {
+        PrometheusWriter out = new PrometheusWriter();
+        RecommendationServer.metrics.export(out);
+        exportCatalog(out);
+        exportPersistence(out);
+        exportJvm(out);
+        return out.toString();
+    }
+
+    // Catalog size, from the root's aggregates (no tree walk)
+    private void exportCatalog(PrometheusWriter out) {
+        int movies = root.getMovieCount();
+        out.family("recomtree_catalog_movies", "gauge", "Movies in the catalog")
+           .sample("recomtree_catalog_movies", movies);
+        out.family("recomtree_catalog_genres", "gauge", "Genres in the catalog, at any depth")
+           .sample("recomtree_catalog_genres", root.getDisplayLineCount() - movies);
+        out.family("recomtree_catalog_ratings", "gauge", "Ratings given to the movies of the catalog")
+           .sample("recomtree_catalog_ratings", root.getTotalRatingCount());
+
+        // Per-profile ratings and the item-item similarity built from them
+        CatalogIndex index = root.getIndex();
+        if (index != null) {
+            out.family("recomtree_user_profiles", "gauge", "User profiles with at least one rating")
+               .sample("recomtree_user_profiles", index.getUserRatings().getUserCount());
+            out.family("recomtree_user_ratings", "gauge", "Latest score of each profile for each movie it rated")
+               .sample("recomtree_user_ratings", index.getUserRatings().getRatingCount());
+            out.family("recomtree_similarity_pending", "gauge", "Rating changes not yet in the published similarity lists")
+               .sample("recomtree_similarity_pending", index.getSimilarity().getPending());
+        }
+    }
+
+    private void exportPersistence(PrometheusWriter out) {
+        out.family("recomtree_snapshot_load_seconds", "gauge", "Time taken to load the catalog at startup")
+           .sample("recomtree_snapshot_load_seconds", PersistenceMetrics.getLoadNanos() / 1e9,
+                   "loader", PersistenceMetrics.getLoader());
+        out.family("recomtree_snapshot_load_bytes", "gauge", "Size of the snapshot loaded at startup")
+           .sample("recomtree_snapshot_load_bytes", PersistenceMetrics.getLoadBytes());
+
+        out.family("recomtree_snapshot_save_seconds", "histogram", "Full snapshot saves")
+           .histogram("recomtree_snapshot_save_seconds", PersistenceMetrics.getSaveTimes(),
+                   PrometheusWriter.LATENCY_BOUNDS_MICROS, PrometheusWriter.MICROS_PER_SECOND);
+        out.family("recomtree_snapshot_save_failures_total", "counter", "Full snapshot saves that failed")
+           .sample("recomtree_snapshot_save_failures_total", PersistenceMetrics.getFailedSaves());
+        out.family("recomtree_checkpoint_seconds", "histogram", "Incremental checkpoints")
+           .histogram("recomtree_checkpoint_seconds", PersistenceMetrics.getCheckpointTimes(),
+                   PrometheusWriter.LATENCY_BOUNDS_MICROS, PrometheusWriter.MICROS_PER_SECOND);
+        out.family("recomtree_checkpoint_failures_total", "counter", "Incremental checkpoints that failed")
+           .sample("recomtree_checkpoint_failures_total", PersistenceMetrics.getFailedCheckpoints());
+        out.family("recomtree_wal_fsync_seconds", "histogram", "Mutation log fsyncs")
+           .histogram("recomtree_wal_fsync_seconds", PersistenceMetrics.getFsyncTimes(),
+                   PrometheusWriter.LATENCY_BOUNDS_MICROS, PrometheusWriter.MICROS_PER_SECOND);
+
+        if (RecommendationServer.mutationLog != null) {
+            out.family("recomtree_wal_appended_lsn", "gauge", "Number of the last mutation log record appended")
+               .sample("recomtree_wal_appended_lsn", RecommendationServer.mutationLog.getAppendedLsn());
+            out.family("recomtree_wal_durable_lsn", "gauge", "Number of the last mutation log record on disk")
+               .sample("recomtree_wal_durable_lsn", RecommendationServer.mutationLog.getDurableLsn());
+            out.family("recomtree_wal_segment", "gauge", "Current mutation log segment")
+               .sample("recomtree_wal_segment", RecommendationServer.mutationLog.getSegment());
+        }
+    }
+
+    // Heap, GC and thread stats, named like the usual JVM exporters
+    private void exportJvm(PrometheusWriter out) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        out.family("jvm_memory_bytes_used", "gauge", "Used memory")
+           .sample("jvm_memory_bytes_used", heap.getUsed(), "area", "heap")
+           .sample("jvm_memory_bytes_used", nonHeap.getUsed(), "area", "nonheap");
+        out.family("jvm_memory_bytes_committed", "gauge", "Memory reserved by the JVM")
+           .sample("jvm_memory_bytes_committed", heap.getCommitted(), "area", "heap")
+           .sample("jvm_memory_bytes_committed", nonHeap.getCommitted(), "area", "nonheap");
+        out.family("jvm_memory_bytes_max", "gauge", "Largest memory the JVM may use (-1 if unbounded)")
+           .sample("jvm_memory_bytes_max", heap.getMax(), "area", "heap")
+           .sample("jvm_memory_bytes_max", nonHeap.getMax(), "area", "nonheap");
+
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        out.family("jvm_gc_collection_seconds", "summary", "Time spent in garbage collections, by collector");
+        for (int i = 0; i < collectors.size(); i++) {
+            GarbageCollectorMXBean gc = collectors.get(i);
+            out.sample("jvm_gc_collection_seconds_count", Math.max(0, gc.getCollectionCount()), "gc", gc.getName());
+            out.sample("jvm_gc_collection_seconds_sum", Math.max(0, gc.getCollectionTime()) / 1000.0, "gc", gc.getName());
+        }
+
+        out.family("jvm_threads_current", "gauge", "Live threads")
+           .sample("jvm_threads_current", ManagementFactory.getThreadMXBean().getThreadCount());
+        out.family("jvm_threads_peak", "gauge", "Most live threads since the JVM started")
+           .sample("jvm_threads_peak", ManagementFactory.getThreadMXBean().getPeakThreadCount());
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long cpuNanos = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            if (cpuNanos >= 0) {
+                out.family("process_cpu_seconds_total", "counter", "CPU time used by the server process")
+                   .sample("process_cpu_seconds_total", cpuNanos / 1e9);
+            }
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package com.recomtree.server;
+
+import com.recomtree.composite.Genre;
+import com.recomtree.logging.LogLevel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Non-blocking front end: one acceptor thread hands connections to a small
+// pool of selector event loops. Each connection is just a selection key with
+// a Connection attachment, so idle clients cost a few buffers instead of a thread.
+//
+// Commands run on the event loop thread that read them. One slow command
+// stalls every connection of its loop until it returns: a LIST_ALL of a
+// large catalog without paging or STREAM, or a RATE/ADD waiting for its
+// fsync (awaitDurable, with --wal-fsync=always). Use paged or streamed
+// listings, and more loops (--event-loops) when mutations must be synced.
+//
+// A command that fails with an unexpected exception closes its own
+// connection only; the loop carries on with the others.
+//
+// A client that sends requests faster than it reads the responses is not
+// read any further once HIGH_WATER_BYTES of responses wait to be written
+// to it; the requests it already sent are held until its queue has drained.
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    private static final int HIGH_WATER_BYTES = 256 * 1024; // unsent response bytes that pause reading
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+
+    private final int port;
+    private final Genre rootCatalog;
+    private final EventLoop[] loops;
+
+    NioServer(int port, int loopCount, Genre rootCatalog) {
+        this.port = port;
+        this.rootCatalog = rootCatalog;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    // Start the event loops and accept clients forever
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        RecommendationServer.log("Server listening on port " + port + " (NIO, " + loops.length + " event loops)");
+        RecommendationServer.log("Waiting for client connections...");
+
+        int next = 0;
+        while (true) {
+            // A connection that fails while being set up (e.g. reset by the
+            // client, or out of file descriptors) is dropped; the server goes on
+            SocketChannel channel = null;
+            String clientInfo;
+            try {
+                channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+                clientInfo = remote.getAddress().getHostAddress() + ":" + remote.getPort();
+            } catch (IOException e) {
+                if (!serverChannel.isOpen()) {
+                    throw e;
+                }
+                RecommendationServer.log(LogLevel.WARN, "ERROR: Failed to accept a connection: " + e.getMessage());
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException closeError) {
+                        // nothing more to do with it
+                    }
+                }
+                continue;
+            }
+            RecommendationServer.connectionAccepted(clientInfo);
+
+            // Round-robin connections over the loops
+            loops[next].register(new Connection(channel, new ClientSession(clientInfo, rootCatalog)));
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    // Per-connection state, stored as the selection key attachment
+    private static class Connection {
+        final SocketChannel channel;
+        final ClientSession session;
+        final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        long pendingBytes;      // still to be written from pendingWrites
+        boolean readPaused;     // too much queued: not reading until it is written
+        byte[] lineBuffer = new byte[256];
+        int lineLength;
+        boolean closeAfterWrite;
+        ByteBuffer frameBuffer; // partial binary frames, in write mode (null in text mode)
+        ListingStream stream;   // streamed listing being written
+        ByteBuffer heldInput;   // text requests that arrived behind a stream or a full queue
+
+        Connection(SocketChannel channel, ClientSession session) {
+            this.channel = channel;
+            this.session = session;
+        }
+
+        // Queue bytes to write
+        void queue(ByteBuffer buffer) {
+            pendingWrites.add(buffer);
+            pendingBytes += buffer.remaining();
+        }
+
+        // Append one byte of the current request line
+        boolean appendByte(byte b) {
+            if (lineLength == lineBuffer.length) {
+                if (lineBuffer.length >= MAX_LINE_BYTES) {
+                    return false;
+                }
+                lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineBuffer.length * 2, MAX_LINE_BYTES));
+            }
+            lineBuffer[lineLength++] = b;
+            return true;
+        }
+
+        // Make room for more bytes of binary frames
+        ByteBuffer frameSpace(int needed) {
+            if (frameBuffer.remaining() < needed) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(frameBuffer.capacity() * 2, frameBuffer.position() + needed));
+                frameBuffer.flip();
+                grown.put(frameBuffer);
+                frameBuffer = grown;
+            }
+            return frameBuffer;
+        }
+
+        // Take the buffered line, dropping a trailing carriage return
+        String takeLine() {
+            int length = lineLength;
+            if (length > 0 && lineBuffer[length - 1] == '\r') {
+                length--;
+            }
+            lineLength = 0;
+            return new String(lineBuffer, 0, length, CHARSET);
+        }
+    }
+
+    // One selector thread serving many connections
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Connection> registrations = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        // Called from the acceptor thread
+        void register(Connection connection) {
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                flush(key, connection);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(key, connection);
+                            }
+                        } catch (IOException e) {
+                            connection.session.logClient(LogLevel.WARN, "ERROR: " + e.getMessage());
+                            close(key, connection);
+                        } catch (RuntimeException e) {
+                            connection.session.logClient(LogLevel.ERROR, "ERROR: Unexpected failure, closing connection: " + e);
+                            close(key, connection);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    RecommendationServer.log(LogLevel.ERROR, "Event loop error: " + e);
+                }
+            }
+        }
+
+        // Attach connections handed over by the acceptor and greet them
+        private void registerPending() {
+            Connection connection;
+            while ((connection = registrations.poll()) != null) {
+                SelectionKey key;
+                try {
+                    key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    connection.session.close();
+                    continue;
+                }
+                connection.session.logClient("Connection established, sending welcome message...");
+                try {
+                    send(key, connection, ClientSession.WELCOME_MESSAGES);
+                    flush(key, connection);
+                } catch (IOException | RuntimeException e) {
+                    connection.session.logClient(LogLevel.WARN, "ERROR: " + e.getMessage());
+                    close(key, connection);
+                }
+            }
+        }
+
+        // Read available bytes and handle every complete request. Pipelined
+        // requests arriving together are answered in order and written out
+        // with one flush.
+        private void read(SelectionKey key, Connection connection) throws IOException {
+            readBuffer.clear();
+            int count = connection.channel.read(readBuffer);
+            if (count < 0) {
+                close(key, connection);
+                return;
+            }
+            readBuffer.flip();
+
+            process(key, connection, readBuffer);
+            if (key.isValid()) {
+                flush(key, connection);
+            }
+        }
+
+        // Handle the requests in some input bytes. Stops early when a streamed
+        // listing starts: reading pauses until it has been written.
+        private void process(SelectionKey key, Connection connection, ByteBuffer input) throws IOException {
+            if (connection.frameBuffer == null) {
+                readLines(key, connection, input);
+            }
+            // Also right after the switch: the rest of this input is already binary
+            if (connection.frameBuffer != null && key.isValid() && !connection.closeAfterWrite
+                    && connection.stream == null && !connection.readPaused) {
+                readFrames(key, connection, input);
+            }
+        }
+
+        // Text protocol: one request per line
+        private void readLines(SelectionKey key, Connection connection, ByteBuffer input) throws IOException {
+            while (input.hasRemaining() && !connection.closeAfterWrite) {
+                byte b = input.get();
+                if (b != '\n') {
+                    if (!connection.appendByte(b)) {
+                        connection.session.logClient(LogLevel.WARN, "ERROR: Request line too long, closing connection");
+                        close(key, connection);
+                        return;
+                    }
+                    continue;
+                }
+
+                String response = connection.session.handle(connection.takeLine());
+                if (response == null) {
+                    // EXIT: stop reading, close once the queue is drained
+                    connection.closeAfterWrite = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+
+                ListingStream stream = connection.session.takeStream();
+                if (stream != null) {
+                    // Keep what follows (the readBuffer is shared) until the listing is written
+                    if (input.hasRemaining()) {
+                        connection.heldInput = ByteBuffer.allocate(input.remaining()).put(input).flip();
+                    }
+                    startStream(key, connection, stream);
+                    return;
+                }
+                send(key, connection, ClientSession.responseLines(response));
+
+                if (connection.session.isBinary()) {
+                    connection.frameBuffer = ByteBuffer.allocate(4096);
+                    return;
+                }
+                if (connection.pendingBytes > HIGH_WATER_BYTES) {
+                    if (input.hasRemaining()) {
+                        connection.heldInput = ByteBuffer.allocate(input.remaining()).put(input).flip();
+                    }
+                    pauseReading(key, connection);
+                    return;
+                }
+            }
+        }
+
+        // Binary protocol: length-prefixed frames (see BinaryProtocol)
+        private void readFrames(SelectionKey key, Connection connection, ByteBuffer input) throws IOException {
+            ByteBuffer frames = connection.frameSpace(input.remaining());
+            frames.put(input);
+            frames.flip();
+
+            while (frames.remaining() >= 4) {
+                int length = frames.getInt(frames.position());
+                if (length < BinaryProtocol.HEADER_BYTES || length > BinaryProtocol.MAX_FRAME_BYTES) {
+                    connection.session.logClient(LogLevel.WARN, "ERROR: Bad frame length " + length + ", closing connection");
+                    close(key, connection);
+                    return;
+                }
+                if (frames.remaining() < 4 + length) {
+                    break; // rest of the frame not here yet
+                }
+
+                frames.getInt();
+                byte opcode = frames.get();
+                int id = frames.getInt();
+                frames.get(); // status, unused in requests
+                byte[] payload = new byte[length - BinaryProtocol.HEADER_BYTES];
+                frames.get(payload);
+
+                byte[] response = connection.session.handleFrame(opcode, id, payload);
+                if (response == null) {
+                    // EXIT: stop reading, close once the queue is drained
+                    connection.closeAfterWrite = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+
+                ListingStream stream = connection.session.takeStream();
+                if (stream != null) {
+                    // Later frames stay in the frame buffer until the listing is written
+                    startStream(key, connection, stream);
+                    break;
+                }
+                connection.queue(ByteBuffer.wrap(response));
+                connection.session.responseQueued(response.length);
+                if (connection.pendingBytes > HIGH_WATER_BYTES) {
+                    // Later frames stay in the frame buffer until the queue has drained
+                    pauseReading(key, connection);
+                    break;
+                }
+            }
+            frames.compact();
+        }
+
+        // Stop reading a client whose responses pile up
+        private void pauseReading(SelectionKey key, Connection connection) {
+            connection.readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        // Read again after a streamed listing or a full queue, starting with
+        // the requests held back meanwhile. Returns false if there is nothing
+        // to write.
+        private boolean resumeReading(SelectionKey key, Connection connection) throws IOException {
+            connection.readPaused = false;
+            if (!key.isValid()) {
+                return false;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+
+            ByteBuffer held = connection.heldInput;
+            connection.heldInput = null;
+            process(key, connection, held != null ? held : ByteBuffer.allocate(0));
+            return key.isValid() && (!connection.pendingWrites.isEmpty() || connection.stream != null);
+        }
+
+        // Write a streamed listing before reading further requests
+        private void startStream(SelectionKey key, Connection connection, ListingStream stream) {
+            connection.stream = stream;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        // Queue the next chunk of the streamed listing. Once it is finished,
+        // go back to the requests held behind it. Returns false if there is
+        // nothing left to write.
+        private boolean continueStream(SelectionKey key, Connection connection) throws IOException {
+            byte[] chunk = connection.stream.nextChunk();
+            if (chunk != null) {
+                connection.queue(ByteBuffer.wrap(chunk));
+                return true;
+            }
+
+            connection.session.logStreamed(connection.stream);
+            connection.stream = null;
+            return resumeReading(key, connection);
+        }
+
+        // Encode response lines plus the end marker and queue them
+        private void send(SelectionKey key, Connection connection, String[] lines) throws IOException {
+            int size = 0;
+            byte[][] encoded = new byte[lines.length + 1][];
+            for (int i = 0; i < lines.length; i++) {
+                encoded[i] = lines[i].getBytes(CHARSET);
+                size += encoded[i].length + LINE_SEPARATOR.length;
+            }
+            encoded[lines.length] = connection.session.endMarker().getBytes(CHARSET);
+            size += encoded[lines.length].length + LINE_SEPARATOR.length;
+
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            for (byte[] line : encoded) {
+                buffer.put(line).put(LINE_SEPARATOR);
+            }
+            buffer.flip();
+
+            connection.queue(buffer);
+            connection.session.logSent(lines);
+            connection.session.responseQueued(size);
+        }
+
+        // Write queued buffers until the socket would block. Several queued
+        // responses go out in one gathering write. A streamed listing is
+        // produced one chunk at a time, only when the previous one is written,
+        // and a paused connection is read again once everything is written.
+        private void flush(SelectionKey key, Connection connection) throws IOException {
+            Queue<ByteBuffer> queue = connection.pendingWrites;
+            while (!queue.isEmpty() || (connection.stream != null && continueStream(key, connection))
+                    || (connection.readPaused && resumeReading(key, connection))) {
+                if (queue.isEmpty()) {
+                    continue; // a stream just started behind the one that ended
+                }
+                if (queue.size() == 1) {
+                    connection.pendingBytes -= connection.channel.write(queue.peek());
+                } else {
+                    connection.pendingBytes -= connection.channel.write(queue.toArray(new ByteBuffer[0]));
+                }
+                while (!queue.isEmpty() && !queue.peek().hasRemaining()) {
+                    queue.poll();
+                }
+                if (!queue.isEmpty()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (!key.isValid()) {
+                return;
+            }
+
+            connection.session.responsesFlushed();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (connection.closeAfterWrite) {
+                close(key, connection);
+            }
+        }
+
+        private void close(SelectionKey key, Connection connection) {
+            if (!key.isValid()) {
+                return;
+            }
+            key.cancel();
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                connection.session.logClient(LogLevel.WARN, "ERROR closing socket: " + e.getMessage());
+            }
+            connection.session.close();
+        }
+    }
+}
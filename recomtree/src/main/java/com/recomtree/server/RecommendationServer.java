@@ -1,27 +1,45 @@
 package com.recomtree.server;
 
 import com.recomtree.composite.Genre;
+import com.recomtree.logging.AsyncLogger;
+import com.recomtree.logging.LogLevel;
+import com.recomtree.metrics.CommandCosts;
+import com.recomtree.metrics.CommandTimings;
+import com.recomtree.metrics.PrometheusWriter;
+import com.recomtree.persistence.Checkpointer;
+import com.recomtree.persistence.MutationLog;
 import com.recomtree.persistence.TreePersistence;
-import com.recomtree.command.CommandInvoker;
-import com.recomtree.service.CatalogService;
+import com.recomtree.service.RecommendationCache;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.charset.Charset;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.time.Duration;
 
 // Server for the recommendation system
 public class RecommendationServer {
     private static final int PORT = 8888;
+    private static final int ACCEPT_BACKLOG = 1024;
     private static Genre rootCatalog;
-    private static final DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm:ss");
-    private static final ActivityMetrics metrics = new ActivityMetrics();
+    static final ActivityMetrics metrics = new ActivityMetrics();
+    static AsyncLogger logger; // set by main()
+    static RecommendationCache recommendationCache; // null when disabled (--cache-size=0)
+    static MutationLog mutationLog; // null when disabled (--wal=false)
+    private static Checkpointer checkpointer; // null unless --checkpoint-seconds is set
+    private static Thread compactor; // null unless the mutation log is compacted in the background
 
     // Class to track activity metrics
-    private static class ActivityMetrics {
+    static class ActivityMetrics {
         private final AtomicInteger totalConnections = new AtomicInteger(0);
         private final AtomicInteger currentConnections = new AtomicInteger(0);
         private final AtomicInteger totalCommands = new AtomicInteger(0);
@@ -30,6 +48,8 @@ public class RecommendationServer {
         private final AtomicInteger userLogins = new AtomicInteger(0);
         private final AtomicInteger failedLogins = new AtomicInteger(0);
         private final LocalDateTime serverStartTime = LocalDateTime.now();
+        private final CommandTimings timings = new CommandTimings();
+        private final CommandCosts costs = new CommandCosts();
 
         public void incrementTotalConnections() {
             totalConnections.incrementAndGet();
@@ -43,11 +63,44 @@ public class RecommendationServer {
             currentConnections.decrementAndGet();
         }
 
+        public int getCurrentConnections() {
+            return currentConnections.get();
+        }
+
         public void incrementCommand(String commandName) {
             totalCommands.incrementAndGet();
             commandCounts.computeIfAbsent(commandName, k -> new AtomicInteger(0)).incrementAndGet();
         }
 
+        // Phase times (nanoseconds) and response size of one answered command
+        public void recordTimings(String commandName, long parseNanos, long executeNanos, long writeNanos, long bytes) {
+            timings.record(commandName, parseNanos, executeNanos, writeNanos, bytes);
+        }
+
+        // Start a new latency interval; the finished one is kept as a snapshot
+        public void rotateTimings() {
+            timings.rotate();
+        }
+
+        public String getTimingReport() {
+            return timings.getReport();
+        }
+
+        // CPU time and allocations of one command, from the thread counters
+        // read before and after it (CommandCosts.threadCpuTime() etc.)
+        public void recordCosts(String commandName, String role, String request,
+                                long cpuBefore, long cpuAfter, long allocatedBefore, long allocatedAfter) {
+            costs.record(commandName, role, request, cpuBefore, cpuAfter, allocatedBefore, allocatedAfter);
+        }
+
+        public void resetTopCosts() {
+            costs.resetTop();
+        }
+
+        public String getCostReport() {
+            return costs.getReport();
+        }
+
         public void incrementAdminLogins() {
             adminLogins.incrementAndGet();
         }
@@ -60,6 +113,45 @@ public class RecommendationServer {
             failedLogins.incrementAndGet();
         }
 
+        // Counters, gauges and latency histograms in the Prometheus format
+        public void export(PrometheusWriter out) {
+            Duration uptime = Duration.between(serverStartTime, LocalDateTime.now());
+            out.family("recomtree_uptime_seconds", "gauge", "Time since the server started")
+               .sample("recomtree_uptime_seconds", uptime.toMillis() / 1000.0);
+            out.family("recomtree_connections_total", "counter", "Connections accepted")
+               .sample("recomtree_connections_total", totalConnections.get());
+            out.family("recomtree_connections_active", "gauge", "Connections currently open")
+               .sample("recomtree_connections_active", currentConnections.get());
+
+            out.family("recomtree_commands_total", "counter", "Commands executed, by command");
+            List<String> names = new ArrayList<>(commandCounts.keySet());
+            Collections.sort(names);
+            for (int i = 0; i < names.size(); i++) {
+                out.sample("recomtree_commands_total", commandCounts.get(names.get(i)).get(), "command", names.get(i));
+            }
+
+            out.family("recomtree_logins_total", "counter", "Login attempts, by result")
+               .sample("recomtree_logins_total", adminLogins.get(), "result", "admin")
+               .sample("recomtree_logins_total", userLogins.get(), "result", "user")
+               .sample("recomtree_logins_total", failedLogins.get(), "result", "failed");
+
+            timings.export(out);
+            costs.export(out);
+
+            if (recommendationCache != null) {
+                out.family("recomtree_cache_hits_total", "counter", "Recommendation cache hits")
+                   .sample("recomtree_cache_hits_total", recommendationCache.getHits());
+                out.family("recomtree_cache_misses_total", "counter", "Recommendation cache misses")
+                   .sample("recomtree_cache_misses_total", recommendationCache.getMisses());
+                out.family("recomtree_cache_evictions_total", "counter", "Recommendation cache evictions")
+                   .sample("recomtree_cache_evictions_total", recommendationCache.getEvictions());
+                out.family("recomtree_cache_entries", "gauge", "Entries in the recommendation cache")
+                   .sample("recomtree_cache_entries", recommendationCache.size());
+                out.family("recomtree_cache_bytes", "gauge", "Estimated size of the cached responses")
+                   .sample("recomtree_cache_bytes", recommendationCache.getEstimatedBytes());
+            }
+        }
+
         public String getSummary() {
             Duration uptime = Duration.between(serverStartTime, LocalDateTime.now());
             long hours = uptime.toHours();
@@ -83,32 +175,113 @@ public class RecommendationServer {
                     sb.append("  - ").append(cmd).append(": ").append(count.get()).append(" times\n")
                 );
             }
+            if (recommendationCache != null) {
+                sb.append("\nRecommendation cache: ").append(recommendationCache.getSummary()).append("\n");
+            }
+            sb.append("\n").append(timings.getReport());
+            sb.append("\n").append(costs.getReport());
             sb.append("=============================================\n");
             return sb.toString();
         }
     }
 
-    // Method to log messages with timestamp
-    private static void log(String message) {
-        String timestamp = LocalDateTime.now().format(timeFormatter);
-        System.out.println("[" + timestamp + "] " + message);
+    // Method to log messages (timestamps are added by the logger's writer thread)
+    static void log(String message) {
+        logger.info(message);
+    }
+
+    // Method to log messages at a given level
+    static void log(LogLevel level, String message) {
+        logger.log(level, message);
+    }
+
+    // Check whether a level is logged before building an expensive message
+    static boolean isLogEnabled(LogLevel level) {
+        return logger.isEnabled(level);
     }
 
     // Method to display metrics
     private static void displayMetrics() {
-        System.out.println(metrics.getSummary());
+        logger.info(metrics.getSummary());
+    }
+
+    // Build the asynchronous logger from the startup options
+    private static AsyncLogger createLogger(String[] args) {
+        LogLevel level = LogLevel.valueOf(option(args, "log-level", "INFO").toUpperCase());
+        int capacity = Integer.parseInt(option(args, "log-buffer", "8192"));
+        boolean console = Boolean.parseBoolean(option(args, "log-console", "true"));
+        String file = option(args, "log-file", null);
+
+        AsyncLogger created;
+        try {
+            created = new AsyncLogger(capacity, level, console, file);
+        } catch (IOException e) {
+            System.err.println("Cannot open log file, logging to console only: " + e.getMessage());
+            try {
+                created = new AsyncLogger(capacity, level, true, null);
+            } catch (IOException impossible) {
+                throw new UncheckedIOException(impossible);
+            }
+        }
+
+        // Sampling, e.g. --log-sample=DEBUG:100,INFO:10
+        String sampling = option(args, "log-sample", "");
+        for (String rule : sampling.split(",")) {
+            String[] parts = rule.split(":");
+            if (parts.length == 2) {
+                created.setSampleRate(LogLevel.valueOf(parts[0].trim().toUpperCase()), Integer.parseInt(parts[1].trim()));
+            }
+        }
+        return created;
     }
 
     public static void main(String[] args) {
+        // Modes: thread (default), virtual, pool, nio
+        String mode = option(args, "mode", "thread");
+        int eventLoops = Integer.parseInt(option(args, "event-loops",
+                String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+        int poolSize = Integer.parseInt(option(args, "pool-size", "200"));
+        int cacheSize = Integer.parseInt(option(args, "cache-size", "1024"));
+        boolean walEnabled = Boolean.parseBoolean(option(args, "wal", "true"));
+        MutationLog.FsyncPolicy fsync = MutationLog.FsyncPolicy.valueOf(option(args, "wal-fsync", "interval").toUpperCase());
+        long fsyncIntervalMs = Long.parseLong(option(args, "wal-fsync-ms", "200"));
+        long compactSeconds = Long.parseLong(option(args, "compact-seconds", "300"));
+        long checkpointSeconds = Long.parseLong(option(args, "checkpoint-seconds", "0"));
+        long metricsIntervalSeconds = Long.parseLong(option(args, "metrics-interval", "60"));
+        int metricsPort = Integer.parseInt(option(args, "metrics-port", "0"));
+        String metricsHost = option(args, "metrics-host", "127.0.0.1");
+        TreePersistence.Format snapshotFormat = TreePersistence.Format.valueOf(option(args, "snapshot", "json").toUpperCase());
+
+        logger = createLogger(args);
+
         log("========================================");
         log("Starting RecomTree Server...");
         log("========================================");
 
         // Load saved data
         log("Loading catalog data...");
+        TreePersistence.setFormat(snapshotFormat);
+        TreePersistence.setLogger(logger);
         rootCatalog = TreePersistence.load();
         log("Catalog loaded successfully!");
 
+        // Log every change so a crash doesn't lose what was done since the last save
+        if (walEnabled) {
+            try {
+                mutationLog = TreePersistence.openLog(fsync, fsyncIntervalMs);
+                log("Mutation log enabled (segment " + mutationLog.getSegment() + ", fsync " +
+                        fsync.name().toLowerCase() + (fsync == MutationLog.FsyncPolicy.INTERVAL ? " " + fsyncIntervalMs + " ms" : "") + ")");
+            } catch (IOException e) {
+                log(LogLevel.ERROR, "Cannot open mutation log, changes are only saved on shutdown: " + e.getMessage());
+            }
+        }
+
+        // One recommendation cache shared by all sessions
+        if (cacheSize > 0) {
+            recommendationCache = new RecommendationCache(cacheSize);
+            log("Recommendation cache enabled (" + cacheSize + " entries)");
+        }
+
         // Save when server shuts down
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
@@ -116,200 +289,349 @@ public class RecommendationServer {
                 log("Displaying final metrics...");
                 displayMetrics();
                 log("Saving catalog state...");
-                TreePersistence.save(rootCatalog);
+                if (compactor != null) {
+                    // No compaction may start after (or run during) the final save
+                    compactor.interrupt();
+                    try {
+                        compactor.join(5000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (checkpointer != null) {
+                    checkpointer.stop(); // final checkpoint: only what changed since the last one
+                } else {
+                    TreePersistence.save(rootCatalog);
+                }
+                TreePersistence.closeLog();
                 log("State saved. Goodbye!");
+                logger.close();
             }
         });
 
+        // Serve the metrics over HTTP for scrapers. The periodic console
+        // summary is then left out (it is still shown at shutdown).
+        boolean metricsServed = false;
+        if (metricsPort > 0) {
+            try {
+                new MetricsEndpoint(metricsHost, metricsPort, rootCatalog).start();
+                metricsServed = true;
+                log("Metrics served at http://" + metricsHost + ":" + metricsPort + "/metrics");
+            } catch (IOException e) {
+                log(LogLevel.ERROR, "Cannot start the metrics endpoint: " + e.getMessage());
+            }
+        }
+
         // Start metrics display thread (every 5 minutes)
-        Thread metricsThread = new Thread(() -> {
-            while (true) {
-                try {
-                    Thread.sleep(300000); // 5 minutes
-                    displayMetrics();
-                } catch (InterruptedException e) {
-                    break;
+        if (!metricsServed) {
+            Thread metricsThread = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(300000); // 5 minutes
+                        displayMetrics();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
                 }
-            }
-        });
-        metricsThread.setDaemon(true);
-        metricsThread.start();
-        log("Metrics reporting enabled (every 5 minutes)");
+            });
+            metricsThread.setDaemon(true);
+            metricsThread.start();
+            log("Metrics reporting enabled (every 5 minutes)");
+        }
+
+        // Close a latency interval now and then, so METRICS shows recent values
+        if (metricsIntervalSeconds > 0) {
+            Thread intervalThread = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(metricsIntervalSeconds * 1000);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    metrics.rotateTimings();
+                }
+            }, "metrics-interval");
+            intervalThread.setDaemon(true);
+            intervalThread.start();
+        }
+
+        // Save the changed top-level genres in the background; each checkpoint
+        // also truncates the mutation log, so it replaces the compaction below
+        if (checkpointSeconds > 0) {
+            checkpointer = new Checkpointer(rootCatalog, snapshotFormat, checkpointSeconds, logger);
+            checkpointer.start();
+            log("Incremental checkpoints enabled (every " + checkpointSeconds + " s)");
+        }
+
+        // Fold the mutation log into a new snapshot from time to time
+        if (mutationLog != null && compactSeconds > 0 && checkpointer == null) {
+            compactor = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(compactSeconds * 1000);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (mutationLog.getRecordsInSegment() > 0) {
+                        TreePersistence.save(rootCatalog);
+                        log(LogLevel.DEBUG, "Mutation log compacted into a new snapshot");
+                    }
+                }
+            }, "wal-compactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        }
 
         try {
-            ServerSocket serverSocket = new ServerSocket(PORT);
-            log("Server listening on port " + PORT);
-            log("Waiting for client connections...");
-
-            // Keep accepting clients
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                String clientInfo = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
-
-                metrics.incrementTotalConnections();
-                metrics.incrementCurrentConnections();
-
-                log(">>> NEW CLIENT CONNECTED: " + clientInfo);
-                log("    [Total connections: " + metrics.totalConnections.get() +
-                    " | Active: " + metrics.currentConnections.get() + "]");
-
-                // Create new thread for each client
-                ClientHandler handler = new ClientHandler(clientSocket, clientInfo);
-                Thread thread = new Thread(handler);
-                thread.start();
+            if ("nio".equalsIgnoreCase(mode)) {
+                new NioServer(PORT, eventLoops, rootCatalog).run();
+            } else {
+                runBlocking(createExecutor(mode, poolSize));
             }
         } catch (IOException e) {
-            System.err.println("Server connection error: " + e.getMessage());
+            log(LogLevel.ERROR, "Server connection error: " + e.getMessage());
+        }
+    }
+
+    // Read a "--name=value" startup option, or return the default
+    static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
+
+    // Log a newly accepted connection and update the counters
+    static void connectionAccepted(String clientInfo) {
+        metrics.incrementTotalConnections();
+        metrics.incrementCurrentConnections();
+
+        log(">>> NEW CLIENT CONNECTED: " + clientInfo);
+        log("    [Total connections: " + metrics.totalConnections.get() +
+            " | Active: " + metrics.currentConnections.get() + "]");
+    }
+
+    // Pick how blocking client handlers are run
+    private static Executor createExecutor(String mode, int poolSize) {
+        if ("virtual".equalsIgnoreCase(mode)) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                log("Client sessions run on virtual threads");
+                return virtual;
+            }
+            log(LogLevel.WARN, "Virtual threads are not available on this JVM, using a bounded pool instead");
+            mode = "pool";
+        }
+        if ("pool".equalsIgnoreCase(mode)) {
+            log("Client sessions run on a bounded pool of " + poolSize + " threads");
+            AtomicInteger threadNumber = new AtomicInteger(0);
+            return Executors.newFixedThreadPool(poolSize,
+                    r -> new Thread(r, "client-" + threadNumber.incrementAndGet()));
+        }
+        // Create new thread for each client
+        return r -> new Thread(r).start();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() exists from Java 21 on; the
+    // project still compiles for 17, so look it up reflectively
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    // Blocking mode: each client handler runs on the given executor
+    private static void runBlocking(Executor executor) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(PORT, ACCEPT_BACKLOG);
+        log("Server listening on port " + PORT);
+        log("Waiting for client connections...");
+
+        // Keep accepting clients
+        while (true) {
+            Socket clientSocket = serverSocket.accept();
+            String clientInfo = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
+
+            connectionAccepted(clientInfo);
+
+            ClientHandler handler = new ClientHandler(clientSocket, clientInfo);
+            executor.execute(handler);
         }
     }
 
     // Class to handle each client connection
     private static class ClientHandler implements Runnable {
         private Socket socket;
-        private String currentRole;
-        private CommandInvoker invoker;
-        private String clientInfo;
-        private LocalDateTime sessionStart;
+        private ClientSession session;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
 
         public ClientHandler(Socket socket, String clientInfo) {
             this.socket = socket;
-            this.clientInfo = clientInfo;
-            this.currentRole = "GUEST";
-            this.sessionStart = LocalDateTime.now();
-            CatalogService service = new CatalogService(rootCatalog);
-            this.invoker = new CommandInvoker(service);
-        }
-
-        // Helper method to log with client info
-        private void logClient(String message) {
-            log("[" + clientInfo + "] " + message);
+            this.session = new ClientSession(clientInfo, rootCatalog);
         }
 
         @Override
         public void run() {
-            BufferedReader in = null;
+            BufferedInputStream in = null;
             PrintWriter out = null;
 
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                // Text lines and, after PROTOCOL BINARY, frames are read from
+                // this one buffer, so nothing already read ahead is lost
+                in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                // Flushed by hand: pipelined requests already waiting in the
+                // reader are answered before the responses go out together
+                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
 
-                logClient("Connection established, sending welcome message...");
+                session.logClient("Connection established, sending welcome message...");
 
                 // Send welcome message
-                String[] welcomeMessages = {
-                    "Welcome to RecomTree!",
-                    "",
-                    "Please log in:",
-                    "  - Admin: LOGIN admin admin123",
-                    "  - User:  LOGIN user user123",
-                    "",
-                    "Type HELP to see all available commands",
-                    "<END_OF_RESPONSE>"
-                };
-
-                for (String msg : welcomeMessages) {
-                    out.println(msg);
-                    if (!"<END_OF_RESPONSE>".equals(msg)) {
-                        logClient("<<< SENT: " + msg);
-                    }
-                }
-                logClient("<<< SENT: <END_OF_RESPONSE>");
+                send(out, ClientSession.WELCOME_MESSAGES);
+                out.flush();
 
                 String request;
                 // Read commands from client
-                while ((request = in.readLine()) != null) {
-                    logClient(">>> RECEIVED: " + request);
-
-                    // Check if client wants to exit
-                    if ("EXIT".equalsIgnoreCase(request.trim())) {
-                        logClient("Client requested exit");
+                while ((request = readLine(in)) != null) {
+                    String response = session.handle(request);
+                    if (response == null) {
                         break;
                     }
 
-                    // Split command into parts
-                    String[] parts = request.trim().split("\\s+");
-                    String cmd = parts[0].toUpperCase();
-
-                    // Handle login command
-                    if ("LOGIN".equals(cmd)) {
-                        handleLogin(out, parts);
-                        logClient("<<< SENT: <END_OF_RESPONSE>");
-                        out.println("<END_OF_RESPONSE>");
-                        continue;
-                    }
-
-                    // Execute command
-                    logClient("Executing command as role: " + currentRole);
-                    metrics.incrementCommand(cmd);
-                    String response = invoker.invoke(request, currentRole);
-
                     // Send response to client
-                    String[] responseLines = response.split("\n");
-                    for (String line : responseLines) {
-                        out.println(line);
-                        logClient("<<< SENT: " + line);
+                    ListingStream stream = session.takeStream();
+                    if (stream != null) {
+                        sendStream(out, stream);
+                    } else {
+                        send(out, ClientSession.responseLines(response));
+                    }
+                    if (session.isBinary()) {
+                        flush(out);
+                        serveBinary(in);
+                        break;
+                    }
+                    if (in.available() == 0) {
+                        flush(out);
                     }
-                    logClient("<<< SENT: <END_OF_RESPONSE>");
-                    out.println("<END_OF_RESPONSE>");
                 }
+                flush(out);
             } catch (IOException e) {
-                logClient("ERROR: " + e.getMessage());
+                session.logClient(LogLevel.WARN, "ERROR: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // A failing command ends this session only, not the worker thread
+                session.logClient(LogLevel.ERROR, "ERROR: Unexpected failure, closing connection: " + e);
             } finally {
                 // Close everything
                 try {
                     if (in != null) in.close();
                     if (out != null) out.close();
                     if (socket != null) socket.close();
-
-                    Duration sessionDuration = Duration.between(sessionStart, LocalDateTime.now());
-                    long minutes = sessionDuration.toMinutes();
-                    long seconds = sessionDuration.toSecondsPart();
-
-                    metrics.decrementCurrentConnections();
-                    logClient("<<< CLIENT DISCONNECTED (Session duration: " + minutes + "m " + seconds + "s)");
-                    logClient("    [Active connections: " + metrics.currentConnections.get() + "]");
                 } catch (IOException e) {
-                    logClient("ERROR closing socket: " + e.getMessage());
+                    session.logClient(LogLevel.WARN, "ERROR closing socket: " + e.getMessage());
                 }
+                session.close();
             }
         }
 
-        // Method to handle login
-        private void handleLogin(PrintWriter out, String[] parts) {
-            if (parts.length < 3) {
-                String msg = "USAGE: LOGIN <username> <password>";
-                out.println(msg);
-                logClient("<<< SENT: " + msg);
-                return;
+        // Read one request line, without its line break (null at the end of
+        // the stream). Decoded like the NIO front end does.
+        private String readLine(InputStream in) throws IOException {
+            line.reset();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                line.write(b);
             }
+            if (b == -1 && line.size() == 0) {
+                return null;
+            }
+            byte[] bytes = line.toByteArray();
+            int length = bytes.length;
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            return new String(bytes, 0, length, Charset.defaultCharset());
+        }
 
-            String username = parts[1];
-            String password = parts[2];
-
-            logClient("Login attempt - Username: " + username);
-
-            // Check credentials
-            String response;
-            if ("admin".equals(username) && "admin123".equals(password)) {
-                currentRole = "ADMIN";
-                response = "CONNECTION SUCCESSFUL: You are now ADMIN.";
-                metrics.incrementAdminLogins();
-                logClient("Login successful as ADMIN");
-            } else if ("user".equals(username) && "user123".equals(password)) {
-                currentRole = "USER";
-                response = "CONNECTION SUCCESSFUL: You are now USER.";
-                metrics.incrementUserLogins();
-                logClient("Login successful as USER");
-            } else {
-                response = "ERROR: Invalid credentials.";
-                metrics.incrementFailedLogins();
-                logClient("Login failed - Invalid credentials");
+        // Answer binary frames until EXIT or end of stream, from the same
+        // buffered stream as the text lines: frames a client sent right
+        // behind PROTOCOL BINARY may already be in its buffer
+        private void serveBinary(InputStream in) throws IOException {
+            DataInputStream frames = new DataInputStream(in);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            try {
+                while (true) {
+                    int length;
+                    try {
+                        length = frames.readInt();
+                    } catch (EOFException e) {
+                        return;
+                    }
+                    if (length < BinaryProtocol.HEADER_BYTES || length > BinaryProtocol.MAX_FRAME_BYTES) {
+                        session.logClient(LogLevel.WARN, "ERROR: Bad frame length " + length + ", closing connection");
+                        return;
+                    }
+
+                    byte opcode = frames.readByte();
+                    int id = frames.readInt();
+                    frames.readByte(); // status, unused in requests
+                    byte[] payload = new byte[length - BinaryProtocol.HEADER_BYTES];
+                    frames.readFully(payload);
+
+                    byte[] frame = session.handleFrame(opcode, id, payload);
+                    if (frame == null) {
+                        return;
+                    }
+                    ListingStream stream = session.takeStream();
+                    if (stream != null) {
+                        writeChunks(out, stream);
+                    } else {
+                        out.write(frame);
+                        session.responseQueued(frame.length);
+                    }
+                    if (frames.available() == 0) {
+                        flush(out);
+                    }
+                }
+            } finally {
+                flush(out);
+            }
+        }
+
+        // Flush the responses written so far, which ends their write phase
+        private void flush(Flushable out) throws IOException {
+            out.flush();
+            session.responsesFlushed();
+        }
+
+        // Write a streamed listing straight to the socket, one chunk at a time
+        private void sendStream(PrintWriter out, ListingStream stream) throws IOException {
+            flush(out);
+            OutputStream raw = socket.getOutputStream();
+            writeChunks(raw, stream);
+            flush(raw);
+        }
+
+        private void writeChunks(OutputStream out, ListingStream stream) throws IOException {
+            byte[] chunk;
+            while ((chunk = stream.nextChunk()) != null) {
+                out.write(chunk);
             }
+            session.logStreamed(stream);
+        }
 
-            out.println(response);
-            logClient("<<< SENT: " + response);
+        // Write response lines followed by the end marker
+        private void send(PrintWriter out, String[] lines) {
+            for (String line : lines) {
+                out.println(line);
+            }
+            String marker = session.endMarker();
+            out.println(marker);
+            session.logSent(lines);
+            session.responseQueued(ClientSession.encodedLength(lines, marker));
         }
     }
 }
-
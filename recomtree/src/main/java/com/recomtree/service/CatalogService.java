@@ -1,112 +1,278 @@
 package com.recomtree.service;
 
 import com.recomtree.composite.CatalogComponent;
+import com.recomtree.composite.CatalogIndex;
+import com.recomtree.composite.DisplayCursor;
 import com.recomtree.composite.Genre;
 import com.recomtree.composite.Movie;
+import com.recomtree.persistence.MutationLog;
+import com.recomtree.strategy.BecauseYouRatedStrategy;
 import com.recomtree.strategy.GenreSimilarStrategy;
+import com.recomtree.strategy.GenreTopRatedStrategy;
 import com.recomtree.strategy.RecommendationStrategy;
+import com.recomtree.strategy.SimilarUsersStrategy;
 import com.recomtree.strategy.TopRatedStrategy;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 // Service class to manage the catalog operations
 public class CatalogService {
+    // Strategies keep no state, so one instance of each is shared
+    private static final RecommendationStrategy TOP_RATED = new TopRatedStrategy();
+    private static final RecommendationStrategy GENRE_SIMILAR = new GenreSimilarStrategy();
+    private static final RecommendationStrategy GENRE_TOP_RATED = new GenreTopRatedStrategy();
+    private static final RecommendationStrategy SIMILAR_USERS = new SimilarUsersStrategy();
+    private static final RecommendationStrategy BECAUSE_YOU_RATED = new BecauseYouRatedStrategy();
+
     private Genre root;
+    private final RecommendationCache cache; // may be null (no caching)
+    private final MutationLog mutationLog;   // may be null (changes are only saved on shutdown)
+    private String user;                     // profile whose ratings these are (null: anonymous)
 
     public CatalogService(Genre root) {
+        this(root, null, null);
+    }
+
+    // Service whose recommendations go through a cache shared with other sessions
+    public CatalogService(Genre root, RecommendationCache cache) {
+        this(root, cache, null);
+    }
+
+    // Service that also records every change in the mutation log
+    public CatalogService(Genre root, RecommendationCache cache, MutationLog mutationLog) {
         this.root = root;
+        this.cache = cache;
+        this.mutationLog = mutationLog;
+        // Trees loaded by TreePersistence are already indexed; index hand-built ones here
+        if (root.getIndex() == null) {
+            CatalogIndex.build(root);
+        }
+    }
+
+    // Profile of the logged in user: its ratings are kept per movie
+    // (UserRatings) and SIMILAR_USERS recommends from them
+    public void setUser(String user) {
+        this.user = user;
     }
 
     // Add a movie to a genre without initial rating (supports hierarchical paths like "action/superhero")
     public String addMovie(String genrePath, String title) {
-        // Handle hierarchical genre paths (e.g., "action/superhero")
-        String[] pathParts = genrePath.split("/");
-        Genre targetGenre = root;
+        // Add movie to the final target genre without rating
+        attachMovie(genrePath, new Movie(title, root.getStore()));
 
-        // Navigate or create the genre hierarchy
-        for (int i = 0; i < pathParts.length; i++) {
-            String genreName = pathParts[i].trim();
+        String fullPath = genrePath.replace("/", " > ");
+        return "SUCCESS: Added movie '" + title + "' to " + fullPath + " (not rated yet)";
+    }
 
-            if (genreName.isEmpty()) {
-                continue;
-            }
+    // Old method kept for backward compatibility
+    public String addMovie(String genrePath, String title, double rating) {
+        // Add movie to the final target genre
+        attachMovie(genrePath, new Movie(title, rating, root.getStore()));
 
-            Genre nextGenre = targetGenre.findGenre(genreName);
+        String fullPath = genrePath.replace("/", " > ");
+        return "SUCCESS: Added movie '" + title + "' to " + fullPath + " (rating: " + rating + ")";
+    }
 
-            // If the genre doesn't exist at this level, create it
-            if (nextGenre == null) {
-                nextGenre = new Genre(genreName);
-                targetGenre.add(nextGenre);
-            }
+    // Add several movies (without rating) as one change: a single write on the
+    // index and, with the mutation log, a single wait for the disk
+    public String addMovies(String[] genrePaths, String[] titles) {
+        Movie[] movies = new Movie[titles.length];
+        for (int i = 0; i < titles.length; i++) {
+            movies[i] = new Movie(titles[i], root.getStore());
+        }
 
-            targetGenre = nextGenre;
+        if (mutationLog == null) {
+            insertMovies(genrePaths, movies);
+        } else {
+            long lsn = mutationLog.apply(() -> {
+                insertMovies(genrePaths, movies);
+                long last = 0;
+                for (int i = 0; i < movies.length; i++) {
+                    last = mutationLog.logAdd(movies[i].getId(), genrePaths[i], titles[i], movies[i].getRating());
+                }
+                return last;
+            });
+            mutationLog.awaitDurable(lsn);
         }
 
-        // Add movie to the final target genre without rating
-        Movie newMovie = new Movie(title);
-        targetGenre.add(newMovie);
+        return "SUCCESS: Added " + movies.length + " movie" + (movies.length == 1 ? "" : "s") + " (not rated yet)";
+    }
 
-        String fullPath = genrePath.replace("/", " > ");
-        return "SUCCESS: Added movie '" + title + "' to " + fullPath + " (not rated yet)";
+    private void insertMovies(String[] genrePaths, Movie[] movies) {
+        // The index write lock is reentrant: the nested writes count as one
+        root.getIndex().write(() -> {
+            for (int i = 0; i < movies.length; i++) {
+                insertMovie(genrePaths[i], movies[i]);
+            }
+            return null;
+        });
     }
 
-    // Old method kept for backward compatibility
-    public String addMovie(String genrePath, String title, double rating) {
-        // Handle hierarchical genre paths (e.g., "action/superhero")
-        String[] pathParts = genrePath.split("/");
-        Genre targetGenre = root;
+    // Attach a new movie under a hierarchical genre path (e.g., "action/superhero").
+    // Existing genres are followed through their direct sub-genres; the missing
+    // part of the path is built detached together with the movie and published
+    // with a single add(), so readers see either none or all of the new nodes.
+    private void attachMovie(String genrePath, Movie movie) {
+        if (mutationLog == null) {
+            insertMovie(genrePath, movie);
+            return;
+        }
 
-        // Navigate or create the genre hierarchy
-        for (int i = 0; i < pathParts.length; i++) {
-            String genreName = pathParts[i].trim();
+        long lsn = mutationLog.apply(() -> {
+            insertMovie(genrePath, movie);
+            return mutationLog.logAdd(movie.getId(), genrePath, movie.getName(), movie.getRating());
+        });
+        mutationLog.awaitDurable(lsn);
+    }
 
-            if (genreName.isEmpty()) {
-                continue;
-            }
+    private void insertMovie(String genrePath, Movie movie) {
+        root.getIndex().write(() -> {
+            String[] pathParts = genrePath.split("/");
+            Genre targetGenre = root;
 
-            Genre nextGenre = targetGenre.findGenre(genreName);
+            // Follow the genres that already exist
+            int i = 0;
+            for (; i < pathParts.length; i++) {
+                String genreName = pathParts[i].trim();
 
-            // If the genre doesn't exist at this level, create it
-            if (nextGenre == null) {
-                nextGenre = new Genre(genreName);
-                targetGenre.add(nextGenre);
+                if (genreName.isEmpty()) {
+                    continue;
+                }
+
+                Genre nextGenre = targetGenre.getChildGenre(genreName);
+                if (nextGenre == null) {
+                    break;
+                }
+                targetGenre = nextGenre;
             }
 
-            targetGenre = nextGenre;
-        }
+            // Build the missing genres bottom-up around the movie
+            CatalogComponent newBranch = movie;
+            for (int j = pathParts.length - 1; j >= i; j--) {
+                String genreName = pathParts[j].trim();
 
-        // Add movie to the final target genre
-        Movie newMovie = new Movie(title, rating);
-        targetGenre.add(newMovie);
+                if (genreName.isEmpty()) {
+                    continue;
+                }
 
-        String fullPath = genrePath.replace("/", " > ");
-        return "SUCCESS: Added movie '" + title + "' to " + fullPath + " (rating: " + rating + ")";
+                Genre newGenre = new Genre(genreName, root.getStore());
+                newGenre.add(newBranch);
+                newBranch = newGenre;
+            }
+
+            targetGenre.add(newBranch);
+            return null;
+        });
     }
 
     // Rate a movie (user action)
     public String rateMovie(String title, double rating) {
-        // Find the movie in the catalog
-        List<Movie> allMovies = new ArrayList<>();
-        collectMoviesRecursively(root, allMovies);
-
-        for (int i = 0; i < allMovies.size(); i++) {
-            Movie movie = allMovies.get(i);
-            if (movie.getName().equalsIgnoreCase(title)) {
-                movie.addRating(rating);
-                int count = movie.getRatingCount();
-                double avgRating = movie.getRating();
-                return "SUCCESS: Your rating of " + rating + " has been recorded for '" + title + "'.\n" +
-                       "New average: " + String.format("%.1f", avgRating) + " (" + count + " rating" +
-                       (count > 1 ? "s" : "") + ")";
+        // Find the movie through the title index
+        List<Movie> matches = root.getIndex().findMovies(title);
+        if (matches.isEmpty()) {
+            return "ERROR: Movie '" + title + "' not found in catalog.";
+        }
+
+        // Duplicate titles: the movie added first is the one rated
+        Movie movie = matches.get(0);
+        if (mutationLog == null) {
+            recordRating(movie, rating);
+        } else {
+            long lsn = mutationLog.apply(() -> {
+                recordRating(movie, rating);
+                return mutationLog.logRating(movie.getId(), rating, user);
+            });
+            mutationLog.awaitDurable(lsn);
+        }
+        int count = movie.getRatingCount();
+        double avgRating = movie.getRating();
+        String response = "SUCCESS: Your rating of " + rating + " has been recorded for '" + title + "'.\n" +
+               "New average: " + String.format("%.1f", avgRating) + " (" + count + " rating" +
+               (count > 1 ? "s" : "") + ")";
+
+        if (matches.size() > 1) {
+            response += "\nNote: " + matches.size() + " movies are titled '" + title +
+                        "'; the one added first was rated.";
+        }
+        return response;
+    }
+
+    // Rate several movies as one change. Unknown titles are reported and
+    // skipped; the others are all recorded with a single wait for the disk.
+    public String rateMovies(String[] titles, double[] ratings) {
+        List<Movie> found = new ArrayList<>();
+        List<Double> foundRatings = new ArrayList<>();
+        StringBuilder errors = new StringBuilder();
+        for (int i = 0; i < titles.length; i++) {
+            List<Movie> matches = root.getIndex().findMovies(titles[i]);
+            if (matches.isEmpty()) {
+                errors.append("\nERROR: Movie '").append(titles[i]).append("' not found in catalog.");
+            } else {
+                found.add(matches.get(0)); // same rule as rateMovie: the movie added first
+                foundRatings.add(ratings[i]);
             }
         }
 
-        return "ERROR: Movie '" + title + "' not found in catalog.";
+        if (mutationLog == null) {
+            recordRatings(found, foundRatings);
+        } else if (!found.isEmpty()) {
+            long lsn = mutationLog.apply(() -> {
+                recordRatings(found, foundRatings);
+                long last = 0;
+                for (int i = 0; i < found.size(); i++) {
+                    last = mutationLog.logRating(found.get(i).getId(), foundRatings.get(i), user);
+                }
+                return last;
+            });
+            mutationLog.awaitDurable(lsn);
+        }
+
+        String response = "SUCCESS: Recorded " + found.size() + " of " + titles.length + " rating" +
+                (titles.length == 1 ? "" : "s") + ".";
+        if (found.isEmpty()) {
+            response = "ERROR: No rating recorded.";
+        }
+        return response + errors;
+    }
+
+    // Fold a rating into the movie's average and the user's profile
+    // (the profile first: the average moves the content version, which must
+    // come after the whole change for cached recommendations)
+    private void recordRating(Movie movie, double rating) {
+        if (user != null) {
+            root.getIndex().getUserRatings().rate(user, movie.getId(), (float) rating);
+        }
+        movie.addRating(rating);
+    }
+
+    // Same for a batch: the profile changes once, for all of them
+    private void recordRatings(List<Movie> movies, List<Double> ratings) {
+        long[] movieIds = new long[movies.size()];
+        float[] scores = new float[movies.size()];
+        for (int i = 0; i < movies.size(); i++) {
+            movieIds[i] = movies.get(i).getId();
+            scores[i] = ratings.get(i).floatValue();
+        }
+        if (user != null && movieIds.length > 0) {
+            root.getIndex().getUserRatings().rate(user, movieIds, scores);
+        }
+        for (int i = 0; i < movies.size(); i++) {
+            movies.get(i).addRating(ratings.get(i));
+        }
     }
 
     // List all movies and genres in a specific genre
     public String listSubtree(String genreName) {
+        return root.getIndex().read(() -> renderSubtree(genreName));
+    }
+
+    private String renderSubtree(String genreName) {
         Genre genre = root.findGenre(genreName);
 
         if (genre == null) {
@@ -114,37 +280,218 @@ public class CatalogService {
         }
 
         StringBuilder sb = new StringBuilder();
+        appendGenreHeader(sb, genre);
         genre.display(sb, 0);
         return sb.toString();
     }
 
-    // List all movies in the catalog
-    public String listAll() {
-        StringBuilder sb = new StringBuilder();
-        root.display(sb, 0);
+    // One page of a genre listing: the header (first page only), then up to
+    // pageSize lines starting at line cursor, then where the next page starts.
+    // Each page is read under the catalog lock, but the cursor is a line
+    // number: movies added between two pages shift the lines after them.
+    public String listSubtreePage(String genreName, int pageSize, long cursor) {
+        return root.getIndex().read(() -> {
+            Genre genre = root.findGenre(genreName);
+            if (genre == null) {
+                return "ERROR: Genre '" + genreName + "' not found.";
+            }
+
+            StringBuilder sb = new StringBuilder();
+            if (cursor == 0) {
+                appendGenreHeader(sb, genre);
+            }
+            appendPage(sb, genre, pageSize, cursor);
+            return sb.toString();
+        });
+    }
+
+    // One page of the whole catalog listing
+    public String listAllPage(int pageSize, long cursor) {
+        return root.getIndex().read(() -> {
+            StringBuilder sb = new StringBuilder();
+            appendPage(sb, root, pageSize, cursor);
+            return sb.toString();
+        });
+    }
 
-        if (sb.length() == 0) {
-            return "Catalog is empty.";
+    private void appendPage(StringBuilder sb, Genre genre, int pageSize, long cursor) {
+        DisplayCursor lines = new DisplayCursor(genre);
+        lines.skip(cursor);
+        lines.render(sb, pageSize, Integer.MAX_VALUE);
+
+        if (lines.hasNext()) {
+            sb.append("NEXT_CURSOR: ").append(lines.getPosition());
+        } else {
+            sb.append("END_OF_LIST");
         }
+    }
+
+    // Start a streamed listing of a genre (null for the whole catalog).
+    // Returns null if the genre does not exist.
+    //
+    // The listing is weakly consistent: it is walked without the catalog
+    // lock while it is sent, so it is no snapshot of one version. Every
+    // movie that exists for the whole walk is listed exactly once; movies
+    // added meanwhile may or may not be, and ratings and genre headers are
+    // read as the walk reaches them. LIST_ALL without STREAM gives one
+    // consistent view instead.
+    public DisplayCursor openListing(String genreName) {
+        Genre genre = genreName == null ? root : root.findGenre(genreName);
+        return genre == null ? null : new DisplayCursor(genre);
+    }
 
+    // Header line sent before a streamed genre listing
+    public String listingHeader(String genreName) {
+        Genre genre = root.findGenre(genreName);
+        if (genre == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        appendGenreHeader(sb, genre);
         return sb.toString();
     }
 
+    // Summary line read from the genre's precomputed aggregates
+    private void appendGenreHeader(StringBuilder sb, Genre genre) {
+        int movies = genre.getMovieCount();
+        long ratings = genre.getTotalRatingCount();
+
+        sb.append("[").append(genre.getName()).append("] ");
+        sb.append(movies).append(" movie").append(movies == 1 ? "" : "s").append(", ");
+        if (ratings > 0) {
+            sb.append("average ").append(String.format("%.1f", genre.getAverageRating()));
+            sb.append("/10 from ").append(ratings).append(" rating").append(ratings == 1 ? "" : "s");
+        } else {
+            sb.append("no ratings yet");
+        }
+        sb.append("\n");
+    }
+
+    // List all movies in the catalog
+    public String listAll() {
+        return root.getIndex().read(() -> {
+            StringBuilder sb = new StringBuilder();
+            root.display(sb, 0);
+
+            if (sb.length() == 0) {
+                return "Catalog is empty.";
+            }
+
+            return sb.toString();
+        });
+    }
+
     // Get recommendations based on strategy
     public String recommend(String strategyType, String param) {
-        RecommendationStrategy strategy;
+        RecommendationStrategy strategy = strategyFor(strategyType);
+        if (strategy == null) {
+            return "ERROR: Unknown strategy";
+        }
+        param = withUser(strategy, param);
+        if (param == null) {
+            return "ERROR: SIMILAR_USERS needs a profile: LOGIN user user123 <profile>";
+        }
 
-        // Choose the right strategy
+        if (cache == null) {
+            return renderRecommendations(strategy, param);
+        }
+
+        // The version is read before computing: if the catalog changes while
+        // we compute, the stored entry is already outdated and will just miss
+        long version = root.getIndex().getContentVersion();
+        String cached = cache.get(strategyType, param, version);
+        if (cached != null) {
+            return cached;
+        }
+
+        String response = renderRecommendations(strategy, param);
+        cache.put(strategyType, param, version, response);
+        return response;
+    }
+
+    // Get recommendations in the compact binary encoding used by the binary
+    // protocol, or null for an unknown strategy (or SIMILAR_USERS without a
+    // logged in profile; the text response explains). Layout (big-endian):
+    //   int count, then per movie: long id, float rating, int rating count,
+    //   unsigned short title length, UTF-8 title bytes
+    // A rating count of 0 means "not rated yet".
+    public byte[] recommendEncoded(String strategyType, String param) {
+        RecommendationStrategy strategy = strategyFor(strategyType);
+        if (strategy == null) {
+            return null;
+        }
+        param = withUser(strategy, param);
+        if (param == null) {
+            return null;
+        }
+
+        if (cache == null) {
+            return encodeRecommendations(strategy, param);
+        }
+
+        long version = root.getIndex().getContentVersion();
+        byte[] cached = cache.getEncoded(strategyType, param, version);
+        if (cached != null) {
+            return cached;
+        }
+
+        byte[] response = encodeRecommendations(strategy, param);
+        cache.putEncoded(strategyType, param, version, response);
+        return response;
+    }
+
+    // SIMILAR_USERS recommends for the session's profile: it goes first in the
+    // parameter, so the cache keeps one entry per profile (null if none)
+    private String withUser(RecommendationStrategy strategy, String param) {
+        if (strategy != SIMILAR_USERS) {
+            return param;
+        }
+        return user == null ? null : (user + " " + param).trim();
+    }
+
+    // Choose the right strategy (null if unknown)
+    private RecommendationStrategy strategyFor(String strategyType) {
         if ("TOP_RATED".equals(strategyType)) {
-            strategy = new TopRatedStrategy();
+            return TOP_RATED;
         } else if ("GENRE_SIMILAR".equals(strategyType)) {
-            strategy = new GenreSimilarStrategy();
-        } else {
-            return "ERROR: Unknown strategy";
+            return GENRE_SIMILAR;
+        } else if ("GENRE_TOP_RATED".equals(strategyType)) {
+            return GENRE_TOP_RATED;
+        } else if ("SIMILAR_USERS".equals(strategyType)) {
+            return SIMILAR_USERS;
+        } else if ("BECAUSE_YOU_RATED".equals(strategyType)) {
+            return BECAUSE_YOU_RATED;
+        }
+        return null;
+    }
+
+    private byte[] encodeRecommendations(RecommendationStrategy strategy, String param) {
+        List<Movie> results = root.getIndex().read(() -> strategy.recommend(root, param));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + results.size() * 48);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(results.size());
+            for (int i = 0; i < results.size(); i++) {
+                Movie m = results.get(i);
+                byte[] title = m.getName().getBytes(StandardCharsets.UTF_8);
+                int titleLength = Math.min(title.length, 0xFFFF);
+
+                out.writeLong(m.getId());
+                out.writeFloat((float) m.getRating());
+                out.writeInt(m.getRatingCount());
+                out.writeShort(titleLength);
+                out.write(title, 0, titleLength);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a ByteArrayOutputStream does not fail
         }
+        return bytes.toByteArray();
+    }
 
-        // Get recommendations
-        List<Movie> results = strategy.recommend(root, param);
+    private String renderRecommendations(RecommendationStrategy strategy, String param) {
+        // Get recommendations from one consistent view of the catalog
+        List<Movie> results = root.getIndex().read(() -> strategy.recommend(root, param));
 
         if (results.isEmpty()){
             return "No recommendations found.";
@@ -173,20 +520,6 @@ public class CatalogService {
         return sb.toString();
     }
 
-    // Helper method to collect all movies recursively
-    private void collectMoviesRecursively(CatalogComponent node, List<Movie> accumulator) {
-        if (node instanceof Movie){
-            accumulator.add((Movie) node);
-        }
-        else if (node instanceof Genre) {
-            List<CatalogComponent> children = ((Genre) node).getChildren();
-
-            for (int i = 0; i < children.size(); i++) {
-                collectMoviesRecursively(children.get(i), accumulator);
-            }
-        }
-    }
-
     // Helper class to store a movie with its category path
     private static class MovieWithPath {
         Movie movie;
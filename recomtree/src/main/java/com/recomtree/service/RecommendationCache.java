@@ -0,0 +1,192 @@
+package com.recomtree.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded cache of rendered RECOMMEND responses, shared by all client sessions.
+// Text responses and the compact binary encoding are cached side by side.
+//
+// Entries are keyed by (strategy, parameter) and remember the catalog version
+// they were computed at. Any mutation bumps the version, so an entry from an
+// older version is simply a miss and gets overwritten; nothing has to be
+// invalidated explicitly. Eviction is LRU, split into independently locked
+// segments so concurrent readers rarely wait on each other.
+public class RecommendationCache {
+    private static final int SEGMENTS = 16;
+    private static final int ENTRY_OVERHEAD_BYTES = 96; // map node, entry object, key header
+    private static final char ENCODED_PREFIX = '\u0001'; // keeps binary entries apart from text ones
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int maxEntries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    // Cached response (String or encoded byte[]) and the catalog version it belongs to
+    private static final class Entry {
+        final long version;
+        final Object response;
+
+        Entry(long version, Object response) {
+            this.version = version;
+            this.response = response;
+        }
+    }
+
+    // One LRU map guarded by its own monitor
+    private final class Segment {
+        private final LinkedHashMap<String, Entry> map;
+
+        Segment(int capacity) {
+            this.map = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    if (size() > capacity) {
+                        evictions.increment();
+                        estimatedBytes.addAndGet(-sizeOf(eldest.getKey(), eldest.getValue()));
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized Entry get(String key) {
+            return map.get(key);
+        }
+
+        synchronized void put(String key, Entry entry) {
+            Entry old = map.put(key, entry);
+            estimatedBytes.addAndGet(sizeOf(key, entry) - (old == null ? 0 : sizeOf(key, old)));
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized void clear() {
+            Iterator<Map.Entry<String, Entry>> iterator = map.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> e = iterator.next();
+                estimatedBytes.addAndGet(-sizeOf(e.getKey(), e.getValue()));
+                iterator.remove();
+            }
+        }
+    }
+
+    public RecommendationCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        int perSegment = Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    // Get a cached response, or null if absent or computed at another version
+    public String get(String strategy, String param, long version) {
+        return (String) lookup(key(strategy, param), version);
+    }
+
+    // Store a response computed at the given catalog version
+    public void put(String strategy, String param, long version, String response) {
+        String key = key(strategy, param);
+        segmentFor(key).put(key, new Entry(version, response));
+    }
+
+    // Same as get, for the binary encoding of the response
+    public byte[] getEncoded(String strategy, String param, long version) {
+        return (byte[]) lookup(ENCODED_PREFIX + key(strategy, param), version);
+    }
+
+    public void putEncoded(String strategy, String param, long version, byte[] response) {
+        String key = ENCODED_PREFIX + key(strategy, param);
+        segmentFor(key).put(key, new Entry(version, response));
+    }
+
+    private Object lookup(String key, long version) {
+        Entry entry = segmentFor(key).get(key);
+
+        if (entry == null || entry.version != version) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.response;
+    }
+
+    // Drop every entry (statistics are kept)
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    // Hits divided by lookups (0 before the first lookup)
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    // Rough heap used by keys and responses (Strings counted as 2 bytes per char)
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    // One-line summary for the metrics report
+    public String getSummary() {
+        return String.format("%d/%d entries, hit rate %.1f%% (%d hits, %d misses), %d evictions, ~%d KB",
+                size(), maxEntries, getHitRate() * 100, getHits(), getMisses(), getEvictions(),
+                getEstimatedBytes() / 1024);
+    }
+
+    private Segment segmentFor(String key) {
+        return segments[segmentIndex(key)];
+    }
+
+    // Package-private, like key(): tests use them to find entries sharing a segment
+    static int segmentIndex(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & (SEGMENTS - 1);
+    }
+
+    static String key(String strategy, String param) {
+        return strategy + '\u0000' + (param == null ? "" : param.trim());
+    }
+
+    private static long sizeOf(String key, Entry entry) {
+        long responseBytes = entry.response instanceof byte[]
+                ? ((byte[]) entry.response).length
+                : 2L * ((String) entry.response).length();
+        return ENTRY_OVERHEAD_BYTES + 2L * key.length() + responseBytes;
+    }
+}
@@ -0,0 +1,57 @@
+package com.recomtree.strategy;
+
+import com.recomtree.composite.CatalogComponent;
+import com.recomtree.composite.CatalogIndex;
+import com.recomtree.composite.ItemSimilarity;
+import com.recomtree.composite.Movie;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Strategy to recommend the movies most similar to one movie: the ones that
+// user profiles rated like it (precomputed neighbors from ItemSimilarity)
+// Parameter: "<Movie_Title> [K]" (default: 10 movies)
+public class BecauseYouRatedStrategy implements RecommendationStrategy {
+    private static final int DEFAULT_COUNT = 10;
+
+    @Override
+    public List<Movie> recommend(CatalogComponent root, String parameter) {
+        if (parameter == null || parameter.trim().isEmpty()) {
+            throw new IllegalArgumentException("BECAUSE_YOU_RATED expects a movie: RECOMMEND BECAUSE_YOU_RATED <Movie_Title> [K]");
+        }
+
+        // Optional K after the title
+        String[] parts = parameter.trim().split("\\s+");
+        int count = DEFAULT_COUNT;
+        int titleParts = parts.length;
+        if (parts.length > 1 && parts[parts.length - 1].matches("\\d+")) {
+            count = Integer.parseInt(parts[parts.length - 1]);
+            titleParts--;
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException("K must be at least 1");
+        }
+
+        List<Movie> results = new ArrayList<>();
+        CatalogIndex index = root.getIndex();
+        if (index == null) {
+            return results; // neighbors only exist for indexed catalogs
+        }
+
+        // Underscores stand for spaces, as in RATE_MOVIE
+        String title = String.join(" ", Arrays.copyOf(parts, titleParts)).replace("_", " ");
+        Movie movie = index.findMovie(title);
+        if (movie == null) {
+            return results;
+        }
+
+        ItemSimilarity.Neighbors neighbors = index.getSimilarity().getNeighbors(movie.getId());
+        for (int i = 0; neighbors != null && i < neighbors.size() && results.size() < count; i++) {
+            Movie neighbor = index.findMovieById(neighbors.movieIdAt(i));
+            if (neighbor != null) {
+                results.add(neighbor);
+            }
+        }
+        return results;
+    }
+}
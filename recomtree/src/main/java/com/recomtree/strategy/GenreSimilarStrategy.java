@@ -11,21 +11,20 @@ public class GenreSimilarStrategy implements RecommendationStrategy {
 
     @Override
     public List<Movie> recommend(CatalogComponent root, String genreName) {
-        List<Movie> results = new ArrayList<>();
-
         // Check if root is a genre
         if (!(root instanceof Genre)) {
-            return results;
+            return new ArrayList<>();
         }
 
         // Find the target genre
         Genre targetGenre = ((Genre) root).findGenre(genreName);
 
         if (targetGenre == null) {
-            return results;
+            return new ArrayList<>();
         }
 
-        // Collect all movies from this genre
+        // Collect all movies from this genre (the aggregate count sizes the list)
+        List<Movie> results = new ArrayList<>(targetGenre.getMovieCount());
         collectMovies(targetGenre, results);
         return results;
     }
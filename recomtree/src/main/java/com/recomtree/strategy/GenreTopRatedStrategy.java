@@ -0,0 +1,29 @@
+package com.recomtree.strategy;
+
+import com.recomtree.composite.CatalogComponent;
+import com.recomtree.composite.Genre;
+import com.recomtree.composite.Movie;
+import java.util.ArrayList;
+import java.util.List;
+
+// Strategy to recommend the best rated movies of one genre (and its sub-genres).
+// Reads the genre's precomputed top list instead of walking the subtree.
+public class GenreTopRatedStrategy implements RecommendationStrategy {
+
+    @Override
+    public List<Movie> recommend(CatalogComponent root, String genreName) {
+        // Check if root is a genre
+        if (!(root instanceof Genre)) {
+            return new ArrayList<>();
+        }
+
+        // Find the target genre
+        Genre targetGenre = ((Genre) root).findGenre(genreName);
+
+        if (targetGenre == null) {
+            return new ArrayList<>();
+        }
+
+        return targetGenre.getTopMovies();
+    }
+}
@@ -0,0 +1,52 @@
+package com.recomtree.strategy;
+
+import com.recomtree.composite.CatalogComponent;
+import com.recomtree.composite.CatalogIndex;
+import com.recomtree.composite.Movie;
+import java.util.ArrayList;
+import java.util.List;
+
+// Strategy to recommend movies to one user profile from what it already
+// rated: movies that profiles rating like it also liked, scored from the
+// precomputed neighbors of the movies it rated (ItemSimilarity.recommend)
+// Parameter: "<Profile> [K]" (default: 10 movies); the service puts the
+// profile of the logged in session first
+public class SimilarUsersStrategy implements RecommendationStrategy {
+    private static final int DEFAULT_COUNT = 10;
+    private static final int MAX_COUNT = 100;
+
+    @Override
+    public List<Movie> recommend(CatalogComponent root, String parameter) {
+        String[] parts = parameter == null ? new String[0] : parameter.trim().split("\\s+");
+        if (parts.length == 0 || parts[0].isEmpty()) {
+            throw new IllegalArgumentException("SIMILAR_USERS needs a profile: LOGIN user user123 <profile>");
+        }
+
+        int count = DEFAULT_COUNT;
+        if (parts.length > 1) {
+            try {
+                count = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("SIMILAR_USERS expects a number: RECOMMEND SIMILAR_USERS [K]");
+            }
+        }
+        if (count < 1 || count > MAX_COUNT) {
+            throw new IllegalArgumentException("K must be between 1 and " + MAX_COUNT);
+        }
+
+        List<Movie> results = new ArrayList<>();
+        CatalogIndex index = root.getIndex();
+        if (index == null) {
+            return results; // neighbors only exist for indexed catalogs
+        }
+
+        long[] movieIds = index.getSimilarity().recommend(index.getUserRatings().get(parts[0]), count);
+        for (int i = 0; i < movieIds.length; i++) {
+            Movie movie = index.findMovieById(movieIds[i]);
+            if (movie != null) {
+                results.add(movie);
+            }
+        }
+        return results;
+    }
+}
@@ -4,34 +4,54 @@ import com.recomtree.composite.*;
 import java.util.*;
 
 // Strategy to recommend top rated movies
+// Parameter: "[K] [Offset]" (defaults: 5 movies starting at the best one)
 public class TopRatedStrategy implements RecommendationStrategy {
+    private static final int DEFAULT_COUNT = 5;
+    private static final int MAX_COUNT = 1000;
 
     @Override
     public List<Movie> recommend(CatalogComponent root, String parameter) {
+        int[] page = parsePage(parameter);
+        int count = page[0];
+        int offset = page[1];
+
+        // Indexed catalog: read the page straight from the ranking
+        CatalogIndex index = root.getIndex();
+        if (index != null && index.getRoot() == root) {
+            return index.getRanking().top(count, offset);
+        }
+
+        // Detached tree: collect and sort (stable, so ties keep tree order)
         List<Movie> allMovies = new ArrayList<>();
         collectMovies(root, allMovies);
+        allMovies.sort((a, b) -> Double.compare(b.getRating(), a.getRating()));
 
-        // Sort movies by rating (highest first) using bubble sort
-        for (int i = 0; i < allMovies.size() - 1; i++) {
-            for (int j = 0; j < allMovies.size() - i - 1; j++) {
-                if (allMovies.get(j).getRating() < allMovies.get(j + 1).getRating()) {
-                    // Swap
-                    Movie temp = allMovies.get(j);
-                    allMovies.set(j, allMovies.get(j + 1));
-                    allMovies.set(j + 1, temp);
+        int from = Math.min(offset, allMovies.size());
+        int to = Math.min(from + count, allMovies.size());
+        return new ArrayList<>(allMovies.subList(from, to));
+    }
+
+    // Parse "[K] [Offset]" into {K, Offset}
+    private int[] parsePage(String parameter) {
+        int count = DEFAULT_COUNT;
+        int offset = 0;
+
+        if (parameter != null && !parameter.trim().isEmpty()) {
+            String[] parts = parameter.trim().split("\\s+");
+            try {
+                count = Integer.parseInt(parts[0]);
+                if (parts.length > 1) {
+                    offset = Integer.parseInt(parts[1]);
                 }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("TOP_RATED expects numbers: RECOMMEND TOP_RATED [K] [Offset]");
             }
         }
 
-        // Return top 5 movies
-        List<Movie> topMovies = new ArrayList<>();
-        int count = 0;
-        for (int i = 0; i < allMovies.size() && count < 5; i++) {
-            topMovies.add(allMovies.get(i));
-            count++;
+        if (count < 1 || count > MAX_COUNT || offset < 0) {
+            throw new IllegalArgumentException("K must be between 1 and " + MAX_COUNT + " and Offset must not be negative");
         }
-
-        return topMovies;
+        return new int[] {count, offset};
     }
 
     // Helper method to collect all movies
@@ -45,4 +65,4 @@ public class TopRatedStrategy implements RecommendationStrategy {
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,223 @@
+package com.recomtree.composite;
+
+import com.recomtree.service.CatalogService;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 64 writer threads rate and add movies on one shared catalog while reader
+// threads list it and read the top lists. Once they are done, no rating may
+// be lost, and the genre aggregates, the top-5 lists, the rating ranking and
+// the index must all agree with a recount of the final tree.
+class ConcurrentCatalogStressTest {
+    private static final int WRITERS = 64;
+    private static final int READERS = 4;
+    private static final int OPERATIONS_PER_WRITER = 2000;
+    private static final int TOP_GENRES = 4;
+    private static final int SUB_GENRES = 4;
+    private static final int MOVIES_PER_GENRE = 8;
+
+    @Test
+    void noUpdateIsLostAndEveryViewAgrees() throws Exception {
+        Genre root = new Genre("Movies Catalog");
+        CatalogService service = new CatalogService(root);
+
+        // Movies every writer rates: known titles, integer scores (exact sums)
+        List<String> titles = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        for (int g = 0; g < TOP_GENRES; g++) {
+            for (int s = 0; s < SUB_GENRES; s++) {
+                String path = "g" + g + "/g" + g + "s" + s;
+                paths.add(path);
+                for (int m = 0; m < MOVIES_PER_GENRE; m++) {
+                    String title = "Movie " + g + "-" + s + "-" + m;
+                    service.addMovie(path, title);
+                    titles.add(title);
+                }
+            }
+        }
+
+        long[][] counts = new long[WRITERS][titles.size()];
+        long[][] sums = new long[WRITERS][titles.size()];
+        int[] added = new int[WRITERS];
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            writers.add(new Thread(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < OPERATIONS_PER_WRITER; i++) {
+                        if (random.nextInt(10) == 0) {
+                            // Structure changes race with the ratings
+                            service.addMovie(paths.get(random.nextInt(paths.size())), "Added " + writer + "-" + i);
+                            added[writer]++;
+                        } else {
+                            int movie = random.nextInt(titles.size());
+                            int score = 1 + random.nextInt(10);
+                            String response = service.rateMovie(titles.get(movie), score);
+                            assertTrue(response.startsWith("SUCCESS"), response);
+                            counts[writer][movie]++;
+                            sums[writer][movie] += score;
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }, "writer-" + w));
+        }
+
+        // Readers iterate the children and top lists while they change
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            readers.add(new Thread(() -> {
+                try {
+                    start.await();
+                    while (writing.get()) {
+                        service.listAll();
+                        service.recommend("TOP_RATED", "5");
+                        service.recommend("GENRE_TOP_RATED", "g1");
+                        assertTrue(root.getTopMovies().size() <= Genre.TOP_SIZE);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }, "reader-" + r));
+        }
+
+        for (Thread t : writers) {
+            t.start();
+        }
+        for (Thread t : readers) {
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : writers) {
+            t.join();
+        }
+        writing.set(false);
+        for (Thread t : readers) {
+            t.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError("A worker thread failed", failures.peek());
+        }
+
+        CatalogIndex index = root.getIndex();
+
+        // 1. Every rating was counted, on the movie it was given to
+        for (int m = 0; m < titles.size(); m++) {
+            long count = 0;
+            long sum = 0;
+            for (int w = 0; w < WRITERS; w++) {
+                count += counts[w][m];
+                sum += sums[w][m];
+            }
+            Movie movie = index.findMovie(titles.get(m));
+            assertNotNull(movie, titles.get(m));
+            assertEquals(count, movie.getRatingCount(), "rating count of " + titles.get(m));
+            assertEquals(sum, movie.getTotalRatingSum(), 1e-6, "rating sum of " + titles.get(m));
+            if (count > 0) {
+                assertEquals((double) sum / count, movie.getRating(), 1e-9, "average of " + titles.get(m));
+            }
+        }
+
+        // 2. Aggregates and top-5 lists of every genre match a recount
+        List<Movie> allMovies = new ArrayList<>();
+        List<Genre> allGenres = new ArrayList<>();
+        checkGenre(root, allMovies, allGenres);
+
+        int expectedMovies = titles.size();
+        for (int w = 0; w < WRITERS; w++) {
+            expectedMovies += added[w];
+        }
+        assertEquals(expectedMovies, allMovies.size(), "movies in the tree");
+        assertEquals(expectedMovies, root.getMovieCount(), "root movie count");
+
+        // 3. The ranking lists every movie once, in rating order
+        List<Movie> ranked = index.getRanking().top(expectedMovies + 1, 0);
+        assertEquals(sortedByRating(allMovies), ids(ranked), "TOP_RATED ranking");
+
+        // 4. The index finds every movie and genre of the tree, and nothing else
+        for (Movie movie : allMovies) {
+            assertSame(movie, index.findMovieById(movie.getId()), "movie by id " + movie.getId());
+            assertSame(movie, index.findMovie(movie.getName()), "movie by title " + movie.getName());
+        }
+        assertEquals(allMovies.size(), index.titleCount(), "indexed titles");
+        for (Genre genre : allGenres) {
+            assertSame(genre, index.findGenre(genre.getName()), "genre " + genre.getName());
+        }
+    }
+
+    // Recount a subtree, check the genre's aggregates and top list against
+    // it, and collect its movies and genres
+    private static void checkGenre(Genre genre, List<Movie> movies, List<Genre> genres) {
+        List<Movie> subtree = new ArrayList<>();
+        int subGenres = 0;
+        List<CatalogComponent> children = genre.getChildren();
+        for (int i = 0; i < children.size(); i++) {
+            CatalogComponent child = children.get(i);
+            assertSame(genre, child.getParent(), "parent of " + child.getName());
+            if (child instanceof Movie) {
+                subtree.add((Movie) child);
+            } else {
+                List<Genre> below = new ArrayList<>();
+                checkGenre((Genre) child, subtree, below);
+                subGenres += below.size();
+                genres.addAll(below);
+            }
+        }
+        genres.add(genre);
+
+        long ratingCount = 0;
+        double ratingSum = 0;
+        for (int i = 0; i < subtree.size(); i++) {
+            ratingCount += subtree.get(i).getRatingCount();
+            ratingSum += subtree.get(i).getTotalRatingSum();
+        }
+        assertEquals(subtree.size(), genre.getMovieCount(), "movie count of " + genre.getName());
+        assertEquals(subtree.size() + subGenres, genre.getDisplayLineCount(), "line count of " + genre.getName());
+        assertEquals(ratingCount, genre.getTotalRatingCount(), "rating count of " + genre.getName());
+        assertEquals(ratingSum, genre.getTotalRatingSum(), 1e-6, "rating sum of " + genre.getName());
+
+        List<Long> expectedTop = sortedByRating(subtree);
+        expectedTop = expectedTop.subList(0, Math.min(Genre.TOP_SIZE, expectedTop.size()));
+        assertEquals(expectedTop, ids(genre.getTopMovies()), "top list of " + genre.getName());
+
+        movies.addAll(subtree);
+    }
+
+    // Ids by rating, best first, then oldest id (the catalog's order)
+    private static List<Long> sortedByRating(List<Movie> movies) {
+        List<Movie> sorted = new ArrayList<>(movies);
+        Collections.sort(sorted, (a, b) -> {
+            int byRating = Double.compare(b.getRating(), a.getRating());
+            return byRating != 0 ? byRating : Long.compare(a.getId(), b.getId());
+        });
+        return ids(sorted);
+    }
+
+    private static List<Long> ids(List<Movie> movies) {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < movies.size(); i++) {
+            ids.add(movies.get(i).getId());
+        }
+        return ids;
+    }
+}
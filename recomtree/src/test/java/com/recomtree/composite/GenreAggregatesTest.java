@@ -0,0 +1,144 @@
+package com.recomtree.composite;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Every genre's rolled-up totals and top list match what walking its
+// subtree gives, after movies are added and rated and sub-genres move.
+class GenreAggregatesTest {
+
+    private static void collect(Genre genre, List<Movie> movies, List<Genre> genres) {
+        for (CatalogComponent child : genre.getChildren()) {
+            if (child instanceof Movie) {
+                movies.add((Movie) child);
+            } else {
+                genres.add((Genre) child);
+                collect((Genre) child, movies, genres);
+            }
+        }
+    }
+
+    // Compare the aggregates of a genre and every genre below it with a walk
+    private static void check(Genre genre) {
+        List<Movie> movies = new ArrayList<>();
+        List<Genre> genres = new ArrayList<>();
+        collect(genre, movies, genres);
+
+        long ratings = 0;
+        double sum = 0;
+        for (Movie movie : movies) {
+            ratings += movie.getRatingCount();
+            sum += movie.getTotalRatingSum();
+        }
+        String name = genre.getName();
+        assertEquals(movies.size(), genre.getMovieCount(), name);
+        assertEquals(movies.size() + genres.size(), genre.getDisplayLineCount(), name);
+        assertEquals(ratings, genre.getTotalRatingCount(), name);
+        assertEquals(sum, genre.getTotalRatingSum(), 1e-6, name);
+        assertEquals(ratings == 0 ? 0.0 : sum / ratings, genre.getAverageRating(), 1e-9, name);
+
+        movies.sort(Comparator.comparingDouble(Movie::getRating).reversed().thenComparingLong(Movie::getId));
+        assertEquals(movies.subList(0, Math.min(Genre.TOP_SIZE, movies.size())), genre.getTopMovies(), name);
+
+        for (Genre child : genres) {
+            if (child.getParent() == genre) {
+                check(child);
+            }
+        }
+    }
+
+    // Detach a genre from its parent and attach it under another one
+    private static void move(Genre genre, Genre target) {
+        Genre parent = genre.getParent();
+        List<CatalogComponent> kept = new ArrayList<>(parent.getChildren());
+        kept.remove(genre);
+        parent.setChildren(kept);
+        target.add(genre);
+    }
+
+    @Test
+    void totalsAndTopListsFollowAddsRatingsAndMoves() {
+        Genre root = new Genre("Movies Catalog");
+        CatalogIndex.build(root);
+        List<Genre> genres = new ArrayList<>();
+        genres.add(root);
+        List<Movie> movies = new ArrayList<>();
+        Random random = new Random(7);
+
+        for (int step = 0; step < 600; step++) {
+            int action = random.nextInt(10);
+            if (action < 2 || movies.isEmpty()) {
+                Genre parent = genres.get(random.nextInt(genres.size()));
+                Genre genre = new Genre("Genre " + genres.size(), root.getStore());
+                parent.add(genre);
+                genres.add(genre);
+            } else if (action < 5) {
+                Movie movie = new Movie("Movie " + movies.size(), random.nextInt(11), root.getStore());
+                genres.get(random.nextInt(genres.size())).add(movie);
+                movies.add(movie);
+            } else if (action < 9) {
+                movies.get(random.nextInt(movies.size())).addRating(random.nextInt(21) * 0.5);
+            } else {
+                // Move a genre, but never under itself
+                Genre genre = genres.get(1 + random.nextInt(genres.size() - 1));
+                Genre target = genres.get(random.nextInt(genres.size()));
+                boolean inside = false;
+                for (Genre g = target; g != null; g = g.getParent()) {
+                    inside |= g == genre;
+                }
+                if (!inside && target != genre.getParent()) {
+                    move(genre, target);
+                }
+            }
+
+            if (step % 50 == 49) {
+                check(root);
+            }
+        }
+        check(root);
+    }
+
+    @Test
+    void movingAGenreTakesItsTotalsAlong() {
+        Genre root = new Genre("Movies Catalog");
+        CatalogIndex.build(root);
+        Genre action = new Genre("Action", root.getStore());
+        Genre drama = new Genre("Drama", root.getStore());
+        Genre heist = new Genre("Heist", root.getStore());
+        root.add(action);
+        root.add(drama);
+        action.add(heist);
+        Movie heat = new Movie("Heat", root.getStore());
+        heist.add(heat);
+        Movie alien = new Movie("Alien", root.getStore());
+        action.add(alien);
+        heat.addRating(9);
+        heat.addRating(8);
+
+        move(heist, drama);
+
+        assertEquals(1, action.getMovieCount());
+        assertEquals(0, action.getTotalRatingCount());
+        assertEquals(List.of(alien), action.getTopMovies());
+        assertEquals(1, drama.getMovieCount());
+        assertEquals(2, drama.getDisplayLineCount());
+        assertEquals(2, drama.getTotalRatingCount());
+        assertEquals(8.5, drama.getAverageRating(), 1e-9);
+        assertEquals(List.of(heat), drama.getTopMovies());
+        assertEquals(2, root.getMovieCount());
+        assertEquals(5, root.getDisplayLineCount());
+        check(root);
+
+        // Ratings after the move reach the new ancestors only
+        heat.addRating(4);
+        assertEquals(3, drama.getTotalRatingCount());
+        assertEquals(0, action.getTotalRatingCount());
+        check(root);
+    }
+}
@@ -0,0 +1,157 @@
+package com.recomtree.composite;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The neighbor lists built from incrementally maintained sums give the same
+// similarities as computing every cosine from the profiles' current scores,
+// whatever sequence of ratings and re-ratings led there.
+class ItemSimilarityTest {
+    private static final int MOVIES = 15; // below NEIGHBORS: every similar movie is listed
+
+    // Wait until every change is in the published lists
+    private static void settle(ItemSimilarity similarity) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (similarity.getPending() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Item similarity did not settle");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    // movie -> other movie -> cosine, from scratch, leaving out large profiles
+    private static Map<Long, Map<Long, Double>> bruteForce(UserRatings ratings) {
+        Map<Long, Double> squares = new HashMap<>();
+        Map<Long, Map<Long, Double>> products = new HashMap<>();
+        for (UserRatings.Ratings profile : ratings.getAll().values()) {
+            if (profile.size() > ItemSimilarity.MAX_PROFILE_RATINGS) {
+                continue;
+            }
+            for (int i = 0; i < profile.size(); i++) {
+                long a = profile.movieIdAt(i);
+                double scoreA = profile.scoreAt(i);
+                squares.merge(a, scoreA * scoreA, Double::sum);
+                for (int j = 0; j < profile.size(); j++) {
+                    if (j != i) {
+                        products.computeIfAbsent(a, k -> new HashMap<>())
+                                .merge(profile.movieIdAt(j), scoreA * profile.scoreAt(j), Double::sum);
+                    }
+                }
+            }
+        }
+
+        Map<Long, Map<Long, Double>> cosines = new HashMap<>();
+        for (Map.Entry<Long, Map<Long, Double>> movie : products.entrySet()) {
+            for (Map.Entry<Long, Double> other : movie.getValue().entrySet()) {
+                if (other.getValue() > 0) {
+                    double cosine = other.getValue()
+                            / Math.sqrt(squares.get(movie.getKey()) * squares.get(other.getKey()));
+                    cosines.computeIfAbsent(movie.getKey(), k -> new HashMap<>()).put(other.getKey(), cosine);
+                }
+            }
+        }
+        return cosines;
+    }
+
+    private static void assertMatchesBruteForce(ItemSimilarity similarity, UserRatings ratings) {
+        Map<Long, Map<Long, Double>> expected = bruteForce(ratings);
+        for (long movie = 1; movie <= MOVIES; movie++) {
+            Map<Long, Double> cosines = expected.getOrDefault(movie, new HashMap<>());
+            ItemSimilarity.Neighbors neighbors = similarity.getNeighbors(movie);
+            if (cosines.isEmpty()) {
+                assertNull(neighbors, "movie " + movie);
+                continue;
+            }
+
+            assertEquals(cosines.size(), neighbors.size(), "movie " + movie);
+            for (int i = 0; i < neighbors.size(); i++) {
+                Double cosine = cosines.get(neighbors.movieIdAt(i));
+                assertTrue(cosine != null, "movie " + movie + " lists " + neighbors.movieIdAt(i));
+                assertEquals(cosine, neighbors.similarityAt(i), 1e-5, "movie " + movie);
+                if (i > 0) {
+                    assertTrue(neighbors.similarityAt(i) <= neighbors.similarityAt(i - 1), "movie " + movie);
+                }
+            }
+        }
+    }
+
+    @Test
+    void incrementalSumsMatchABruteForceCosine() throws InterruptedException {
+        ItemSimilarity similarity = new ItemSimilarity();
+        UserRatings ratings = new UserRatings(similarity);
+        Random random = new Random(25);
+
+        for (int round = 0; round < 4; round++) {
+            // Ratings, re-ratings (often to the same or a previous score) and batches
+            for (int i = 0; i < 300; i++) {
+                String user = "user" + random.nextInt(12);
+                if (random.nextInt(5) == 0) {
+                    int size = 1 + random.nextInt(4);
+                    long[] movies = new long[size];
+                    float[] scores = new float[size];
+                    for (int j = 0; j < size; j++) {
+                        movies[j] = 1 + random.nextInt(MOVIES);
+                        scores[j] = random.nextInt(21) * 0.5f;
+                    }
+                    ratings.rate(user, movies, scores);
+                } else {
+                    ratings.rate(user, 1 + random.nextInt(MOVIES), random.nextInt(21) * 0.5f);
+                }
+            }
+            settle(similarity);
+            assertMatchesBruteForce(similarity, ratings);
+        }
+    }
+
+    @Test
+    void scoresChangedBackLeaveNoSimilarity() throws InterruptedException {
+        ItemSimilarity similarity = new ItemSimilarity();
+        UserRatings ratings = new UserRatings(similarity);
+        ratings.rate("alice", new long[] {1, 2}, new float[] {8, 6});
+        ratings.rate("bob", 3, 7);
+        settle(similarity);
+        assertEquals(1, similarity.getNeighbors(1).size());
+        assertNull(similarity.getNeighbors(3));
+
+        // A zero score adds nothing, so the pair is gone again
+        ratings.rate("alice", 2, 0);
+        settle(similarity);
+        assertNull(similarity.getNeighbors(1));
+        assertNull(similarity.getNeighbors(2));
+        assertMatchesBruteForce(similarity, ratings);
+    }
+
+    @Test
+    void profileOverTheLimitIsLeftOut() throws InterruptedException {
+        ItemSimilarity similarity = new ItemSimilarity();
+        UserRatings ratings = new UserRatings(similarity);
+        ratings.rate("alice", new long[] {1, 2}, new float[] {9, 3});
+        ratings.rate("bob", new long[] {1, 3}, new float[] {4, 8});
+
+        // Up to the limit, the large profile counts
+        int limit = ItemSimilarity.MAX_PROFILE_RATINGS;
+        long[] movies = new long[limit];
+        float[] scores = new float[limit];
+        for (int i = 0; i < limit; i++) {
+            movies[i] = i < MOVIES ? i + 1 : 1000 + i;
+            scores[i] = 1 + i % 10;
+        }
+        ratings.rate("collector", movies, scores);
+        settle(similarity);
+        assertTrue(similarity.getNeighbors(1000 + MOVIES) != null);
+
+        // One more rating and its whole profile is taken out of the sums
+        ratings.rate("collector", 5000, 10);
+        settle(similarity);
+        assertNull(similarity.getNeighbors(1000 + MOVIES));
+        assertMatchesBruteForce(similarity, ratings);
+    }
+}
@@ -0,0 +1,66 @@
+package com.recomtree.composite;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+// Movies keep their fields when they move between stores, and the slots and
+// genre ids they leave behind are reused.
+class MovieStoreTest {
+
+    @Test
+    void movieMadeOnItsOwnJoinsTheCatalogStore() {
+        Genre root = new Genre("Movies Catalog");
+        Movie movie = new Movie("Alien", 7.5);
+        movie.setId(12);
+        movie.setRatingCount(2);
+        movie.setTotalRatingSum(15);
+        assertNull(movie.getParent());
+
+        root.add(movie);
+
+        assertEquals("Alien", movie.getName());
+        assertEquals(12, movie.getId());
+        assertEquals(2, movie.getRatingCount());
+        assertEquals(15.0, movie.getTotalRatingSum(), 1e-9);
+        assertSame(root, movie.getParent());
+        assertEquals(1, root.getStore().size());
+    }
+
+    @Test
+    void subtreeMovedToAnotherCatalogFreesItsSlots() {
+        Genre first = new Genre("First");
+        Genre action = new Genre("Action", first.getStore());
+        first.add(action);
+        for (int i = 0; i < 3; i++) {
+            action.add(new Movie("Movie " + i, 5.0, first.getStore()));
+        }
+        assertEquals(3, first.getStore().size());
+
+        // Detach the genre and attach it to a second catalog
+        first.setChildren(new ArrayList<>());
+        Genre second = new Genre("Second");
+        second.add(action);
+
+        assertSame(second.getStore(), action.getStore());
+        assertEquals(0, first.getStore().size());
+        assertEquals(3, second.getStore().size());
+        for (int i = 0; i < 3; i++) {
+            Movie movie = (Movie) action.getChildren().get(i);
+            assertEquals("Movie " + i, movie.getName());
+            assertSame(action, movie.getParent());
+        }
+        assertEquals(3, second.getMovieCount());
+
+        // New movies of the first catalog reuse the freed slots
+        Genre drama = new Genre("Drama", first.getStore());
+        first.add(drama);
+        drama.add(new Movie("Reused", first.getStore()));
+        assertEquals(1, first.getStore().size());
+        assertSame(drama, ((Movie) drama.getChildren().get(0)).getParent());
+    }
+}
@@ -0,0 +1,101 @@
+package com.recomtree.composite;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// The ranking gives the same pages as sorting every movie by rating (then
+// id), whatever the offset, and never shows a movie twice or counts a
+// replaced entry towards the offset.
+class RatingRankingTest {
+
+    private static List<Movie> sorted(Genre root) {
+        List<Movie> movies = new ArrayList<>();
+        collect(root, movies);
+        movies.sort(Comparator.comparingDouble(Movie::getRating).reversed().thenComparingLong(Movie::getId));
+        return movies;
+    }
+
+    private static void collect(Genre genre, List<Movie> movies) {
+        for (CatalogComponent child : genre.getChildren()) {
+            if (child instanceof Movie) {
+                movies.add((Movie) child);
+            } else {
+                collect((Genre) child, movies);
+            }
+        }
+    }
+
+    private static List<Movie> page(List<Movie> all, int count, int offset) {
+        return new ArrayList<>(all.subList(Math.min(offset, all.size()), Math.min(offset + count, all.size())));
+    }
+
+    @Test
+    void pagesMatchAFullSortAfterRatings() {
+        Genre root = new Genre("Movies Catalog");
+        CatalogIndex.build(root);
+        Genre action = new Genre("Action", root.getStore());
+        Genre drama = new Genre("Drama", root.getStore());
+        root.add(action);
+        root.add(drama);
+        List<Movie> movies = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            Movie movie = new Movie("Movie " + i, root.getStore());
+            (i % 2 == 0 ? action : drama).add(movie);
+            movies.add(movie);
+        }
+
+        RatingRanking ranking = root.getIndex().getRanking();
+        Random random = new Random(6);
+        for (int round = 0; round < 20; round++) {
+            // Few distinct scores, so many movies tie on rating
+            for (int i = 0; i < 40; i++) {
+                movies.get(random.nextInt(movies.size())).addRating(random.nextInt(5) * 2.5);
+            }
+
+            List<Movie> expected = sorted(root);
+            assertEquals(expected.size(), ranking.size());
+            for (int offset = 0; offset <= 65; offset += 13) {
+                assertEquals(page(expected, 10, offset), ranking.top(10, offset), "offset " + offset);
+            }
+            assertEquals(expected, ranking.top(100, 0));
+        }
+    }
+
+    @Test
+    void staleEntriesAreSkippedAndNotCountedInTheOffset() {
+        Genre root = new Genre("Movies Catalog");
+        CatalogIndex.build(root);
+        List<Movie> movies = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Movie movie = new Movie("Movie " + i, 5.0 + i, root.getStore());
+            root.add(movie);
+            movies.add(movie);
+        }
+        RatingRanking ranking = root.getIndex().getRanking();
+
+        // What a rating in flight leaves behind: the movie's old entry (at
+        // rating 9) is still in the set next to the one for its new rating
+        Movie best = movies.get(4);
+        best.setRankEntry(null);
+        best.addRating(1.0); // not ranked right now, so only the rating changes
+        ranking.add(best);
+        assertEquals(6, ranking.size());
+
+        List<Movie> expected = sorted(root);
+        assertEquals(best, expected.get(4));
+        assertEquals(expected, ranking.top(10, 0));
+        assertEquals(page(expected, 2, 1), ranking.top(2, 1));
+        assertEquals(page(expected, 2, 3), ranking.top(2, 3));
+
+        // A removed movie is gone, stale entry or not
+        ranking.remove(movies.get(0));
+        expected.remove(movies.get(0));
+        assertEquals(expected, ranking.top(10, 0));
+    }
+}
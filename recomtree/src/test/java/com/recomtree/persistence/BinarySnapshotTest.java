@@ -0,0 +1,142 @@
+package com.recomtree.persistence;
+
+import com.recomtree.composite.Genre;
+import com.recomtree.composite.Movie;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// JSON -> binary -> JSON keeps the catalog and its log segment, and a
+// damaged binary snapshot is refused instead of being half loaded.
+class BinarySnapshotTest {
+    private static final int WAL_SEGMENT = 7;
+
+    @TempDir
+    Path directory;
+
+    private static Genre catalog() {
+        Genre root = new Genre("Movies Catalog");
+        Genre action = new Genre("Action", root.getStore());
+        Genre superhero = new Genre("Superhero", root.getStore());
+        Genre drama = new Genre("Drama", root.getStore());
+        root.add(action);
+        root.add(drama);
+        action.add(superhero);
+        action.add(movie(root, "Alien", 1, 4, 30.5));
+        superhero.add(movie(root, "Deadpool", 2, 0, 0));
+        superhero.add(movie(root, "Amélie – 東京", 3, 1, 9.0));
+        drama.add(new Genre("Action", root.getStore())); // genre names repeat
+        return root;
+    }
+
+    private static Movie movie(Genre root, String title, long id, int count, double sum) {
+        Movie movie = new Movie(title, count == 0 ? 0 : sum / count, root.getStore());
+        movie.setId(id);
+        movie.setRatingCount(count);
+        movie.setTotalRatingSum(sum);
+        return movie;
+    }
+
+    private Path writeBinary(Genre root) throws IOException {
+        Path file = directory.resolve("catalog.bin");
+        try (OutputStream out = new FileOutputStream(file.toFile())) {
+            BinarySnapshot.write(root, WAL_SEGMENT, out);
+        }
+        return file;
+    }
+
+    // Change a header field and write a valid CRC again, so the check behind it is reached
+    private static void patchHeader(Path file, int offset, int value) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).putInt(offset, value);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer.wrap(bytes).putInt(bytes.length - 4, (int) crc.getValue());
+        Files.write(file, bytes);
+    }
+
+    @Test
+    void convertingToBinaryAndBackKeepsTheCatalog() throws IOException {
+        JSONObject original = TreePersistence.genreToJson(catalog(), WAL_SEGMENT);
+        Path json = directory.resolve("catalog.json");
+        Path binary = directory.resolve("catalog.bin");
+        Path back = directory.resolve("back.json");
+        Files.write(json, original.toString(2).getBytes(StandardCharsets.UTF_8));
+
+        SnapshotConverter.main(new String[] {json.toString(), binary.toString()});
+        SnapshotConverter.main(new String[] {binary.toString(), back.toString()});
+
+        JSONObject converted = new JSONObject(new String(Files.readAllBytes(back), StandardCharsets.UTF_8));
+        assertTrue(original.similar(converted), converted.toString(2));
+        assertEquals(WAL_SEGMENT, converted.getInt("walSegment"));
+    }
+
+    @Test
+    void readGivesBackTheTreeAndSegment() throws IOException {
+        Genre root = catalog();
+        BinarySnapshot snapshot = BinarySnapshot.read(writeBinary(root));
+
+        assertEquals(WAL_SEGMENT, snapshot.getWalSegment());
+        assertTrue(TreePersistence.genreToJson(root, 0).similar(TreePersistence.genreToJson(snapshot.getRoot(), 0)));
+        assertEquals(3, snapshot.getRoot().getMovieCount());
+    }
+
+    @Test
+    void flippedByteFailsTheChecksum() throws IOException {
+        Path file = writeBinary(catalog());
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0x01;
+        Files.write(file, bytes);
+
+        IOException e = assertThrows(IOException.class, () -> BinarySnapshot.read(file));
+        assertEquals("Binary snapshot checksum mismatch", e.getMessage());
+    }
+
+    @Test
+    void truncatedFileIsRefused() throws IOException {
+        Path file = writeBinary(catalog());
+        byte[] bytes = Files.readAllBytes(file);
+
+        // Cut in the middle: the footer read is not the CRC any more
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 10));
+        IOException e = assertThrows(IOException.class, () -> BinarySnapshot.read(file));
+        assertEquals("Binary snapshot checksum mismatch", e.getMessage());
+
+        // Shorter than a header
+        Files.write(file, Arrays.copyOf(bytes, 12));
+        e = assertThrows(IOException.class, () -> BinarySnapshot.read(file));
+        assertEquals("Binary snapshot is truncated", e.getMessage());
+    }
+
+    @Test
+    void wrongMagicIsRefused() throws IOException {
+        Path file = writeBinary(catalog());
+        patchHeader(file, 0, 0x4A534F4E);
+
+        IOException e = assertThrows(IOException.class, () -> BinarySnapshot.read(file));
+        assertEquals("Not a binary catalog snapshot", e.getMessage());
+    }
+
+    @Test
+    void newerVersionIsRefused() throws IOException {
+        Path file = writeBinary(catalog());
+        patchHeader(file, 4, BinarySnapshot.VERSION + 1);
+
+        IOException e = assertThrows(IOException.class, () -> BinarySnapshot.read(file));
+        assertEquals("Unsupported binary snapshot version " + (BinarySnapshot.VERSION + 1), e.getMessage());
+    }
+}
@@ -0,0 +1,191 @@
+package com.recomtree.persistence;
+
+import com.recomtree.composite.Genre;
+import com.recomtree.composite.UserRatings;
+import com.recomtree.logging.AsyncLogger;
+import com.recomtree.logging.LogLevel;
+import com.recomtree.service.CatalogService;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A checkpoint plus the log after it gives back the catalog it was taken
+// from, only dirty genres are rewritten, and the directory only keeps the
+// parts the manifest lists. Runs in the working directory surefire gives the
+// tests (target/test-data), like the server does in its own.
+class CheckpointerTest {
+    private AsyncLogger logger;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        deleteFiles();
+        logger = new AsyncLogger(1024, LogLevel.INFO, true, null);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        TreePersistence.closeLog();
+        logger.close();
+        deleteFiles();
+    }
+
+    private static void deleteFiles() throws IOException {
+        File directory = new File(Checkpointer.DIRECTORY);
+        File[] parts = directory.listFiles();
+        if (parts != null) {
+            for (File f : parts) {
+                if (f.isDirectory()) {
+                    deleteDirectory(f);
+                } else {
+                    Files.delete(f.toPath());
+                }
+            }
+        }
+        Files.deleteIfExists(directory.toPath());
+        File[] files = new File(".").listFiles();
+        for (File f : files) {
+            if (f.getName().startsWith("catalog_data.wal.") || f.getName().startsWith("catalog_data.ratings")) {
+                Files.delete(f.toPath());
+            }
+        }
+    }
+
+    private static void deleteDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                Files.delete(f.toPath());
+            }
+        }
+        Files.delete(directory.toPath());
+    }
+
+    // Three top-level genres, with sub-genres, movies and ratings
+    private static CatalogService catalog(Genre root) throws IOException {
+        MutationLog log = TreePersistence.openLog(MutationLog.FsyncPolicy.NEVER, 0);
+        CatalogService service = new CatalogService(root, null, log);
+        service.addMovie("action", "Alien");
+        service.addMovie("action/superhero", "Deadpool");
+        service.addMovie("drama", "Amadeus");
+        service.addMovie("comedy", "Airplane");
+        service.setUser("alice");
+        service.rateMovie("Alien", 8);
+        service.rateMovie("Airplane", 6);
+        return service;
+    }
+
+    private static JSONObject manifest() throws IOException {
+        Path file = Paths.get(Checkpointer.DIRECTORY, Checkpointer.MANIFEST);
+        return new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    // The part files the manifest lists
+    private static Set<String> referencedParts() throws IOException {
+        Set<String> parts = new HashSet<>();
+        JSONArray children = manifest().getJSONArray("children");
+        for (int i = 0; i < children.length(); i++) {
+            JSONObject child = children.getJSONObject(i);
+            if ("part".equals(child.getString("type"))) {
+                parts.add(child.getString("file"));
+            }
+        }
+        return parts;
+    }
+
+    // Every part file in the checkpoint directory
+    private static Set<String> partsOnDisk() {
+        Set<String> parts = new HashSet<>();
+        String[] names = new File(Checkpointer.DIRECTORY).list();
+        for (String name : names) {
+            if (name.startsWith("genre-")) {
+                parts.add(name);
+            }
+        }
+        return parts;
+    }
+
+    @Test
+    void checkpointAndLogGiveBackTheCatalog() throws IOException {
+        Genre root = new Genre("Movies Catalog");
+        CatalogService service = catalog(root);
+        Checkpointer checkpointer = new Checkpointer(root, TreePersistence.Format.JSON, 3600, logger);
+        checkpointer.checkpoint();
+        assertEquals(3, checkpointer.getPartsWritten());
+        Set<String> first = referencedParts();
+
+        // Dirty two of the three top-level genres
+        service.rateMovie("Deadpool", 9);
+        service.addMovie("drama/period", "Barry Lyndon");
+        checkpointer.checkpoint();
+        assertEquals(5, checkpointer.getPartsWritten());
+
+        // The comedy part is kept, the old action and drama parts are gone
+        Set<String> second = referencedParts();
+        assertEquals(second, partsOnDisk());
+        Set<String> kept = new HashSet<>(first);
+        kept.retainAll(second);
+        assertEquals(1, kept.size());
+        assertTrue(kept.iterator().next().startsWith("genre-2-"));
+
+        // Changes after the checkpoint are only in the log
+        service.setUser("bob");
+        service.rateMovie("Amadeus", 7);
+        service.addMovie("horror", "The Thing");
+        TreePersistence.closeLog();
+
+        Genre loaded = TreePersistence.load();
+        assertTrue(TreePersistence.genreToJson(root, 0).similar(TreePersistence.genreToJson(loaded, 0)));
+        assertEquals(root.getIndex().getUserRatings().getUserCount(),
+                loaded.getIndex().getUserRatings().getUserCount());
+        for (String user : Arrays.asList("alice", "bob")) {
+            UserRatings.Ratings expected = root.getIndex().getUserRatings().get(user);
+            UserRatings.Ratings actual = loaded.getIndex().getUserRatings().get(user);
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.movieIdAt(i), actual.movieIdAt(i));
+                assertEquals(expected.scoreAt(i), actual.scoreAt(i));
+            }
+        }
+    }
+
+    @Test
+    void checkpointAfterAFailedOneRewritesEveryPart() throws IOException {
+        Genre root = new Genre("Movies Catalog");
+        CatalogService service = catalog(root);
+        Checkpointer checkpointer = new Checkpointer(root, TreePersistence.Format.JSON, 3600, logger);
+        checkpointer.checkpoint();
+        assertEquals(1, checkpointer.getCheckpointCount());
+
+        // The manifest can't be published: the dirty part is written, then the run fails
+        service.rateMovie("Amadeus", 5);
+        File blocker = new File(Checkpointer.DIRECTORY, Checkpointer.MANIFEST + ".tmp");
+        assertTrue(blocker.mkdir());
+        checkpointer.checkpoint();
+        assertEquals(1, checkpointer.getCheckpointCount());
+        assertEquals(4, partsOnDisk().size()); // the new drama part is not referenced
+
+        // Nothing is dirty any more, yet every part is written again, and
+        // the parts of the failed run are deleted
+        assertTrue(blocker.delete());
+        checkpointer.checkpoint();
+        assertEquals(2, checkpointer.getCheckpointCount());
+        assertEquals(6, checkpointer.getPartsWritten());
+        assertEquals(referencedParts(), partsOnDisk());
+        assertEquals(3, partsOnDisk().size());
+    }
+}
@@ -0,0 +1,120 @@
+package com.recomtree.persistence;
+
+import com.recomtree.composite.Genre;
+import com.recomtree.composite.Movie;
+import com.recomtree.composite.MovieStore;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The streaming reader builds the same tree as the org.json DOM loader
+// (-Drecomtree.loader=dom) for everything that loader accepts.
+class JsonCatalogReaderTest {
+
+    @TempDir
+    Path directory;
+
+    // Read the text with both loaders and check they agree; returns the streamed tree
+    private Genre readBoth(String text) throws IOException {
+        Path file = directory.resolve("catalog.json");
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+
+        JsonCatalogReader reader = JsonCatalogReader.open(file);
+        Genre streamed = reader.readCatalog();
+        JSONObject json = new JSONObject(text);
+        Genre dom = TreePersistence.jsonToGenre(json, new MovieStore());
+
+        assertEquals(json.optInt("walSegment", 0), reader.getWalSegment());
+        JSONObject expected = TreePersistence.genreToJson(dom, 0);
+        JSONObject actual = TreePersistence.genreToJson(streamed, 0);
+        assertTrue(expected.similar(actual), "DOM:\n" + expected.toString(2) + "\nstreamed:\n" + actual.toString(2));
+        return streamed;
+    }
+
+    @Test
+    void keysInAnyOrderAndUnknownKeys() throws IOException {
+        String text = "{\n"
+                + "  \"children\": [\n"
+                + "    {\"children\": [\n"
+                + "      {\"totalRatingSum\": 17.5, \"rating\": 8.75, \"name\": \"Alien\", \"type\": \"movie\",\n"
+                + "       \"ratingCount\": 2, \"id\": 4, \"director\": \"Ridley Scott\"},\n"
+                + "      {\"id\": 5, \"poster\": {\"url\": \"x}]\", \"sizes\": [1, 2, {\"w\": 3}]},\n"
+                + "       \"type\": \"movie\", \"rating\": 1.5e0, \"name\": \"Aliens\", \"seen\": true, \"notes\": null}\n"
+                + "    ], \"name\": \"Sci-Fi\", \"tags\": [\"space\"], \"type\": \"genre\"},\n"
+                + "    {\"type\": \"trailer\", \"name\": \"ignored\"},\n"
+                + "    {\"name\": \"Old\", \"type\": \"movie\", \"rating\": 6.0}\n"
+                + "  ],\n"
+                + "  \"walSegment\": 12,\n"
+                + "  \"version\": -3.5E+2,\n"
+                + "  \"name\": \"Movies Catalog\",\n"
+                + "  \"type\": \"genre\"\n"
+                + "}\n";
+
+        Genre root = readBoth(text);
+        assertEquals(3, root.getMovieCount());
+        assertEquals(2, root.getChildren().size()); // the trailer is skipped
+    }
+
+    @Test
+    void escapesAndUnicodeInTitles() throws IOException {
+        String text = "{\"type\": \"genre\", \"name\": \"Movies Catalog\", \"children\": [\n"
+                + "  {\"type\": \"genre\", \"name\": \"Cin\\u00e9ma \\/ \\\"Classiques\\\"\", \"children\": [\n"
+                + "    {\"type\": \"movie\", \"name\": \"Amélie\", \"rating\": 0},\n"
+                + "    {\"type\": \"movie\", \"name\": \"千と千尋の神隠し\", \"rating\": 9},\n"
+                + "    {\"type\": \"movie\", \"name\": \"Clapper \\ud83c\\udfac and 🎥\", \"rating\": 5},\n"
+                + "    {\"type\": \"movie\", \"name\": \"Tab\\tNew\\nLine\\r\\\\Back\\bForm\\f\", \"rating\": 4}\n"
+                + "  ]}\n"
+                + "]}";
+
+        Genre root = readBoth(text);
+        Genre cinema = (Genre) root.getChildren().get(0);
+        assertEquals("Cinéma / \"Classiques\"", cinema.getName());
+        assertEquals("Clapper 🎬 and 🎥", ((Movie) cinema.getChildren().get(2)).getName());
+        assertEquals("Tab\tNew\nLine\r\\Back\bForm\f", ((Movie) cinema.getChildren().get(3)).getName());
+    }
+
+    @Test
+    void emptyGenres() throws IOException {
+        String text = "{\"name\": \"Movies Catalog\", \"type\": \"genre\", \"children\": [\n"
+                + "  {\"type\": \"genre\", \"name\": \"Empty\", \"children\": []},\n"
+                + "  {\"type\": \"genre\", \"name\": \"No children key\"},\n"
+                + "  {\"type\": \"genre\", \"name\": \"Nested\", \"children\": [{\"type\": \"genre\", \"name\": \"Inner\", \"children\": [ ]}]}\n"
+                + "]}";
+
+        Genre root = readBoth(text);
+        assertEquals(0, root.getMovieCount());
+        assertEquals(3, root.getChildren().size());
+
+        assertEquals(0, readBoth("{\"type\": \"genre\", \"name\": \"Movies Catalog\", \"children\": []}").getChildren().size());
+        assertEquals(0, readBoth("{\"name\": \"Movies Catalog\"}").getChildren().size());
+    }
+
+    @Test
+    void fileLargerThanTheReadBuffer() throws IOException {
+        Genre root = new Genre("Movies Catalog");
+        for (int g = 0; g < 20; g++) {
+            Genre genre = new Genre("Genre é " + g, root.getStore());
+            root.add(genre);
+            for (int m = 0; m < 200; m++) {
+                Movie movie = new Movie("Movie \"" + g + "\" – " + m, (m % 11) * 0.9, root.getStore());
+                movie.setId(g * 1000L + m + 1);
+                movie.setRatingCount(m % 7);
+                movie.setTotalRatingSum((m % 7) * 1.25);
+                genre.add(movie);
+            }
+        }
+        String text = TreePersistence.genreToJson(root, 3).toString(2);
+        assertTrue(text.length() > 4 * 64 * 1024);
+
+        Genre streamed = readBoth(text);
+        assertEquals(4000, streamed.getMovieCount());
+    }
+}
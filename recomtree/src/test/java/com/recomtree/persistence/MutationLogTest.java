@@ -0,0 +1,160 @@
+package com.recomtree.persistence;
+
+import com.recomtree.composite.CatalogIndex;
+import com.recomtree.composite.Genre;
+import com.recomtree.composite.Movie;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Replay stops at the first record that is not whole and valid, keeps what
+// came before it, and a failed write never leaves records on disk that were
+// reported as lost.
+class MutationLogTest {
+    private static final String NAME = "test.wal";
+    private static final int HEADER_BYTES = 8;   // length + CRC
+    private static final int RATE_BYTES = 17;    // type + movie id + rating
+
+    @TempDir
+    Path directory;
+
+    // One movie (id 1) and two ratings of it: 7 then 9
+    private Path writeMovieWithTwoRatings() throws IOException {
+        MutationLog log = new MutationLog(directory, NAME, 1, MutationLog.FsyncPolicy.ALWAYS, 0);
+        log.logAdd(1, "action", "Alien", 0);
+        log.logRating(1, 7.0);
+        log.awaitDurable(log.logRating(1, 9.0));
+        log.close();
+        return MutationLog.segmentPath(directory, NAME, 1);
+    }
+
+    // Offset of the n-th record (0 is the ADD) in the file of writeMovieWithTwoRatings
+    private static long offsetOfRating(Path segment, int n) throws IOException {
+        long size = Files.size(segment);
+        return size - (long) (3 - n) * (HEADER_BYTES + RATE_BYTES);
+    }
+
+    private Genre replay() {
+        Genre root = new Genre("Movies Catalog");
+        CatalogIndex.build(root);
+        MutationLog.replay(root, directory, NAME, 1);
+        return root;
+    }
+
+    @Test
+    void everyRecordIsReplayed() throws IOException {
+        writeMovieWithTwoRatings();
+
+        Movie movie = replay().getIndex().findMovieById(1);
+        assertNotNull(movie);
+        assertEquals("Alien", movie.getName());
+        assertEquals(2, movie.getRatingCount());
+        assertEquals(16.0, movie.getTotalRatingSum(), 1e-9);
+    }
+
+    @Test
+    void tornLastRecordIsIgnored() throws IOException {
+        Path segment = writeMovieWithTwoRatings();
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        Movie movie = replay().getIndex().findMovieById(1);
+        assertEquals(1, movie.getRatingCount());
+        assertEquals(7.0, movie.getTotalRatingSum(), 1e-9);
+    }
+
+    @Test
+    void checksumMismatchIgnoresTheRestOfTheSegment() throws IOException {
+        Path segment = writeMovieWithTwoRatings();
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            long payload = offsetOfRating(segment, 1) + HEADER_BYTES;
+            file.seek(payload + 10); // inside the rating
+            int b = file.read();
+            file.seek(payload + 10);
+            file.write(b ^ 0xFF);
+        }
+
+        // The good rating after the corrupt one is not trusted either
+        Movie movie = replay().getIndex().findMovieById(1);
+        assertNotNull(movie);
+        assertEquals(0, movie.getRatingCount());
+    }
+
+    @Test
+    void badLengthIgnoresTheRestOfTheSegment() throws IOException {
+        Path segment = writeMovieWithTwoRatings();
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(offsetOfRating(segment, 2));
+            file.writeInt(Integer.MAX_VALUE);
+        }
+
+        Movie movie = replay().getIndex().findMovieById(1);
+        assertEquals(1, movie.getRatingCount());
+        assertEquals(7.0, movie.getTotalRatingSum(), 1e-9);
+    }
+
+    @Test
+    void ratingsReadBeforeTheirAddAreAppliedWithIt() throws IOException {
+        // A rating can reach the log before the ADD of its movie: the
+        // mutation that added it logs after the change is visible
+        MutationLog log = new MutationLog(directory, NAME, 1, MutationLog.FsyncPolicy.ALWAYS, 0);
+        log.logRating(5, 8.0, "alice");
+        log.logRating(5, 6.0);
+        log.logAdd(5, "drama/period", "Amadeus", 0);
+        log.awaitDurable(log.logRating(6, 3.0)); // never added: ignored
+        log.close();
+
+        Genre root = replay();
+        Movie movie = root.getIndex().findMovieById(5);
+        assertNotNull(movie);
+        assertEquals("period", movie.getParent().getName());
+        assertEquals(2, movie.getRatingCount());
+        assertEquals(14.0, movie.getTotalRatingSum(), 1e-9);
+        assertEquals(8.0f, root.getIndex().getUserRatings().get("alice").scoreOf(5));
+        assertNull(root.getIndex().findMovieById(6));
+    }
+
+    @Test
+    void failedWriteLeavesOnlyTheRecordsReportedDurable() throws IOException {
+        MutationLog log = new MutationLog(directory, NAME, 1, MutationLog.FsyncPolicy.ALWAYS, 0);
+        log.awaitDurable(log.logAdd(1, "action", "Alien", 0));
+
+        // One batch (the writer takes batches under the log's monitor): enough
+        // ratings to spill out of the writer's buffer into the file, then a
+        // record that fails (a title too long to encode)
+        int ratings = 5000;
+        long[] lsns = new long[ratings];
+        long failing;
+        synchronized (log) {
+            for (int i = 0; i < ratings; i++) {
+                lsns[i] = log.logRating(1, 1.0);
+            }
+            failing = log.logAdd(2, "action", "x".repeat(70_000), 0);
+        }
+        assertThrows(IllegalStateException.class, () -> log.awaitDurable(failing));
+
+        // Records after the failure are written after the good ones
+        log.awaitDurable(log.logRating(1, 1.0));
+        log.close();
+
+        for (int i = 0; i < ratings; i++) {
+            long lsn = lsns[i];
+            assertThrows(IllegalStateException.class, () -> log.awaitDurable(lsn));
+        }
+
+        // repair() cut off what the failed batch had already written
+        Genre root = replay();
+        assertEquals(1, root.getIndex().findMovieById(1).getRatingCount());
+        assertNull(root.getIndex().findMovieById(2));
+    }
+}
@@ -0,0 +1,92 @@
+package com.recomtree.server;
+
+import com.recomtree.composite.Genre;
+import com.recomtree.composite.Movie;
+import com.recomtree.logging.AsyncLogger;
+import com.recomtree.logging.LogLevel;
+import com.recomtree.service.CatalogService;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Request ids ("#id COMMAND") are echoed in the end marker of their
+// response, and a batch of ratings with one bad rating changes nothing.
+class ClientSessionTest {
+    private Genre root;
+    private ClientSession session;
+
+    @BeforeAll
+    static void quietLogger() throws IOException {
+        if (RecommendationServer.logger == null) {
+            RecommendationServer.logger = new AsyncLogger(1024, LogLevel.WARN, false, null);
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        root = new Genre("Movies Catalog");
+        CatalogService service = new CatalogService(root);
+        service.addMovie("action", "Alien");
+        service.addMovie("action", "Heat");
+        service.addMovie("drama", "Amadeus");
+        session = new ClientSession("test", root);
+    }
+
+    private Movie movie(String title) {
+        return root.getIndex().findMovies(title).get(0);
+    }
+
+    @Test
+    void taggedRequestEndsWithItsId() {
+        session.handle("LOGIN user user123");
+        assertEquals("<END_OF_RESPONSE>", session.endMarker());
+
+        String response = session.handle("#r-17 RATE_MOVIE Alien 8");
+        assertTrue(response.startsWith("SUCCESS"), response);
+        assertEquals("<END_OF_RESPONSE> #r-17", session.endMarker());
+
+        // The id belongs to one request only
+        session.handle("HELP");
+        assertEquals("<END_OF_RESPONSE>", session.endMarker());
+    }
+
+    @Test
+    void tagWithoutCommandIsAnError() {
+        assertEquals("ERROR: Empty command", session.handle("#5"));
+        assertEquals("<END_OF_RESPONSE> #5", session.endMarker());
+
+        assertEquals("ERROR: Please LOGIN first.", session.handle("  #6   LIST_ALL  "));
+        assertEquals("<END_OF_RESPONSE> #6", session.endMarker());
+    }
+
+    @Test
+    void taggedExitEndsTheSession() {
+        assertEquals(null, session.handle("#9 EXIT"));
+    }
+
+    @Test
+    void batchWithOneBadRatingRatesNothing() {
+        session.handle("LOGIN user user123 alice");
+
+        String response = session.handle("#b RATE_MOVIE_BATCH Alien 8 Heat 11 Amadeus 7");
+        assertTrue(response.startsWith("ERROR") && response.contains("Nothing was rated"), response);
+        response = session.handle("RATE_MOVIE_BATCH Alien 8 Heat x Amadeus 7");
+        assertTrue(response.startsWith("ERROR") && response.contains("Nothing was rated"), response);
+
+        assertEquals(0, movie("Alien").getRatingCount());
+        assertEquals(0, movie("Heat").getRatingCount());
+        assertEquals(0, movie("Amadeus").getRatingCount());
+        assertEquals(0, root.getIndex().getUserRatings().get("alice").size());
+
+        // A valid batch is applied whole
+        response = session.handle("RATE_MOVIE_BATCH Alien 8 Heat 6 Amadeus 7");
+        assertTrue(response.startsWith("SUCCESS: Recorded 3 of 3"), response);
+        assertEquals(1, movie("Heat").getRatingCount());
+        assertEquals(3, root.getIndex().getUserRatings().get("alice").size());
+    }
+}
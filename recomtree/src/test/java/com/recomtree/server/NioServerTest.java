@@ -0,0 +1,124 @@
+package com.recomtree.server;
+
+import com.recomtree.composite.Genre;
+import com.recomtree.logging.AsyncLogger;
+import com.recomtree.logging.LogLevel;
+import com.recomtree.service.CatalogService;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Requests sent together without waiting are answered in order, each
+// response ending with the id of its request.
+class NioServerTest {
+    private static int port;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        if (RecommendationServer.logger == null) {
+            RecommendationServer.logger = new AsyncLogger(1024, LogLevel.WARN, false, null);
+        }
+        Genre root = new Genre("Movies Catalog");
+        CatalogService service = new CatalogService(root);
+        service.addMovie("action", "Alien");
+        service.addMovie("drama", "Amadeus");
+
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        NioServer server = new NioServer(port, 2, root);
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "test-nio-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static Socket connect() throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setSoTimeout(5000);
+                return socket;
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100); // the server is still starting
+            }
+        }
+    }
+
+    // One response: its lines, then its end marker
+    private static List<String> readResponse(BufferedReader in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            lines.add(line);
+            if (line.startsWith(ClientSession.END_OF_RESPONSE)) {
+                return lines;
+            }
+        }
+        throw new IOException("Connection closed in the middle of a response");
+    }
+
+    private static String marker(List<String> response) {
+        return response.get(response.size() - 1);
+    }
+
+    @Test
+    void pipelinedRequestsAreAnsweredInOrder() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            readResponse(in); // welcome
+
+            // All in one write, so the server reads them together
+            OutputStream out = socket.getOutputStream();
+            StringBuilder requests = new StringBuilder("LOGIN user user123\n");
+            for (int i = 1; i <= 50; i++) {
+                requests.append("#").append(i).append(i % 2 == 0 ? " RATE_MOVIE Alien 7\n" : " LIST_ALL\n");
+            }
+            requests.append("RECOMMEND TOP_RATED 1\n");
+            requests.append("#last RATE_MOVIE Nope 5\n");
+            out.write(requests.toString().getBytes());
+            out.flush();
+
+            List<String> login = readResponse(in);
+            assertTrue(login.get(0).startsWith("CONNECTION SUCCESSFUL"), login.toString());
+            assertEquals("<END_OF_RESPONSE>", marker(login));
+
+            for (int i = 1; i <= 50; i++) {
+                List<String> response = readResponse(in);
+                assertEquals("<END_OF_RESPONSE> #" + i, marker(response));
+                if (i % 2 == 0) {
+                    assertTrue(response.get(0).startsWith("SUCCESS"), response.toString());
+                } else {
+                    assertTrue(String.join("\n", response).contains("Alien"), response.toString());
+                }
+            }
+
+            List<String> top = readResponse(in);
+            assertEquals("<END_OF_RESPONSE>", marker(top));
+            assertTrue(String.join("\n", top).contains("Alien"), top.toString());
+
+            List<String> last = readResponse(in);
+            assertEquals("<END_OF_RESPONSE> #last", marker(last));
+            assertTrue(last.get(0).startsWith("ERROR"), last.toString());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.recomtree.service;
+
+import com.recomtree.composite.Genre;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// An entry only answers for the catalog version it was computed at, and
+// each segment evicts its least recently used entry first.
+class RecommendationCacheTest {
+
+    // Parameters of TOP_RATED entries that land in the same segment
+    private static List<String> sameSegment(int count) {
+        List<String> params = new ArrayList<>();
+        int segment = RecommendationCache.segmentIndex(RecommendationCache.key("TOP_RATED", "0"));
+        for (int i = 0; params.size() < count; i++) {
+            String param = String.valueOf(i);
+            if (RecommendationCache.segmentIndex(RecommendationCache.key("TOP_RATED", param)) == segment) {
+                params.add(param);
+            }
+        }
+        return params;
+    }
+
+    @Test
+    void entryFromAnotherVersionIsAMiss() {
+        RecommendationCache cache = new RecommendationCache(100);
+        cache.put("TOP_RATED", "5", 1, "first");
+        assertEquals("first", cache.get("TOP_RATED", " 5 ", 1)); // parameters are trimmed
+        assertNull(cache.get("TOP_RATED", "5", 2));
+        assertNull(cache.get("TOP_RATED", "6", 1));
+        assertNull(cache.get("GENRE_SIMILAR", "5", 1));
+
+        // The newer version replaces the entry instead of adding one
+        cache.put("TOP_RATED", "5", 2, "second");
+        assertNull(cache.get("TOP_RATED", "5", 1));
+        assertEquals("second", cache.get("TOP_RATED", "5", 2));
+        assertEquals(1, cache.size());
+
+        // Binary and text entries of one request are kept apart
+        byte[] encoded = {1, 2, 3};
+        assertNull(cache.getEncoded("TOP_RATED", "5", 2));
+        cache.putEncoded("TOP_RATED", "5", 2, encoded);
+        assertArrayEquals(encoded, cache.getEncoded("TOP_RATED", "5", 2));
+        assertEquals("second", cache.get("TOP_RATED", "5", 2));
+        assertEquals(2, cache.size());
+
+        assertEquals(4, cache.getHits());
+        assertEquals(5, cache.getMisses());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getEstimatedBytes());
+    }
+
+    @Test
+    void fullSegmentEvictsTheLeastRecentlyUsed() {
+        RecommendationCache cache = new RecommendationCache(32); // 2 entries per segment
+        List<String> params = sameSegment(3);
+        cache.put("TOP_RATED", params.get(0), 1, "a");
+        cache.put("TOP_RATED", params.get(1), 1, "b");
+        long twoEntries = cache.getEstimatedBytes();
+
+        assertEquals("a", cache.get("TOP_RATED", params.get(0), 1)); // now the most recent
+        cache.put("TOP_RATED", params.get(2), 1, "c");
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+        assertNull(cache.get("TOP_RATED", params.get(1), 1));
+        assertEquals("a", cache.get("TOP_RATED", params.get(0), 1));
+        assertEquals("c", cache.get("TOP_RATED", params.get(2), 1));
+        assertEquals(twoEntries, cache.getEstimatedBytes());
+    }
+
+    @Test
+    void catalogChangesInvalidateCachedRecommendations() {
+        Genre root = new Genre("Movies Catalog");
+        RecommendationCache cache = new RecommendationCache(100);
+        CatalogService service = new CatalogService(root, cache);
+        service.addMovie("action", "Alien", 7.0);
+        service.addMovie("drama", "Amadeus", 8.0);
+
+        String first = service.recommend("TOP_RATED", "1");
+        assertTrue(first.contains("Amadeus"), first);
+        assertSame(first, service.recommend("TOP_RATED", "1"));
+        assertEquals(1, cache.getHits());
+
+        // A rating moves Alien ahead
+        service.rateMovie("Alien", 10);
+        String rated = service.recommend("TOP_RATED", "1");
+        assertTrue(rated.contains("Alien") && !rated.contains("Amadeus"), rated);
+
+        // A new movie pushes Amadeus out of the top two
+        String before = service.recommend("TOP_RATED", "2");
+        assertTrue(before.contains("Amadeus"), before);
+        service.addMovie("comedy", "Airplane", 9.9);
+        String added = service.recommend("TOP_RATED", "2");
+        assertNotEquals(before, added);
+        assertTrue(added.contains("Airplane") && !added.contains("Amadeus"), added);
+    }
+}